@@ -0,0 +1,656 @@
+import java.io.*;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+
+// Benchmarks for the headless CalendarStore, run with "ant bench". Every scenario is warmed up
+// and then measured over a few iterations at each store size, and printed as one line so that
+// two runs can be compared side by side.
+//
+//     -Dbench.sizes=10000,100000,1000000   events in the store
+//     -Dbench.warmup=1                     warmup iterations per scenario
+//     -Dbench.iterations=3                 measured iterations per scenario
+//     -Dbench.seed=42                      seed for the random dates and times queried
+//     -Dbench.readers=4                    reader threads in the concurrent scenario
+class CalendarBench {
+    private static final LocalDate FIRST_DAY = LocalDate.of(2030, 1, 1);
+    private static final int EVENTS_PER_DAY = 8;
+    private static final int QUERIES = 100_000;
+    private static final int RANGE_QUERIES = 2_000;
+    private static final int SEARCH_QUERIES = 500;
+    private static final int PAIR_WRITES = 20_000;
+    private static final int PAIR_DAYS = 100;
+    private static final int LIVE_PAIRS = 500;
+    private static final int HTTP_REQUESTS = 2_000;
+    private static final String[] WORDS = {
+            "standup", "review", "planning", "retro", "lunch", "dentist", "gym", "interview",
+            "budget", "release", "demo", "training", "offsite", "sync", "onboarding", "doctor",
+            "school", "pickup", "flight", "hotel", "conference", "workshop", "deadline", "invoice",
+            "birthday", "dinner", "call", "audit", "migration", "backup", "design", "roadmap"};
+
+    private static final int WARMUP = Integer.getInteger("bench.warmup", 1);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 3);
+    private static final int READERS = Integer.getInteger("bench.readers", 4);
+
+    private final int size;
+    private final int days;
+    private final Random random = new Random(Long.getLong("bench.seed", 42));
+    // Results are folded in here so the JIT cannot drop the work being measured.
+    private static long sink;
+
+    private CalendarBench(int size) {
+        this.size = size;
+        this.days = (size + EVENTS_PER_DAY - 1) / EVENTS_PER_DAY;
+    }
+
+    public static void main(String[] args) throws IOException {
+        String sizes = System.getProperty("bench.sizes", "10000,100000,1000000");
+        System.out.printf("%-22s %10s %14s  %s%n", "Benchmark", "Events", "Score", "Units");
+        for (String size : sizes.split(",")) {
+            new CalendarBench(Integer.parseInt(size.trim())).run();
+        }
+        System.out.println("(sink " + sink + ")");
+        if (Metrics.ENABLED) {
+            System.out.print(Metrics.report());
+        }
+    }
+
+    private void run() throws IOException {
+        Event[] events = new Event[size];
+        for (int i = 0; i < size; i++) {
+            LocalTime start = LocalTime.of(8 + i % EVENTS_PER_DAY, 0);
+            String data = WORDS[i % WORDS.length] + " " + WORDS[i / WORDS.length % WORDS.length];
+            events[i] = new Event("Event " + i, data, start, start.plusHours(1), false, false);
+        }
+
+        // insert: a fresh store per iteration, journaled as the app would
+        CalendarStore store = null;
+        Path dir = null;
+        double[] scores = new double[ITERATIONS];
+        for (int iteration = -WARMUP; iteration < ITERATIONS; iteration++) {
+            if (store != null) {
+                store.close();
+                delete(dir);
+            }
+            dir = Files.createTempDirectory("calendar-bench");
+            store = new CalendarStore(dir);
+            store.load();
+            long started = System.nanoTime();
+            for (int i = 0; i < size; i++) {
+                store.addEvent(dayOf(i), events[i]);
+            }
+            long elapsed = System.nanoTime() - started;
+            if (iteration >= 0) {
+                scores[iteration] = size * 1e9 / elapsed;
+            }
+        }
+        report("insert", average(scores), "ops/s");
+
+        // importCsv: the same events read from a CSV file into a fresh store
+        Path csv = Files.createTempFile("calendar-bench", ".csv");
+        try (BufferedWriter writer = Files.newBufferedWriter(csv)) {
+            writer.write("date,start,end,title,data\n");
+            for (int i = 0; i < size; i++) {
+                writer.write(dayOf(i) + "," + events[i].startTime + "," + events[i].endTime + "," + events[i].title + "," + events[i].data + "\n");
+            }
+        }
+        report("importCsv", 1e6 / measure(() -> {
+            Path importDir = Files.createTempDirectory("calendar-bench");
+            try (CalendarStore imported = new CalendarStore(importDir)) {
+                imported.load();
+                new EventImporter(imported, null).importFile(csv, FIRST_DAY, Writer.nullWriter(), (bytesRead, totalBytes, rowsRead) -> { });
+            }
+            delete(importDir);
+            return size;
+        }), "ops/s");
+        Files.delete(csv);
+
+        CalendarStore populated = store;
+        long[] latencies = new long[QUERIES];
+        measure(() -> {
+            for (int i = 0; i < QUERIES; i++) {
+                LocalDate date = randomDay();
+                LocalTime start = LocalTime.of(random.nextInt(23), random.nextBoolean() ? 0 : 30);
+                Event probe = new Event("probe", "", start, start.plusMinutes(30), false, false);
+                long started = System.nanoTime();
+                sink += populated.isOverlapping(probe, date) ? 1 : 0;
+                latencies[i] = System.nanoTime() - started;
+            }
+            return 0;
+        });
+        Arrays.sort(latencies);
+        report("conflictCheck.avg", Arrays.stream(latencies).average().orElse(0), "ns/op");
+        report("conflictCheck.p99", latencies[QUERIES * 99 / 100], "ns/op");
+
+        report("rangeWeek", measure(() -> rangeQueries(populated, 6)), "us/op");
+        report("rangeMonth", measure(() -> rangeQueries(populated, 30)), "us/op");
+        // the rows of the monthly view for a month that is not cached yet, as after an edit
+        report("monthList", measure(() -> {
+            for (int i = 0; i < RANGE_QUERIES; i++) {
+                YearMonth month = YearMonth.from(randomDay());
+                sink += EventListModel.forRange("", List.of(populated.monthModel(month)), month.atDay(1), month.atEndOfMonth()).getSize();
+            }
+            return RANGE_QUERIES;
+        }), "us/op");
+        report("freeSlots30d", measure(() -> {
+            for (int i = 0; i < RANGE_QUERIES; i++) {
+                LocalDate from = randomDay();
+                sink += populated.findFreeSlots(from, from.plusDays(30), Duration.ofHours(1),
+                        LocalTime.of(8, 0), LocalTime.of(18, 0), true, 5).size();
+            }
+            return RANGE_QUERIES;
+        }), "us/op");
+        report("commonSlots30d", measure(() -> {
+            for (int i = 0; i < RANGE_QUERIES; i++) {
+                LocalDate from = randomDay();
+                sink += populated.findCommonSlots(from, from.plusDays(30), Duration.ofHours(1),
+                        LocalTime.of(8, 0), LocalTime.of(18, 0), true).size();
+            }
+            return RANGE_QUERIES;
+        }), "us/op");
+
+        // working days: a calendar with a dozen holidays and a day off in every fifty, asked
+        // whether a random day is worked and for the next twenty working days from one
+        WorkingCalendar calendar = workingCalendar();
+        LocalDate[] queried = new LocalDate[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            queried[i] = randomDay();
+        }
+        report("isWorkingDay", 1000 * measure(() -> {
+            int working = 0;
+            for (LocalDate date : queried) {
+                working += calendar.isWorkingDay(date) ? 1 : 0;
+            }
+            sink += working;
+            return QUERIES;
+        }), "ns/op");
+        report("nextWorkingDays20", measure(() -> {
+            for (int i = 0; i < RANGE_QUERIES; i++) {
+                sink += calendar.nextWorkingDays(queried[i], 20).size();
+            }
+            return RANGE_QUERIES;
+        }), "us/op");
+
+        // http: a month's agenda through the HTTP interface from an in-process client, all the
+        // requests in flight at once, first in full and then revalidated with the ETag
+        try (CalendarServer server = new CalendarServer(populated, 0, () -> FIRST_DAY, () -> { })) {
+            server.start();
+            report("httpAgendaMonth", httpRequests(server, false), "req/s");
+            report("httpAgendaNotModified", httpRequests(server, true), "req/s");
+        }
+
+        // concurrent: one writer adding and removing pairs of events, each pair a single change
+        // across two months, first alone and then while reader threads query those months
+        report("writesAlone", concurrentWrites(populated, 0)[0], "ops/s");
+        double[] contended = concurrentWrites(populated, READERS);
+        report("writesWith" + READERS + "Readers", contended[0], "ops/s");
+        report("readsWith" + READERS + "Readers", contended[1], "ops/s");
+        report("tornReads", contended[2], "reads");
+
+        // one page of results per keystroke: a prefix of one word, half of the time with a second
+        // word narrowing it down
+        report("searchPage", measure(() -> {
+            for (int i = 0; i < SEARCH_QUERIES; i++) {
+                String word = WORDS[random.nextInt(WORDS.length)];
+                String query = word.substring(0, 1 + random.nextInt(word.length()));
+                if (i % 2 == 1) {
+                    query += " " + WORDS[random.nextInt(WORDS.length)].substring(0, 3);
+                }
+                sink += populated.search(query, FIRST_DAY).limit(50).count();
+            }
+            return SEARCH_QUERIES;
+        }), "us/op");
+
+        // save and load: a full snapshot, then opening it (months are decoded lazily), then
+        // decoding every month
+        report("save", measure(() -> {
+            populated.flush();
+            return 1;
+        }) / 1000, "ms/op");
+        report("storeSize", Files.size(dir.resolve(CalendarStore.STORE_FILE)) / (1024.0 * 1024.0), "MB");
+        Path saved = dir;
+        report("load", measure(() -> {
+            try (CalendarStore reopened = new CalendarStore(saved)) {
+                reopened.load();
+            }
+            return 1;
+        }) / 1000, "ms/op");
+        report("searchIndexBuild", measure(() -> {
+            // includes opening the store and decoding every month, which the first search needs
+            try (CalendarStore reopened = new CalendarStore(saved)) {
+                reopened.load();
+                sink += reopened.search("standup", FIRST_DAY).findFirst().isPresent() ? 1 : 0;
+            }
+            return 1;
+        }) / 1000, "ms/op");
+        report("loadAll", measure(() -> {
+            try (CalendarStore reopened = new CalendarStore(saved)) {
+                reopened.load();
+                sink += reopened.eventsBetween(FIRST_DAY, dayOf(size - 1)).size();
+            }
+            return 1;
+        }) / 1000, "ms/op");
+        report("exportIcs", 1e6 / measure(() -> {
+            // from a freshly opened store, so months are decoded for the walk and dropped again
+            try (CalendarStore reopened = new CalendarStore(saved)) {
+                reopened.loadReadOnly();
+                sink += new EventExporter(Writer.nullWriter(), EventExporter.Format.ICS).export(reopened, FIRST_DAY, dayOf(size - 1));
+            }
+            return size;
+        }), "ops/s");
+
+        // heap: every event as decoded from the store file, held as day lists of Event objects
+        // the way the store used to, and packed the way it does now
+        long[] heap = heapOfDays();
+        report("heapLists", heap[0] / (1024.0 * 1024.0), "MB");
+        report("heapPacked", heap[1] / (1024.0 * 1024.0), "MB");
+        report("heapPerEvent", (double) heap[0] / size, "bytes (lists)");
+        report("heapPerEventPacked", (double) heap[1] / size, "bytes (packed)");
+
+        // recurrence: one rule per thousand events, in the evening so they never collide with
+        // the stored events and every occurrence is expanded
+        int ruleCount = Math.max(1, size / 1000);
+        List<RecurrenceRule> rules = new ArrayList<>();
+        for (int i = 0; i < ruleCount; i++) {
+            LocalTime start = LocalTime.of(18 + i % 5, 0);
+            Event event = new Event("Rule " + i, "bench", start, start.plusMinutes(30), i % 2 == 0, i % 2 == 1);
+            RecurrenceRule.Frequency frequency = i % 2 == 0 ? RecurrenceRule.Frequency.DAILY : RecurrenceRule.Frequency.WEEKLY;
+            RecurrenceRule rule = new RecurrenceRule(event, randomDay(), frequency, i % 3 == 0, true, null, 0, WorkingCalendar.STANDARD);
+            rules.add(rule);
+            populated.addRule(rule);
+        }
+        report("expandRuleYear", measure(() -> {
+            int[] occurrences = {0};
+            for (RecurrenceRule rule : rules) {
+                rule.expand(FIRST_DAY, FIRST_DAY.plusYears(1), WorkingCalendar.STANDARD, (date, event) -> occurrences[0]++);
+            }
+            sink += occurrences[0];
+            return ruleCount;
+        }), "us/op");
+        report("rangeMonthWithRules", measure(() -> rangeQueries(populated, 30)), "us/op");
+
+        // undo: ending a series a week in and undoing that, which puts the old rule map back
+        report("endSeriesUndo", measure(() -> {
+            for (RecurrenceRule rule : rules) {
+                populated.endSeries(rule, rule.start.plusDays(7));
+                sink += populated.undo() ? 1 : 0;
+            }
+            return ruleCount;
+        }), "us/op");
+
+        // shifting a day's events a quarter of an hour later and back, as one batch and as the
+        // edit dialog would one event at a time, each undone after
+        report("shiftDayBatch", measure(() -> {
+            for (int i = 0; i < RANGE_QUERIES; i++) {
+                LocalDate date = randomDay();
+                List<Event> dailyEvents = populated.eventsOn(date);
+                if (populated.shiftEvents(Map.of(date, dailyEvents), 15, FIRST_DAY).isEmpty()) {
+                    sink += populated.undo() ? 1 : 0;
+                }
+            }
+            return RANGE_QUERIES;
+        }), "us/op");
+        report("shiftDayEach", measure(() -> {
+            for (int i = 0; i < RANGE_QUERIES; i++) {
+                LocalDate date = randomDay();
+                List<Event> dailyEvents = populated.eventsOn(date);
+                int changes = 0;
+                for (int j = dailyEvents.size() - 1; j >= 0; j--) {
+                    Event event = dailyEvents.get(j);
+                    if (populated.ruleOf(event) != null) {
+                        continue;
+                    }
+                    Event moved = new Event(event.title, event.data, event.startTime.plusMinutes(15),
+                            event.endTime.plusMinutes(15), false, false);
+                    if (populated.checkEvent(date, moved, event) == null) {
+                        populated.removeEvent(date, event);
+                        populated.addEvent(date, moved);
+                        changes += 2;
+                    }
+                }
+                for (int j = 0; j < changes; j++) {
+                    sink += populated.undo() ? 1 : 0;
+                }
+            }
+            return RANGE_QUERIES;
+        }), "us/op");
+
+        // reminders: a simulated week from a random day in five-minute ticks, rules included, with
+        // one stored event moved every hour so that its day is read again
+        int[] reminded = {0};
+        int[] mostPending = {0};
+        report("reminderTick", measure(() -> {
+            SimulatedClock clock = new SimulatedClock(randomDay().atStartOfDay(ZoneId.systemDefault()).toInstant());
+            try (ReminderScheduler reminders = new ReminderScheduler(populated, clock, Duration.ofMinutes(10), reminder -> reminded[0]++)) {
+                int ticks = 7 * 24 * 12;
+                for (int tick = 0; tick < ticks; tick++) {
+                    if (tick % 12 == 0) {
+                        LocalDate today = LocalDate.now(clock);
+                        for (Event event : populated.eventsOn(today)) {
+                            if (event.seriesId == 0) {
+                                populated.removeEvent(today, event);
+                                populated.addEvent(today, new Event(event.title, event.data, event.startTime, event.endTime, false, false));
+                                break;
+                            }
+                        }
+                    }
+                    sink += reminders.tick() != null ? 1 : 0;
+                    mostPending[0] = Math.max(mostPending[0], reminders.pending());
+                    clock.advance(Duration.ofMinutes(5));
+                }
+                return ticks;
+            }
+        }), "us/op");
+        report("remindersPerDay", reminded[0] / (7.0 * (WARMUP + ITERATIONS)), "reminders");
+        report("remindersHeld", mostPending[0], "reminders");
+
+        // utilization: every month of the store scanned by a fresh report, on the common pool and
+        // on a pool of one thread, then again after an edit when only its month is scanned
+        YearMonth firstMonth = YearMonth.from(FIRST_DAY);
+        YearMonth lastMonth = YearMonth.from(dayOf(size - 1));
+        report("utilizationAll", measure(() -> {
+            sink += new Utilization(populated).report(firstMonth, lastMonth).total().minutes;
+            return 1;
+        }) / 1000, "ms/op");
+        ForkJoinPool oneThread = new ForkJoinPool(1);
+        report("utilizationSerial", measure(() -> {
+            try {
+                sink += oneThread.submit(() -> new Utilization(populated).report(firstMonth, lastMonth)).get().total().minutes;
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IOException(e);
+            }
+            return 1;
+        }) / 1000, "ms/op");
+        oneThread.shutdown();
+        Utilization utilization = new Utilization(populated);
+        utilization.report(firstMonth, lastMonth);
+        report("utilizationAfterEdit", measure(() -> {
+            for (int i = 0; i < 100; i++) {
+                LocalDate date = randomDay();
+                populated.addEvent(date, new Event("edit", "", LocalTime.of(23, 0), LocalTime.of(23, 30), false, false));
+                sink += utilization.report(firstMonth, lastMonth).scanned;
+                populated.undo();
+            }
+            return 100;
+        }), "us/op");
+        report("cores", Runtime.getRuntime().availableProcessors(), "cpus");
+
+        // metrics: what one timed section costs, run with and without -Dcalendar.metrics=true
+        Metrics.Timer timer = Metrics.timer("bench.timer");
+        report("metricsTimer", 1000 * measure(() -> {
+            int calls = 1_000_000;
+            for (int i = 0; i < calls; i++) {
+                long started = timer.start();
+                sink += i;
+                timer.stop(started);
+            }
+            return calls;
+        }), "ns/op");
+
+        populated.close();
+        delete(dir);
+    }
+
+    private WorkingCalendar workingCalendar() {
+        WorkingCalendar calendar = WorkingCalendar.parse(List.of(
+                "--01-01 New Year's Day", "3 MONDAY JANUARY", "3 MONDAY FEBRUARY", "last MONDAY MAY",
+                "--06-19 Juneteenth", "--07-04 Independence Day", "1 MONDAY SEPTEMBER", "2 MONDAY OCTOBER",
+                "--11-11 Veterans Day", "4 THURSDAY NOVEMBER Thanksgiving", "--12-24", "--12-25 Christmas Day"));
+        Set<LocalDate> daysOff = new HashSet<>();
+        for (int day = 0; day < days; day += 50) {
+            daysOff.add(FIRST_DAY.plusDays(day));
+        }
+        return calendar.withDaysOff(daysOff);
+    }
+
+    private interface Scenario {
+        // Returns how many operations were done, or 0 if the scenario times them itself.
+        int run() throws IOException;
+    }
+
+    // Average microseconds per operation over the measured iterations.
+    private static double measure(Scenario scenario) throws IOException {
+        double[] scores = new double[ITERATIONS];
+        for (int iteration = -WARMUP; iteration < ITERATIONS; iteration++) {
+            long started = System.nanoTime();
+            int ops = scenario.run();
+            long elapsed = System.nanoTime() - started;
+            if (iteration >= 0 && ops > 0) {
+                scores[iteration] = elapsed / 1000.0 / ops;
+            }
+        }
+        return average(scores);
+    }
+
+    // Requests per second averaged over the measured iterations, each request on its own virtual
+    // thread. Conditional requests send the tag the month was last served with.
+    private double httpRequests(CalendarServer server, boolean conditional) {
+        Map<YearMonth, String> tags = new ConcurrentHashMap<>();
+        double total = 0;
+        try (HttpClient client = HttpClient.newBuilder().executor(Executors.newVirtualThreadPerTaskExecutor()).build()) {
+            for (int iteration = -WARMUP; iteration < ITERATIONS; iteration++) {
+                YearMonth[] months = new YearMonth[HTTP_REQUESTS];
+                for (int i = 0; i < HTTP_REQUESTS; i++) {
+                    months[i] = YearMonth.from(FIRST_DAY.plusDays(random.nextInt(Math.min(days, 366))));
+                }
+                long started = System.nanoTime();
+                List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+                for (YearMonth month : months) {
+                    HttpRequest.Builder request = HttpRequest.newBuilder(URI.create("http://localhost:" + server.port()
+                            + "/agenda?from=" + month.atDay(1) + "&to=" + month.atEndOfMonth()));
+                    String tag = tags.get(month);
+                    if (conditional && tag != null) {
+                        request.header("If-None-Match", tag);
+                    }
+                    responses.add(client.sendAsync(request.build(), HttpResponse.BodyHandlers.ofString()).whenComplete((response, e) -> {
+                        if (response != null) {
+                            response.headers().firstValue("ETag").ifPresent(t -> tags.put(month, t));
+                        }
+                    }));
+                }
+                for (CompletableFuture<HttpResponse<String>> response : responses) {
+                    sink += response.join().body().length();
+                }
+                if (iteration >= 0) {
+                    total += HTTP_REQUESTS / ((System.nanoTime() - started) / 1e9);
+                }
+            }
+        }
+        return total / ITERATIONS;
+    }
+
+    // Writes per second, the readers' reads per second, and how many reads saw one half of a pair
+    // without the other, averaged over the measured iterations. The pairs go into the months
+    // after the populated days and are all removed again afterwards.
+    private double[] concurrentWrites(CalendarStore store, int readers) {
+        LocalDate region = dayOf(size - 1).plusMonths(1).withDayOfMonth(1);
+        LocalDate regionEnd = region.plusDays(2 * PAIR_DAYS - 1);
+        double[] totals = new double[3];
+        for (int iteration = -WARMUP; iteration < ITERATIONS; iteration++) {
+            AtomicBoolean stop = new AtomicBoolean();
+            long[] reads = new long[readers];
+            long[] torn = new long[readers];
+            long[] seen = new long[readers];
+            List<Thread> threads = new ArrayList<>();
+            for (int r = 0; r < readers; r++) {
+                int reader = r;
+                Random readerRandom = new Random(r);
+                Event probe = new Event("probe", "", LocalTime.of(12, 0), LocalTime.of(12, 30), false, false);
+                Thread thread = new Thread(() -> {
+                    while (!stop.get()) {
+                        int pairEvents = 0;
+                        for (List<Event> dailyEvents : store.eventsBetween(region, regionEnd).values()) {
+                            pairEvents += dailyEvents.size();
+                        }
+                        if (pairEvents % 2 != 0) {
+                            torn[reader]++;
+                        }
+                        LocalDate date = region.plusDays(readerRandom.nextInt(2 * PAIR_DAYS));
+                        seen[reader] += store.eventsOn(date).size() + (store.isOverlapping(probe, date) ? 1 : 0);
+                        reads[reader] += 3;
+                    }
+                }, "bench-reader-" + r);
+                thread.start();
+                threads.add(thread);
+            }
+
+            Deque<Long> live = new ArrayDeque<>();
+            int writes = 0;
+            long started = System.nanoTime();
+            for (int k = 0; k < PAIR_WRITES; k++) {
+                LocalDate first = region.plusDays(k % PAIR_DAYS);
+                LocalTime start = LocalTime.of(k / PAIR_DAYS % 20, 0);
+                long id = RecurrenceRule.newSeriesId();
+                SortedMap<LocalDate, List<Event>> pair = new TreeMap<>();
+                pair.put(first, List.of(pairEvent(id, start)));
+                pair.put(first.plusDays(PAIR_DAYS), List.of(pairEvent(id, start)));
+                store.addEvents(pair, region, (date, index, reason) -> {
+                    throw new IllegalStateException(date + ": " + reason);
+                });
+                live.add(id);
+                writes++;
+                if (live.size() > LIVE_PAIRS) {
+                    store.removeSeries(live.poll(), region);
+                    writes++;
+                }
+            }
+            long elapsed = System.nanoTime() - started;
+            stop.set(true);
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            while (!live.isEmpty()) {
+                store.removeSeries(live.poll(), region);
+            }
+            sink += Arrays.stream(seen).sum();
+            if (iteration >= 0) {
+                totals[0] += writes * 1e9 / elapsed / ITERATIONS;
+                totals[1] += Arrays.stream(reads).sum() * 1e9 / elapsed / ITERATIONS;
+                totals[2] += Arrays.stream(torn).sum();
+            }
+        }
+        return totals;
+    }
+
+    private static Event pairEvent(long seriesId, LocalTime start) {
+        Event event = new Event("Pair " + seriesId, "", start, start.plusHours(1), false, false);
+        event.seriesId = seriesId;
+        return event;
+    }
+
+    // A clock that only moves when told to, for driving the reminder scheduler.
+    private static class SimulatedClock extends Clock {
+        private Instant now;
+
+        SimulatedClock(Instant now) {
+            this.now = now;
+        }
+
+        void advance(Duration step) {
+            now = now.plus(step);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneId.systemDefault();
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return Clock.fixed(now, zone);
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+
+    private int rangeQueries(CalendarStore store, int length) {
+        for (int i = 0; i < RANGE_QUERIES; i++) {
+            LocalDate from = randomDay();
+            sink += store.eventsBetween(from, from.plusDays(length)).size();
+        }
+        return RANGE_QUERIES;
+    }
+
+    // Heap retained by a HashMap of the days holding ArrayLists of events, then by the same
+    // map holding packed days: the heap in use with each map, less the heap in use once it is
+    // dropped. Each event gets its own strings, as decoding gives it.
+    private long[] heapOfDays() {
+        Map<LocalDate, List<Event>> lists = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            lists.computeIfAbsent(dayOf(i), k -> new ArrayList<>()).add(decodedEvent(i));
+        }
+        long held = usedHeap();
+        sink += lists.size();
+        lists = null;
+        long listBytes = held - usedHeap();
+
+        Map<LocalDate, List<Event>> packed = new HashMap<>();
+        PackedDay.Pool pool = new PackedDay.Pool();
+        for (int first = 0; first < size; first += EVENTS_PER_DAY) {
+            List<Event> day = new ArrayList<>(EVENTS_PER_DAY);
+            for (int i = first; i < Math.min(size, first + EVENTS_PER_DAY); i++) {
+                day.add(decodedEvent(i));
+            }
+            packed.put(dayOf(first), PackedDay.of(day, pool));
+        }
+        held = usedHeap();
+        sink += packed.size();
+        packed = null;
+        pool = null;
+        long packedBytes = held - usedHeap();
+        return new long[]{listBytes, packedBytes};
+    }
+
+    private static Event decodedEvent(int i) {
+        LocalTime start = LocalTime.of(8 + i % EVENTS_PER_DAY, i % 2 * 30);
+        return new Event("Event " + i, WORDS[i % WORDS.length] + " " + WORDS[i / WORDS.length % WORDS.length],
+                start, start.plusMinutes(45), false, false);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private LocalDate dayOf(int index) {
+        return FIRST_DAY.plusDays(index / EVENTS_PER_DAY);
+    }
+
+    private LocalDate randomDay() {
+        return FIRST_DAY.plusDays(random.nextInt(days));
+    }
+
+    private void report(String name, double score, String units) {
+        System.out.printf("%-22s %10d %14.2f  %s%n", name, size, score, units);
+    }
+
+    private static double average(double[] scores) {
+        return Arrays.stream(scores).average().orElse(0);
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
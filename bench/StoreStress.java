@@ -0,0 +1,264 @@
+import java.io.*;
+import java.nio.file.*;
+import java.time.*;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Stress check for the CalendarStore seqlock, run with "ant stress". Writer threads add and
+// remove groups of three events as single changes while reader threads read the same days
+// without the lock, and every read is checked rather than timed. It exits non-zero if any
+// check fails.
+//
+// Each change puts two events of a group on one day and the third on a day in a later month,
+// so a reader that sees part of a change sees a group with the wrong number of events in it.
+// Readers check that
+//   - every group in a read of the whole range has all three of its events,
+//   - every day read is in start order with no overlaps and no group split on it,
+//   - the version of a month never goes back, and
+//   - two reads of a month with no change to its version in between see the same events.
+// Writers check that each change they made can be read back.
+//
+//     -Dstress.writers=4      writer threads, each with its own half hours of the day
+//     -Dstress.readers=4      reader threads
+//     -Dstress.seconds=10     how long to run
+class StoreStress {
+    private static final LocalDate FIRST_DAY = LocalDate.of(2031, 1, 1);
+    // Days the first two events of a group go on; the third goes on the same day this much later.
+    private static final int DAYS = 60;
+    private static final int SLOTS = 48;
+    private static final int LIVE_GROUPS = 200;
+    private static final int MOVE_EVERY = 7;
+    private static final int MAX_FAILURES = 20;
+
+    private static final int WRITERS = Integer.getInteger("stress.writers", 4);
+    private static final int READERS = Integer.getInteger("stress.readers", 4);
+    private static final int SECONDS = Integer.getInteger("stress.seconds", 10);
+
+    private final CalendarStore store;
+    private final LocalDate last = FIRST_DAY.plusDays(2 * DAYS - 1);
+    private final AtomicBoolean stop = new AtomicBoolean();
+    private final Queue<String> failures = new ConcurrentLinkedQueue<>();
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong stableReads = new AtomicLong();
+    // The last month read twice at the same version, with what was read, for the others to match.
+    private final Map<YearMonth, Stable> stable = new ConcurrentHashMap<>();
+
+    private static class Stable {
+        final long version;
+        final String events;
+
+        Stable(long version, String events) {
+            this.version = version;
+            this.events = events;
+        }
+    }
+
+    private StoreStress(CalendarStore store) {
+        this.store = store;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int positions = SLOTS / WRITERS / 2;
+        if (positions * DAYS <= LIVE_GROUPS) {
+            throw new IllegalArgumentException("Too many writers for " + SLOTS + " half hours a day.");
+        }
+        Path dir = Files.createTempDirectory("calendar-stress");
+        boolean passed;
+        try (CalendarStore store = new CalendarStore(dir)) {
+            store.load();
+            passed = new StoreStress(store).run(positions);
+        } finally {
+            delete(dir);
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    private boolean run(int positions) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            threads.add(new Thread(() -> write(writer, positions), "stress-writer-" + w));
+        }
+        for (int r = 0; r < READERS; r++) {
+            Random random = new Random(r);
+            threads.add(new Thread(() -> read(random), "stress-reader-" + r));
+        }
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((t, e) -> {
+                fail(t.getName() + " died: " + e);
+                stop.set(true);
+            });
+            thread.start();
+        }
+        long deadline = System.nanoTime() + SECONDS * 1_000_000_000L;
+        while (!stop.get() && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        // with everything stopped, a last read must see whole groups only
+        checkRange(store.eventsBetween(FIRST_DAY, last));
+
+        System.out.printf("%d writers, %d readers, %d s: %d changes, %d reads, %d stable month reads compared%n",
+                WRITERS, READERS, SECONDS, changes.get(), reads.get(), stableReads.get());
+        if (changes.get() == 0 || reads.get() == 0 || stableReads.get() == 0) {
+            fail("Nothing was checked.");
+        }
+        for (String failure : failures) {
+            System.out.println("FAILED " + failure);
+        }
+        System.out.println(failures.isEmpty() ? "PASSED" : "FAILED");
+        return failures.isEmpty();
+    }
+
+    private void fail(String message) {
+        if (failures.size() < MAX_FAILURES) {
+            failures.add(message);
+        }
+    }
+
+    // Writer w owns the half hours from w * SLOTS / WRITERS on every day, which it hands out two
+    // at a time; a group is removed before its half hours come round again.
+    private void write(int writer, int positions) {
+        Deque<Long> live = new ArrayDeque<>();
+        for (int k = 0; !stop.get(); k++) {
+            LocalDate first = FIRST_DAY.plusDays(k % DAYS);
+            int slot = writer * (SLOTS / WRITERS) + 2 * (k / DAYS % positions);
+            long id = RecurrenceRule.newSeriesId();
+            SortedMap<LocalDate, List<Event>> group = new TreeMap<>();
+            group.put(first, List.of(event(id, "a", slot), event(id, "a", slot + 1)));
+            group.put(first.plusDays(DAYS), List.of(event(id, "b", slot)));
+            CalendarStore.Rejection rejection = (date, index, reason) -> fail("Group " + id + " rejected on " + date + ": " + reason);
+            if (live.size() >= LIVE_GROUPS && k % MOVE_EVERY == 0) {
+                // the oldest group goes and the new one comes as one change
+                long oldest = live.poll();
+                store.batch(() -> {
+                    store.removeSeries(oldest, FIRST_DAY);
+                    store.addEvents(group, FIRST_DAY, rejection);
+                });
+            } else {
+                if (live.size() >= LIVE_GROUPS) {
+                    store.removeSeries(live.poll(), FIRST_DAY);
+                    changes.incrementAndGet();
+                }
+                store.addEvents(group, FIRST_DAY, rejection);
+            }
+            live.add(id);
+            changes.incrementAndGet();
+            if (count(store.eventsOn(first), id) != 2 || count(store.eventsOn(first.plusDays(DAYS)), id) != 1) {
+                fail(Thread.currentThread().getName() + " cannot read back group " + id);
+            }
+        }
+    }
+
+    private static Event event(long id, String part, int slot) {
+        LocalTime start = LocalTime.MIN.plusMinutes(30L * slot);
+        Event event = new Event(id + "-" + part, "", start, start.plusMinutes(29), false, false);
+        event.seriesId = id;
+        return event;
+    }
+
+    private static int count(List<Event> dailyEvents, long id) {
+        int found = 0;
+        for (Event event : dailyEvents) {
+            if (event.seriesId == id) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    private void read(Random random) {
+        Map<YearMonth, Long> seen = new HashMap<>();
+        YearMonth firstMonth = YearMonth.from(FIRST_DAY);
+        int months = (int) firstMonth.until(YearMonth.from(last), ChronoUnit.MONTHS) + 1;
+        while (!stop.get()) {
+            checkRange(store.eventsBetween(FIRST_DAY, last));
+
+            LocalDate date = FIRST_DAY.plusDays(random.nextInt(2 * DAYS));
+            checkDay(date, store.eventsOn(date));
+
+            YearMonth month = firstMonth.plusMonths(random.nextInt(months));
+            long before = store.monthVersion(month);
+            String events = store.eventsBetween(month.atDay(1), month.atEndOfMonth()).toString();
+            long after = store.monthVersion(month);
+            long previous = seen.getOrDefault(month, Long.MIN_VALUE);
+            if (before < previous || after < before) {
+                fail("Version of " + month + " went back: " + previous + ", " + before + ", " + after);
+            }
+            seen.put(month, after);
+            if (before == after) {
+                compareStable(month, before, events);
+            }
+            reads.addAndGet(4);
+        }
+    }
+
+    // Every group in the range has all three of its events, and every day is whole.
+    private void checkRange(NavigableMap<LocalDate, List<Event>> range) {
+        Map<Long, Integer> groups = new HashMap<>();
+        for (Map.Entry<LocalDate, List<Event>> day : range.entrySet()) {
+            checkDay(day.getKey(), day.getValue());
+            for (Event event : day.getValue()) {
+                groups.merge(event.seriesId, 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<Long, Integer> group : groups.entrySet()) {
+            if (group.getValue() != 3) {
+                fail("Torn range: group " + group.getKey() + " has " + group.getValue() + " of 3 events");
+            }
+        }
+    }
+
+    private void checkDay(LocalDate date, List<Event> dailyEvents) {
+        for (int i = 1; i < dailyEvents.size(); i++) {
+            if (dailyEvents.get(i).startTime.isBefore(dailyEvents.get(i - 1).endTime)) {
+                fail("Day " + date + " out of order or overlapping: " + dailyEvents);
+                return;
+            }
+        }
+        Map<Long, Integer> firsts = new HashMap<>();
+        for (Event event : dailyEvents) {
+            if (event.title.endsWith("-a")) {
+                firsts.merge(event.seriesId, 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<Long, Integer> group : firsts.entrySet()) {
+            if (group.getValue() != 2) {
+                fail("Torn day " + date + ": group " + group.getKey() + " has " + group.getValue() + " of 2 events");
+            }
+        }
+    }
+
+    private void compareStable(YearMonth month, long version, String events) {
+        stable.compute(month, (m, known) -> {
+            if (known == null || version > known.version) {
+                return new Stable(version, events);
+            }
+            if (version == known.version) {
+                stableReads.incrementAndGet();
+                if (!events.equals(known.events)) {
+                    fail(month + " changed without its version changing from " + version);
+                }
+            }
+            return known;
+        });
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -2,73 +2,113 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.nio.file.*;
 import java.time.*;
 import java.time.format.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.text.SimpleDateFormat;
 
-class Event implements Serializable {
-    String title;
-    String data;
-    LocalTime startTime;
-    LocalTime endTime;
-    boolean isRecurringDaily;
-    boolean isRecurringWeekly;
-
-    public Event(String title, String data, LocalTime startTime, LocalTime endTime, boolean isRecurringDaily, boolean isRecurringWeekly) {
-        this.title = title;
-        this.data = data;
-        this.startTime = startTime;
-        this.endTime = endTime;
-        this.isRecurringDaily = isRecurringDaily;
-        this.isRecurringWeekly = isRecurringWeekly;
-    }
-
-    @Override
-    public String toString() {
-        return title + " (" + startTime + " - " + endTime + ")" +
-                (isRecurringDaily ? " [Daily]" : "") +
-                (isRecurringWeekly ? " [Weekly]" : "")+
-                (data.isEmpty() ? "" : " [" + data + "]");
-    }
-}
-
 public class CalendarApp extends JFrame {
+    private static final DateTimeFormatter MONTH_TITLE = DateTimeFormatter.ofPattern("yyyy MMMM", Locale.ENGLISH);
+    private static final long LAUNCH_NANOS = System.nanoTime();
+    private static final long FIRST_PAINT_TARGET_MS = Long.getLong("calendar.ttfp.target.ms", 250);
+    private static final int SEARCH_PAGE_SIZE = 50;
+    private static final int LIST_CACHE_SIZE = 8;
+    private static final String PROTOTYPE_ROW = "- Weekly planning meeting (10:00 - 11:00) [Weekly]";
+    private static final Duration REMINDER_LEAD = Duration.ofMinutes(Long.getLong("calendar.reminder.minutes", 10));
+    private static final Metrics.Timer GRID_UPDATES = Metrics.timer("view.updateCalendar");
+    private static final Metrics.Timer LIST_BUILDS = Metrics.timer("view.listBuild");
+    private static final Metrics.Timer FIRST_PAINT = Metrics.timer("view.firstPaint");
+
     private JPanel calendarPanel;
-    private JButton[][] dayButtons;
-    private JTextArea eventArea;
+    private JLabel titleLabel;
+    private CalendarGrid calendarGrid;
+    private JToggleButton yearViewButton;
+    private JList<Object> eventList;
+    // The lists last shown, by title, so switching views or dates back and forth does not
+    // rebuild them while nothing in their range has changed.
+    private final Map<String, EventListModel> listModels = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, EventListModel> eldest) {
+            return size() > LIST_CACHE_SIZE;
+        }
+    };
+    private EventListModel searchResults;
+    private JTextField searchField;
+    private JButton moreResultsButton;
+    private int searchShown;
     private JComboBox<String> viewComboBox;
-    private JButton addEventButton, editEventButton, deleteEventButton;
-    private JButton setPresentDateButton, setDayOffButton;
-    private Map<LocalDate, List<Event>> events;
-    private Set<LocalDate> daysOff;
+    private JButton addEventButton, editEventButton, deleteEventButton, batchEditButton;
+    private JButton setPresentDateButton, setDayOffButton, holidaysButton, findSlotButton, importButton, reportButton;
+    private JButton undoButton, redoButton;
+    private final CalendarStore store = new CalendarStore(Paths.get(""), SwingUtilities::invokeLater);
+    private ReminderScheduler reminders;
+    private CalendarServer server;
+    private final Utilization utilization = new Utilization(store);
+    private final AtomicBoolean refreshQueued = new AtomicBoolean();
     private LocalDate selectedDate;
-    private LocalDate presentDate;
+    // Also read by the HTTP interface's threads.
+    private volatile LocalDate presentDate;
+    private YearMonth displayedMonth;
+    private boolean firstPaintLogged;
 
     public CalendarApp() {
-        events = new HashMap<>();
-        daysOff = new HashSet<>();
-        selectedDate = LocalDate.of(2024, 7, 1);
-        presentDate = LocalDate.of(2024, 7, 1);
+        selectedDate = LocalDate.now();
+        presentDate = LocalDate.now();
+        displayedMonth = YearMonth.from(selectedDate);
 
-        setTitle("July 2024 Calendar");
+        updateTitle();
         setSize(800, 600);
-        setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        setDefaultCloseOperation(JFrame.DO_NOTHING_ON_CLOSE);
         setLayout(new BorderLayout());
 
         createCalendarPanel();
         createControlPanel();
         createEventPanel();
-
-        loadEvents();
+        setEditingEnabled(false);
 
         addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent e) {
-                saveEvents();
+                closeStore();
             }
         });
+
+        loadEvents();
+    }
+
+    @Override
+    public void paint(Graphics g) {
+        super.paint(g);
+        if (!firstPaintLogged) {
+            firstPaintLogged = true;
+            long elapsed = System.nanoTime() - LAUNCH_NANOS;
+            FIRST_PAINT.record(elapsed);
+            // only printed when a target was asked for, or with the metrics on
+            if (System.getProperty("calendar.ttfp.target.ms") != null || Metrics.ENABLED) {
+                long elapsedMs = elapsed / 1_000_000;
+                System.err.println("Time to first paint: " + elapsedMs + " ms (target " + FIRST_PAINT_TARGET_MS + " ms)"
+                        + (elapsedMs > FIRST_PAINT_TARGET_MS ? " - over target" : ""));
+            }
+        }
+    }
+
+    // Changes made before the journal is open would not be saved, so the editing controls
+    // stay disabled until loading has finished.
+    private void setEditingEnabled(boolean enabled) {
+        addEventButton.setEnabled(enabled);
+        editEventButton.setEnabled(enabled);
+        deleteEventButton.setEnabled(enabled);
+        batchEditButton.setEnabled(enabled);
+        setDayOffButton.setEnabled(enabled);
+        holidaysButton.setEnabled(enabled);
+        findSlotButton.setEnabled(enabled);
+        importButton.setEnabled(enabled);
+        reportButton.setEnabled(enabled);
+        undoButton.setEnabled(enabled && store.canUndo());
+        redoButton.setEnabled(enabled && store.canRedo());
     }
 
     private void createCalendarPanel() {
@@ -77,39 +117,62 @@ public class CalendarApp extends JFrame {
     
     calendarPanel.add(Box.createVerticalStrut(10));
     
-    JLabel titleLabel = new JLabel("2024 July", SwingConstants.CENTER);
-    titleLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
+    JPanel titlePanel = new JPanel(new BorderLayout());
+    JButton previousButton = new JButton("<");
+    previousButton.addActionListener(e -> showMonth(calendarGrid.isYearView() ? displayedMonth.minusYears(1) : displayedMonth.minusMonths(1)));
+    JButton nextButton = new JButton(">");
+    nextButton.addActionListener(e -> showMonth(calendarGrid.isYearView() ? displayedMonth.plusYears(1) : displayedMonth.plusMonths(1)));
+    yearViewButton = new JToggleButton("Year");
+    yearViewButton.addActionListener(e -> showMonth(displayedMonth));
+    JPanel navigationPanel = new JPanel(new BorderLayout());
+    navigationPanel.add(yearViewButton, BorderLayout.WEST);
+    navigationPanel.add(nextButton, BorderLayout.EAST);
+    titleLabel = new JLabel(displayedMonth.format(MONTH_TITLE), SwingConstants.CENTER);
     titleLabel.setFont(new Font("", Font.BOLD, 24));
-    calendarPanel.add(titleLabel);
-    
-    JPanel daysPanel = new JPanel(new GridLayout(6, 7));
-    dayButtons = new JButton[5][7];
-    
-    String[] dayNames = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
-    for (String dayName : dayNames) {
-        JLabel dayLabel = new JLabel(dayName, SwingConstants.CENTER);
-        daysPanel.add(dayLabel);
-    }
-
-    for (int i = 0; i < 5; i++) {
-        for (int j = 0; j < 7; j++) {
-            dayButtons[i][j] = new JButton();
-            dayButtons[i][j].addActionListener(e -> {
-                JButton source = (JButton) e.getSource();
-                if (!source.getText().isEmpty()) {
-                    selectedDate = LocalDate.of(2024, 7, Integer.parseInt(source.getText()));
-                    updateEventArea();
-                }
-            });
-            daysPanel.add(dayButtons[i][j]);
+    titlePanel.add(previousButton, BorderLayout.WEST);
+    titlePanel.add(titleLabel, BorderLayout.CENTER);
+    titlePanel.add(navigationPanel, BorderLayout.EAST);
+    titlePanel.setMaximumSize(new Dimension(Integer.MAX_VALUE, titlePanel.getPreferredSize().height));
+    calendarPanel.add(titlePanel);
+
+    calendarGrid = new CalendarGrid(store);
+    calendarGrid.showMonth(displayedMonth);
+    calendarGrid.addDayListener(date -> {
+        selectedDate = date;
+        if (!YearMonth.from(date).equals(displayedMonth)) {
+            displayedMonth = YearMonth.from(date);
+            updateTitle();
         }
-    }
-    
+        calendarGrid.setSelected(date);
+        updateEventArea();
+    });
+
     updateCalendar();
-    calendarPanel.add(daysPanel);
+    calendarPanel.add(calendarGrid);
     add(calendarPanel, BorderLayout.CENTER);
 }
 
+    private void showMonth(YearMonth month) {
+        displayedMonth = month;
+        selectedDate = month.atDay(Math.min(selectedDate.getDayOfMonth(), month.lengthOfMonth()));
+        if (yearViewButton.isSelected()) {
+            titleLabel.setText(String.valueOf(month.getYear()));
+            calendarGrid.showYear(month.getYear());
+        } else {
+            titleLabel.setText(month.format(MONTH_TITLE));
+            calendarGrid.showMonth(month);
+        }
+        updateTitle();
+        updateCalendar();
+        updateEventArea();
+        store.prefetchMonth(month.minusMonths(1));
+        store.prefetchMonth(month.plusMonths(1));
+    }
+
+    private void updateTitle() {
+        setTitle(displayedMonth.format(DateTimeFormatter.ofPattern("MMMM yyyy", Locale.ENGLISH)) + " Calendar"
+                + (store.isLoaded() ? "" : " (loading...)"));
+    }
 
     private void createControlPanel() {
         JPanel controlPanel = new JPanel();
@@ -117,7 +180,7 @@ public class CalendarApp extends JFrame {
         viewComboBox.addActionListener(e -> updateEventArea());
 
         addEventButton = new JButton("Add Event");
-        addEventButton.addActionListener(e -> addEvent());
+        addEventButton.addActionListener(e -> addEvent(null, null));
 
         editEventButton = new JButton("Edit Event");
         editEventButton.addActionListener(e -> editEvent());
@@ -125,134 +188,200 @@ public class CalendarApp extends JFrame {
         deleteEventButton = new JButton("Delete Event");
         deleteEventButton.addActionListener(e -> deleteEvent());
 
+        batchEditButton = new JButton("Batch Edit");
+        batchEditButton.addActionListener(e -> batchEdit());
+
         setPresentDateButton = new JButton("Set Present Date");
         setPresentDateButton.addActionListener(e -> setPresentDate());
 
         setDayOffButton = new JButton("Set/Unset Day Off");
         setDayOffButton.addActionListener(e -> toggleDayOff());
 
+        holidaysButton = new JButton("Holidays");
+        holidaysButton.addActionListener(e -> editHolidays());
+
+        findSlotButton = new JButton("Find Free Slot");
+        findSlotButton.addActionListener(e -> findFreeSlot());
+
+        importButton = new JButton("Import");
+        importButton.addActionListener(e -> importEvents());
+
+        reportButton = new JButton("Report");
+        reportButton.addActionListener(e -> showReport());
+
+        undoButton = new JButton("Undo");
+        undoButton.addActionListener(e -> undo(true));
+        redoButton = new JButton("Redo");
+        redoButton.addActionListener(e -> undo(false));
+        bindKey(KeyStroke.getKeyStroke(KeyEvent.VK_Z, InputEvent.CTRL_DOWN_MASK), "undo", undoButton);
+        bindKey(KeyStroke.getKeyStroke(KeyEvent.VK_Y, InputEvent.CTRL_DOWN_MASK), "redo", redoButton);
+
         controlPanel.add(viewComboBox);
         controlPanel.add(addEventButton);
         controlPanel.add(editEventButton);
         controlPanel.add(deleteEventButton);
+        controlPanel.add(batchEditButton);
         controlPanel.add(setPresentDateButton);
         controlPanel.add(setDayOffButton);
+        controlPanel.add(holidaysButton);
+        controlPanel.add(findSlotButton);
+        controlPanel.add(importButton);
+        controlPanel.add(reportButton);
+        controlPanel.add(undoButton);
+        controlPanel.add(redoButton);
 
         add(controlPanel, BorderLayout.NORTH);
     }
 
+    private void bindKey(KeyStroke key, String name, JButton button) {
+        getRootPane().getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(key, name);
+        getRootPane().getActionMap().put(name, new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (button.isEnabled()) {
+                    button.doClick();
+                }
+            }
+        });
+    }
+
+    private void undo(boolean undo) {
+        if (undo ? store.undo() : store.redo()) {
+            refreshViews();
+        }
+    }
+
     private void createEventPanel() {
-        eventArea = new JTextArea();
-        eventArea.setEditable(false);
-        JScrollPane scrollPane = new JScrollPane(eventArea);
-        add(scrollPane, BorderLayout.SOUTH);
+        JPanel eventPanel = new JPanel(new BorderLayout());
+
+        JPanel searchPanel = new JPanel(new BorderLayout());
+        searchField = new JTextField();
+        searchField.getDocument().addDocumentListener(new javax.swing.event.DocumentListener() {
+            @Override
+            public void insertUpdate(javax.swing.event.DocumentEvent e) {
+                updateEventArea();
+            }
+
+            @Override
+            public void removeUpdate(javax.swing.event.DocumentEvent e) {
+                updateEventArea();
+            }
+
+            @Override
+            public void changedUpdate(javax.swing.event.DocumentEvent e) {
+                updateEventArea();
+            }
+        });
+        moreResultsButton = new JButton("More");
+        moreResultsButton.setEnabled(false);
+        moreResultsButton.addActionListener(e -> appendSearchResults());
+        searchPanel.add(new JLabel("Search: "), BorderLayout.WEST);
+        searchPanel.add(searchField, BorderLayout.CENTER);
+        searchPanel.add(moreResultsButton, BorderLayout.EAST);
+
+        // A prototype row gives every row the same size, so the list only ever renders the
+        // rows in view instead of measuring all of them.
+        eventList = new JList<>();
+        eventList.setCellRenderer(new EventListModel.Renderer());
+        eventList.setPrototypeCellValue(PROTOTYPE_ROW);
+        eventList.setVisibleRowCount(8);
+        JScrollPane scrollPane = new JScrollPane(eventList);
+        eventPanel.add(searchPanel, BorderLayout.NORTH);
+        eventPanel.add(scrollPane, BorderLayout.CENTER);
+        add(eventPanel, BorderLayout.SOUTH);
     }
 
     private void updateCalendar() {
-        LocalDate date = LocalDate.of(2024, 7, 1);
-        int dayOfWeek = date.getDayOfWeek().getValue() % 7;
-
-        for (int i = 0; i < 5; i++) {
-            for (int j = 0; j < 7; j++) {
-                if (i == 0 && j < dayOfWeek) {
-                    dayButtons[i][j].setText("");
-                    dayButtons[i][j].setEnabled(false);
-                } else if (date.getMonthValue() == 7) {
-                    dayButtons[i][j].setText(String.valueOf(date.getDayOfMonth()));
-                    dayButtons[i][j].setEnabled(true);
-                    if (daysOff.contains(date)) {
-                        events.remove(date);
-                        dayButtons[i][j].setBackground(Color.RED);
-                    } else if (date.getDayOfWeek() == DayOfWeek.SATURDAY || date.getDayOfWeek() == DayOfWeek.SUNDAY) {
-                        if (events.containsKey(date)) {
-                        dayButtons[i][j].setBackground(Color.YELLOW);
-                        }
-                        else {
-                        dayButtons[i][j].setBackground(Color.LIGHT_GRAY);
-                        }
-                    } else if (events.containsKey(date)) {
-                        dayButtons[i][j].setBackground(Color.GREEN);
-                    } else {
-                        dayButtons[i][j].setBackground(null);
-                    }
-                    if (date.isBefore(presentDate)) {
-                        dayButtons[i][j].setEnabled(false);
-                    }
-                    date = date.plusDays(1);
-                } else {
-                    dayButtons[i][j].setText("");
-                    dayButtons[i][j].setEnabled(false);
-                }
-            }
+        long started = GRID_UPDATES.start();
+        calendarGrid.setPresentDate(presentDate);
+        calendarGrid.setSelected(selectedDate);
+        calendarGrid.refresh();
+        if (store.isLoaded()) {
+            undoButton.setEnabled(store.canUndo());
+            redoButton.setEnabled(store.canRedo());
         }
+        GRID_UPDATES.stop(started);
     }
 
     private void updateEventArea() {
-        eventArea.setText("");
+        if (!searchField.getText().isBlank()) {
+            searchShown = 0;
+            searchResults = new EventListModel("Events matching \"" + searchField.getText().trim() + "\":");
+            eventList.setModel(searchResults);
+            appendSearchResults();
+            return;
+        }
+        moreResultsButton.setEnabled(false);
         String viewType = (String) viewComboBox.getSelectedItem();
 
         switch (viewType) {
             case "Daily":
-                displayDailyView();
+                showList("Events for " + selectedDate + ":", selectedDate, selectedDate);
                 break;
             case "Weekly":
-                displayWeeklyView();
+                LocalDate startOfWeek = selectedDate.with(DayOfWeek.MONDAY);
+                LocalDate endOfWeek = startOfWeek.plusDays(6);
+                showList("Events for week of " + startOfWeek + " to " + endOfWeek + ":", startOfWeek, endOfWeek);
                 break;
             case "Monthly":
-                displayMonthlyView();
+                showList("Events for " + displayedMonth.format(DateTimeFormatter.ofPattern("MMMM yyyy", Locale.ENGLISH)) + ":",
+                        displayedMonth.atDay(1), displayedMonth.atEndOfMonth());
                 break;
         }
     }
 
-    private void displayDailyView() {
-        List<Event> dailyEvents = events.getOrDefault(selectedDate, new ArrayList<>());
-        eventArea.append("Events for " + selectedDate + ":\n");
-        for (Event event : dailyEvents) {
-            eventArea.append("- " + event + "\n");
+    private void showList(String title, LocalDate from, LocalDate to) {
+        List<MonthModel> months = new ArrayList<>(2);
+        for (YearMonth month = YearMonth.from(from); !month.isAfter(YearMonth.from(to)); month = month.plusMonths(1)) {
+            months.add(store.monthModel(month));
         }
-    }
-
-    private void displayWeeklyView() {
-        LocalDate startOfWeek = selectedDate.with(DayOfWeek.MONDAY);
-        LocalDate endOfWeek = startOfWeek.plusDays(6);
-
-        eventArea.append("Events for week of " + startOfWeek + " to " + endOfWeek + ":\n");
-        for (LocalDate date = startOfWeek; !date.isAfter(endOfWeek); date = date.plusDays(1)) {
-            List<Event> dailyEvents = events.getOrDefault(date, new ArrayList<>());
-            if (!dailyEvents.isEmpty()) {
-                eventArea.append(date + ":\n");
-                for (Event event : dailyEvents) {
-                    eventArea.append("- " + event + "\n");
-                }
-            }
+        EventListModel model = listModels.get(title);
+        if (model == null || !model.isBuiltFrom(months)) {
+            long started = LIST_BUILDS.start();
+            model = EventListModel.forRange(title, months, from, to);
+            listModels.put(title, model);
+            LIST_BUILDS.stop(started);
         }
-    }
-
-    private void displayMonthlyView() {
-        eventArea.append("Events for July 2024:\n");
-        for (LocalDate date = LocalDate.of(2024, 7, 1); date.getMonthValue() == 7; date = date.plusDays(1)) {
-            List<Event> dailyEvents = events.getOrDefault(date, new ArrayList<>());
-            if (!dailyEvents.isEmpty()) {
-                eventArea.append(date + ":\n");
-                for (Event event : dailyEvents) {
-                    eventArea.append("- " + event + "\n");
-                }
-            }
+        if (eventList.getModel() != model) {
+            eventList.setModel(model);
         }
     }
 
-    private void addEvent() {
-        if (daysOff.contains(selectedDate)) {
-            JOptionPane.showMessageDialog(this, "Cannot add events on dayoffs.", "Error", JOptionPane.ERROR_MESSAGE);
+    // Shows the next page of search results. Each page is read from a fresh search, so results
+    // always reflect the latest changes, and the stream stops after the page.
+    private void appendSearchResults() {
+        if (!store.isLoaded()) {
+            searchResults.addAll(List.of("(still loading)"));
+            moreResultsButton.setEnabled(false);
             return;
         }
+        List<SearchHit> page = store.search(searchField.getText(), LocalDate.MIN)
+                .skip(searchShown)
+                .limit(SEARCH_PAGE_SIZE + 1)
+                .collect(java.util.stream.Collectors.toList());
+        if (page.isEmpty() && searchShown == 0 && !store.isSearchReady()) {
+            searchResults.addAll(List.of("(still indexing, search again in a moment)"));
+            moreResultsButton.setEnabled(false);
+            return;
+        }
+        boolean more = page.size() > SEARCH_PAGE_SIZE;
+        searchResults.addAll(more ? page.subList(0, SEARCH_PAGE_SIZE) : page);
+        searchShown += Math.min(page.size(), SEARCH_PAGE_SIZE);
+        if (searchShown == 0) {
+            searchResults.addAll(List.of("No events found."));
+        }
+        moreResultsButton.setEnabled(more);
+    }
 
-        if (selectedDate.isBefore(presentDate)) {
-            JOptionPane.showMessageDialog(this, "Cannot add events for past dates.", "Error", JOptionPane.ERROR_MESSAGE);
+    // Opens the Add Event dialog for the selected date, with the times preset if given.
+    private void addEvent(LocalTime presetStart, LocalTime presetEnd) {
+        String rejected = store.checkDate(selectedDate, presentDate);
+        if (rejected != null) {
+            JOptionPane.showMessageDialog(this, rejected, "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
 
-        if (selectedDate.getDayOfWeek() == DayOfWeek.SATURDAY || selectedDate.getDayOfWeek() == DayOfWeek.SUNDAY) {
+        if (store.workingCalendar().isWeekend(selectedDate)) {
             int choice = JOptionPane.showConfirmDialog(this,
                     "This is a weekend day. Do you want to add an event anyway?",
                     "Weekend Warning",
@@ -278,6 +407,10 @@ public class CalendarApp extends JFrame {
             timeComboBox2.addItem(timeFormat.format(calendar.getTime()));
             calendar.add(Calendar.MINUTE, 30);
         }
+        if (presetStart != null) {
+            timeComboBox1.setSelectedItem(presetStart.toString());
+            timeComboBox2.setSelectedItem(presetEnd.toString());
+        }
         JCheckBox recurDailyBox = new JCheckBox("Recur Daily");
         JCheckBox recurWeeklyBox = new JCheckBox("Recur Weekly");
 
@@ -303,77 +436,380 @@ public class CalendarApp extends JFrame {
             boolean isRecurringDaily = recurDailyBox.isSelected();
             boolean isRecurringWeekly = recurWeeklyBox.isSelected();
 
-            if (title.isEmpty() || startTime.equals(endTime) || endTime.isBefore(startTime)) {
-                JOptionPane.showMessageDialog(this, "Invalid event details.", "Error", JOptionPane.ERROR_MESSAGE);
-                return;
-            }
-
             Event newEvent = new Event(title, data, startTime, endTime, isRecurringDaily, isRecurringWeekly);
 
-            if (isEventOverlapping(newEvent, selectedDate)) {
-                JOptionPane.showMessageDialog(this, "This event overlaps with an existing event.", "Error", JOptionPane.ERROR_MESSAGE);
+            rejected = store.checkEvent(selectedDate, newEvent, null);
+            if (rejected != null) {
+                JOptionPane.showMessageDialog(this, rejected, "Error", JOptionPane.ERROR_MESSAGE);
                 return;
             }
 
-            events.computeIfAbsent(selectedDate, k -> new ArrayList<>()).add(newEvent);
-
             if (isRecurringDaily || isRecurringWeekly) {
                 addRecurringEvent(newEvent, isRecurringDaily, isRecurringWeekly);
+            } else {
+                store.addEvent(selectedDate, newEvent);
             }
 
-            events.get(selectedDate).sort(Comparator.comparing(e -> e.startTime));
             updateEventArea();
             updateCalendar();
         }
     }
 
-    private boolean isEventOverlapping(Event newEvent, LocalDate thisDate) {
-        List<Event> dailyEvents = events.getOrDefault(thisDate, new ArrayList<>());
-        for (Event existingEvent : dailyEvents) {
-            if (!(newEvent.endTime.isBefore(existingEvent.startTime) || newEvent.startTime.isAfter(existingEvent.endTime))) {
-                return true;
-            }
+    private void addRecurringEvent(Event event, boolean isRecurringDaily, boolean isRecurringWeekly) {
+        RecurrenceRule rule = askRecurrence(event, isRecurringDaily, isRecurringWeekly);
+        if (rule == null) {
+            store.addEvent(selectedDate, event);
+            return;
         }
-        return false;
+        reportClashes(store.addSeries(rule));
     }
 
-    private void addRecurringEvent(Event event, boolean isRecurringDaily, boolean isRecurringWeekly) {
-        LocalDate currentDate = selectedDate.plusDays(1);
+    // Asks how the series should run, or returns null if the event should be added just once.
+    private RecurrenceRule askRecurrence(Event event, boolean isRecurringDaily, boolean isRecurringWeekly) {
         int choice = JOptionPane.showConfirmDialog(this,
                     "Do you want to add this event indcluding weekends?",
                     "Event adding Warning",
                     JOptionPane.YES_NO_OPTION);
-            if (choice == JOptionPane.NO_OPTION) {
-                while (currentDate.getMonthValue() == 7 && currentDate.getYear() == 2024) {
-                if (isRecurringDaily || (isRecurringWeekly && currentDate.getDayOfWeek() == selectedDate.getDayOfWeek())) {
-                    if ((currentDate.getDayOfWeek() != DayOfWeek.SATURDAY && currentDate.getDayOfWeek() != DayOfWeek.SUNDAY) && !daysOff.contains(currentDate)) {
-                        if (!isEventOverlapping(event, currentDate)) {
-                            events.computeIfAbsent(currentDate, k -> new ArrayList<>()).add(event);
-                            events.get(currentDate).sort(Comparator.comparing(e -> e.startTime));
-                        }
-                    }
-                }
-                currentDate = currentDate.plusDays(1);
+        if (choice != JOptionPane.YES_OPTION && choice != JOptionPane.NO_OPTION) {
+            return null;
+        }
+
+        String input = JOptionPane.showInputDialog(this,
+                "End date (yyyy-MM-dd) or number of occurrences. Leave empty for no end:");
+        LocalDate until = null;
+        int count = 0;
+        if (input != null && !input.isBlank()) {
+            try {
+                if (input.trim().chars().allMatch(Character::isDigit)) {
+                    count = Integer.parseInt(input.trim());
+                } else {
+                    until = LocalDate.parse(input.trim());
                 }
+            } catch (DateTimeParseException | NumberFormatException e) {
+                JOptionPane.showMessageDialog(this, "Invalid end, the series will not end.", "Warning", JOptionPane.WARNING_MESSAGE);
             }
-            if (choice ==JOptionPane.YES_OPTION) {
-                while (currentDate.getMonthValue() == 7 && currentDate.getYear() == 2024) {
-                if (isRecurringDaily || (isRecurringWeekly && currentDate.getDayOfWeek() == selectedDate.getDayOfWeek())) {
-                    if (!daysOff.contains(currentDate)) {
-                        if (!isEventOverlapping(event, currentDate)) {
-                            events.computeIfAbsent(currentDate, k -> new ArrayList<>()).add(event);
-                            events.get(currentDate).sort(Comparator.comparing(e -> e.startTime));
-                        }
-                    }
+        }
+
+        RecurrenceRule.Frequency frequency = isRecurringDaily ? RecurrenceRule.Frequency.DAILY : RecurrenceRule.Frequency.WEEKLY;
+        return new RecurrenceRule(event, selectedDate, frequency, choice == JOptionPane.NO_OPTION, true, until, count,
+                store.workingCalendar());
+    }
+
+    private void reportClashes(Map<LocalDate, List<Event>> clashes) {
+        if (!clashes.isEmpty()) {
+            JOptionPane.showMessageDialog(this,
+                    clashes.size() + " occurrence(s) overlap existing events and were skipped, first on " + clashes.keySet().iterator().next() + ".",
+                    "Overlapping Occurrences", JOptionPane.INFORMATION_MESSAGE);
+        }
+    }
+
+    // Looks for the earliest gaps of a chosen length and opens Add Event on the one picked.
+    // With "same time on every day" it looks for a time free on all days of the range instead,
+    // for setting up a recurring event.
+    private void findFreeSlot() {
+        JPanel panel = new JPanel(new GridLayout(0, 1));
+        JComboBox<String> lengthComboBox = new JComboBox<>();
+        for (int minutes = DaySchedule.SLOT_MINUTES; minutes <= 8 * 60; minutes += DaySchedule.SLOT_MINUTES) {
+            lengthComboBox.addItem(String.format("%d:%02d", minutes / 60, minutes % 60));
+        }
+        lengthComboBox.setSelectedIndex(1);
+        LocalDate first = selectedDate.isBefore(presentDate) ? presentDate : selectedDate;
+        JTextField fromField = new JTextField(first.toString(), 10);
+        JTextField toField = new JTextField(first.plusWeeks(2).toString(), 10);
+        JComboBox<String> dayStartComboBox = new JComboBox<>();
+        JComboBox<String> dayEndComboBox = new JComboBox<>();
+        for (int slot = 0; slot < DaySchedule.SLOTS_PER_DAY; slot++) {
+            dayStartComboBox.addItem(DaySchedule.slotTime(slot).toString());
+            dayEndComboBox.addItem(DaySchedule.slotTime(slot).toString());
+        }
+        dayStartComboBox.setSelectedItem("08:00");
+        dayEndComboBox.setSelectedItem("18:00");
+        JCheckBox skipWeekendsBox = new JCheckBox("Skip weekends", true);
+        JCheckBox everyDayBox = new JCheckBox("Same time on every day");
+
+        panel.add(new JLabel("Length (h:mm):"));
+        panel.add(lengthComboBox);
+        panel.add(new JLabel("From (yyyy-MM-dd):"));
+        panel.add(fromField);
+        panel.add(new JLabel("To (yyyy-MM-dd):"));
+        panel.add(toField);
+        panel.add(new JLabel("Not before:"));
+        panel.add(dayStartComboBox);
+        panel.add(new JLabel("Not after:"));
+        panel.add(dayEndComboBox);
+        panel.add(skipWeekendsBox);
+        panel.add(everyDayBox);
+
+        int result = JOptionPane.showConfirmDialog(null, panel, "Find Free Slot",
+                JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+        if (result != JOptionPane.OK_OPTION) {
+            return;
+        }
+
+        LocalDate from, to;
+        try {
+            from = LocalDate.parse(fromField.getText().trim());
+            to = LocalDate.parse(toField.getText().trim());
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Invalid date format. Please use yyyy-MM-dd.", "Error", JOptionPane.ERROR_MESSAGE);
+            return;
+        }
+        if (from.isBefore(presentDate)) {
+            from = presentDate;
+        }
+        Duration length = Duration.ofMinutes((long) (lengthComboBox.getSelectedIndex() + 1) * DaySchedule.SLOT_MINUTES);
+        LocalTime dayStart = LocalTime.parse((String) dayStartComboBox.getSelectedItem());
+        LocalTime dayEnd = LocalTime.parse((String) dayEndComboBox.getSelectedItem());
+
+        if (everyDayBox.isSelected()) {
+            List<LocalTime> starts = store.findCommonSlots(from, to, length, dayStart, dayEnd, skipWeekendsBox.isSelected());
+            if (starts.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "No time is free on every day in that range.", "Find Free Slot", JOptionPane.INFORMATION_MESSAGE);
+                return;
+            }
+            String[] options = new String[starts.size()];
+            for (int i = 0; i < options.length; i++) {
+                options[i] = starts.get(i) + " - " + starts.get(i).plus(length);
+            }
+            String choice = (String) JOptionPane.showInputDialog(this,
+                    "Free on every day from " + from + " to " + to + ":",
+                    "Find Free Slot",
+                    JOptionPane.QUESTION_MESSAGE,
+                    null,
+                    options,
+                    options[0]);
+            if (choice != null) {
+                LocalTime start = starts.get(Arrays.asList(options).indexOf(choice));
+                openAddEvent(from, start, start.plus(length));
+            }
+            return;
+        }
+
+        List<FreeSlot> slots = store.findFreeSlots(from, to, length, dayStart, dayEnd, skipWeekendsBox.isSelected(), 20);
+        if (slots.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No free slot of that length in that range.", "Find Free Slot", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+        FreeSlot slot = (FreeSlot) JOptionPane.showInputDialog(this,
+                "Earliest free slots:",
+                "Find Free Slot",
+                JOptionPane.QUESTION_MESSAGE,
+                null,
+                slots.toArray(),
+                slots.get(0));
+        if (slot != null) {
+            openAddEvent(slot.date, slot.startTime, slot.endTime);
+        }
+    }
+
+    private void openAddEvent(LocalDate date, LocalTime start, LocalTime end) {
+        selectedDate = date;
+        showMonth(YearMonth.from(date));
+        addEvent(start, end);
+    }
+
+    // The file is read and parsed on a background thread; the store takes the parsed events
+    // on the EDT a few thousand days at a time, so the window keeps painting the progress, and
+    // the calendar is redrawn once at the end. Rows that could not be added are listed in a
+    // report next to the file.
+    private void importEvents() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Calendar files (*.ics, *.csv)", "ics", "csv"));
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        Path file = chooser.getSelectedFile().toPath();
+        Path rejectsFile = file.resolveSibling(file.getFileName() + ".rejects.txt");
+        LocalDate importPresentDate = presentDate;
+
+        JProgressBar progressBar = new JProgressBar(0, 1000);
+        progressBar.setStringPainted(true);
+        progressBar.setString("Reading " + file.getFileName());
+        JDialog progressDialog = new JDialog(this, "Import", false);
+        progressDialog.add(progressBar);
+        progressDialog.setSize(360, 70);
+        progressDialog.setLocationRelativeTo(this);
+        progressDialog.setDefaultCloseOperation(JDialog.DO_NOTHING_ON_CLOSE);
+        progressDialog.setVisible(true);
+        setEditingEnabled(false);
+
+        Thread importThread = new Thread(() -> {
+            EventImporter importer = new EventImporter(store, SwingUtilities::invokeLater);
+            EventImporter.Report report = null;
+            IOException failure = null;
+            try (Writer rejects = Files.newBufferedWriter(rejectsFile)) {
+                report = importer.importFile(file, importPresentDate, rejects, (bytesRead, totalBytes, rowsRead) ->
+                        SwingUtilities.invokeLater(() -> {
+                            progressBar.setValue(totalBytes == 0 ? 1000 : (int) (bytesRead * 1000 / totalBytes));
+                            progressBar.setString(rowsRead + " events read");
+                        }));
+            } catch (IOException e) {
+                e.printStackTrace();
+                failure = e;
+            }
+            EventImporter.Report done = report;
+            IOException error = failure;
+            SwingUtilities.invokeLater(() -> {
+                progressDialog.dispose();
+                setEditingEnabled(true);
+                refreshViews();
+                if (error != null) {
+                    JOptionPane.showMessageDialog(this, "Error importing events: " + error.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                } else if (done.rejected > 0) {
+                    JOptionPane.showMessageDialog(this, done + ".\nThe rejected rows are listed in " + rejectsFile.getFileName() + ".",
+                            "Import", JOptionPane.WARNING_MESSAGE);
+                } else {
+                    JOptionPane.showMessageDialog(this, done + ".", "Import", JOptionPane.INFORMATION_MESSAGE);
                 }
-                currentDate = currentDate.plusDays(1);
+            });
+        }, "calendar-import-reader");
+        importThread.setDaemon(true);
+        importThread.start();
+    }
+
+    // Booked time over the months with stored events, or this year if there are none. The
+    // report is made on a background thread; Update makes it again, scanning only the months
+    // changed since, and Export writes the one shown as CSV.
+    private void showReport() {
+        NavigableSet<YearMonth> stored = store.storedMonths();
+        YearMonth first = stored.isEmpty() ? Year.from(presentDate).atMonth(1) : stored.first();
+        YearMonth last = stored.isEmpty() ? Year.from(presentDate).atMonth(12) : stored.last();
+        JTextField fromField = new JTextField(first.toString(), 7);
+        JTextField toField = new JTextField(last.toString(), 7);
+        JButton updateButton = new JButton("Update");
+        JButton exportButton = new JButton("Export CSV...");
+        JLabel statusLabel = new JLabel();
+        JTabbedPane tabs = new JTabbedPane();
+        Utilization.Report[] shown = new Utilization.Report[1];
+
+        JPanel rangePanel = new JPanel();
+        rangePanel.add(new JLabel("From (yyyy-MM):"));
+        rangePanel.add(fromField);
+        rangePanel.add(new JLabel("To:"));
+        rangePanel.add(toField);
+        rangePanel.add(updateButton);
+        rangePanel.add(exportButton);
+        JDialog dialog = new JDialog(this, "Utilization Report", false);
+        dialog.add(rangePanel, BorderLayout.NORTH);
+        dialog.add(tabs, BorderLayout.CENTER);
+        dialog.add(statusLabel, BorderLayout.SOUTH);
+        dialog.setSize(760, 520);
+        dialog.setLocationRelativeTo(this);
+
+        updateButton.addActionListener(e -> {
+            YearMonth from, to;
+            try {
+                from = YearMonth.parse(fromField.getText().trim());
+                to = YearMonth.parse(toField.getText().trim());
+            } catch (DateTimeParseException ex) {
+                JOptionPane.showMessageDialog(dialog, "Invalid month format. Please use yyyy-MM.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            if (to.isBefore(from)) {
+                JOptionPane.showMessageDialog(dialog, "The range ends before it starts.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            updateButton.setEnabled(false);
+            exportButton.setEnabled(false);
+            statusLabel.setText("Scanning " + from + " to " + to + "...");
+            long started = System.nanoTime();
+            Thread reportThread = new Thread(() -> {
+                Utilization.Report report = null;
+                IOException failure = null;
+                try {
+                    report = utilization.report(from, to);
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    failure = ex;
                 }
+                Utilization.Report done = report;
+                IOException error = failure;
+                long elapsedMs = (System.nanoTime() - started) / 1_000_000;
+                SwingUtilities.invokeLater(() -> {
+                    updateButton.setEnabled(true);
+                    if (error != null) {
+                        statusLabel.setText("");
+                        JOptionPane.showMessageDialog(dialog, "Error reading events: " + error.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                        return;
+                    }
+                    shown[0] = done;
+                    fillReport(tabs, done);
+                    exportButton.setEnabled(true);
+                    statusLabel.setText(" " + done.monthCount() + " months, " + done.scanned + " scanned, in " + elapsedMs + " ms");
+                });
+            }, "calendar-report");
+            reportThread.setDaemon(true);
+            reportThread.start();
+        });
+        exportButton.setEnabled(false);
+        exportButton.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setSelectedFile(new File("utilization-" + shown[0].from + "-" + shown[0].to + ".csv"));
+            if (chooser.showSaveDialog(dialog) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            try (Writer out = Files.newBufferedWriter(chooser.getSelectedFile().toPath())) {
+                shown[0].writeCsv(out);
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                JOptionPane.showMessageDialog(dialog, "Error exporting report: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
             }
+        });
+        dialog.setVisible(true);
+        updateButton.doClick();
+    }
+
+    private static void fillReport(JTabbedPane tabs, Utilization.Report report) {
+        int selected = tabs.getSelectedIndex();
+        tabs.removeAll();
+        String[] periodColumns = {"Period", "Events", "Booked hours", "Weekend hours", "Day-off hours", "Load"};
+        List<Utilization.Row> months = new ArrayList<>(report.byMonth());
+        months.add(report.total());
+        tabs.addTab("Months", reportTable(periodColumns, periodRows(months)));
+        tabs.addTab("Weeks", reportTable(periodColumns, periodRows(report.byWeek())));
+        tabs.addTab("Days", reportTable(periodColumns, periodRows(report.byDay())));
+        List<Object[]> slots = new ArrayList<>();
+        for (Utilization.Slot slot : report.busiestSlots(50)) {
+            slots.add(new Object[]{slot.day, slot.start + " - " + slot.start.plusMinutes(Utilization.SLOT_MINUTES),
+                    Utilization.Report.hours(slot.minutes)});
+        }
+        tabs.addTab("Busiest Slots", reportTable(new String[]{"Day", "Time", "Booked hours"}, slots));
+        List<Object[]> series = new ArrayList<>();
+        for (Utilization.SeriesCount count : report.series()) {
+            series.add(new Object[]{count.title, count.occurrences, Utilization.Report.hours(count.minutes)});
+        }
+        tabs.addTab("Series", reportTable(new String[]{"Series", "Occurrences", "Booked hours"}, series));
+        if (selected >= 0) {
+            tabs.setSelectedIndex(selected);
+        }
+    }
+
+    private static List<Object[]> periodRows(List<Utilization.Row> rows) {
+        List<Object[]> cells = new ArrayList<>(rows.size());
+        for (Utilization.Row row : rows) {
+            cells.add(new Object[]{row.period, row.events, Utilization.Report.hours(row.minutes),
+                    Utilization.Report.hours(row.weekendMinutes), Utilization.Report.hours(row.dayOffMinutes),
+                    String.format(Locale.ROOT, "%.1f%%", row.load() * 100)});
+        }
+        return cells;
+    }
+
+    private static JScrollPane reportTable(String[] columns, List<Object[]> rows) {
+        javax.swing.table.DefaultTableModel model = new javax.swing.table.DefaultTableModel(columns, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        for (Object[] row : rows) {
+            model.addRow(row);
+        }
+        return new JScrollPane(new JTable(model));
     }
 
     private void editEvent() {
-        List<Event> dailyEvents = events.get(selectedDate);
-        if (dailyEvents == null || dailyEvents.isEmpty()) {
+        List<Event> dailyEvents = store.eventsOn(selectedDate);
+        if (dailyEvents.isEmpty()) {
             JOptionPane.showMessageDialog(this, "No events to edit on this date.", "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
@@ -423,34 +859,37 @@ public class CalendarApp extends JFrame {
                 boolean isRecurringDaily = recurDailyBox.isSelected();
                 boolean isRecurringWeekly = recurWeeklyBox.isSelected();
 
-                if (title.isEmpty() || startTime.equals(endTime) || endTime.isBefore(startTime)) {
-                    JOptionPane.showMessageDialog(this, "Invalid event details.", "Error", JOptionPane.ERROR_MESSAGE);
-                    return;
-                }
-
                 Event updatedEvent = new Event(title, data, startTime, endTime, isRecurringDaily, isRecurringWeekly);
 
-                if (isEventOverlapping(updatedEvent, selectedDate)) {
-                    JOptionPane.showMessageDialog(this, "This event overlaps with an existing event.", "Error", JOptionPane.ERROR_MESSAGE);
+                String rejected = store.checkEvent(selectedDate, updatedEvent, selectedEvent);
+                if (rejected != null) {
+                    JOptionPane.showMessageDialog(this, rejected, "Error", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
 
-                dailyEvents.remove(selectedEvent);
-                //dailyEvents.add(updatedEvent);
+                // asked before anything changes, so the edit is made and undone as one
+                RecurrenceRule newRule = isRecurringDaily || isRecurringWeekly
+                        ? askRecurrence(updatedEvent, isRecurringDaily, isRecurringWeekly) : null;
+                Map<LocalDate, List<Event>> clashes = new TreeMap<>();
+                store.batch(() -> {
+                    RecurrenceRule rule = store.ruleOf(selectedEvent);
+                    if (rule != null) {
+                        store.endSeries(rule, presentDate);
+                    } else {
+                        store.removeEvent(selectedDate, selectedEvent);
+                        if (selectedEvent.seriesId != 0) {
+                            store.removeSeries(selectedEvent.seriesId, presentDate);
+                        }
+                    }
 
-                if (selectedEvent.isRecurringDaily || selectedEvent.isRecurringWeekly) {
-                    removeRecurringEvent(selectedEvent, presentDate);
-                }
-                
-                if (isRecurringDaily || isRecurringWeekly) {
-                    events.computeIfAbsent(selectedDate, k -> new ArrayList<>()).add(updatedEvent);
-                    addRecurringEvent(updatedEvent, isRecurringDaily, isRecurringWeekly);
-                }
-                else {
-                    events.computeIfAbsent(selectedDate, k -> new ArrayList<>()).add(updatedEvent);
-                }
+                    if (newRule != null) {
+                        clashes.putAll(store.addSeries(newRule));
+                    } else {
+                        store.addEvent(selectedDate, updatedEvent);
+                    }
+                });
+                reportClashes(clashes);
 
-                events.get(selectedDate).sort(Comparator.comparing(e -> e.startTime));
                 updateEventArea();
                 updateCalendar();
             }
@@ -458,8 +897,8 @@ public class CalendarApp extends JFrame {
     }
 
     private void deleteEvent() {
-        List<Event> dailyEvents = events.get(selectedDate);
-        if (dailyEvents == null || dailyEvents.isEmpty()) {
+        List<Event> dailyEvents = store.eventsOn(selectedDate);
+        if (dailyEvents.isEmpty()) {
             JOptionPane.showMessageDialog(this, "No events to delete on this date.", "Error", JOptionPane.ERROR_MESSAGE);
             return;
         }
@@ -472,61 +911,214 @@ public class CalendarApp extends JFrame {
                 dailyEvents.toArray(),
                 dailyEvents.get(0));
 
-        if (selectedEvent != null) {
-            int choice = JOptionPane.showConfirmDialog(this,
-                    "Delete this event" + (selectedEvent.isRecurringDaily || selectedEvent.isRecurringWeekly ? " and all its recurrences? (Yes - Recurrsion delete , No - Single delete)" : "?"),
-                    "Confirm Deletion",
-                    JOptionPane.YES_NO_OPTION);
+        if (selectedEvent == null) {
+            return;
+        }
 
+        if (selectedEvent.seriesId == 0) {
+            int choice = JOptionPane.showConfirmDialog(this, "Delete this event?", "Confirm Deletion", JOptionPane.YES_NO_OPTION);
             if (choice == JOptionPane.YES_OPTION) {
-                dailyEvents.remove(selectedEvent);
-                if (dailyEvents.isEmpty()) {
-                    events.remove(selectedDate);
-                }
-
-                if (selectedEvent.isRecurringDaily || selectedEvent.isRecurringWeekly) {
-                    removeRecurringEvent(selectedEvent, presentDate);
-                }
-
+                store.removeEvent(selectedDate, selectedEvent);
                 updateEventArea();
                 updateCalendar();
             }
-            else if (choice == JOptionPane.NO_OPTION && (selectedEvent.isRecurringDaily || selectedEvent.isRecurringWeekly)) {
-                dailyEvents.remove(selectedEvent);
-                if (dailyEvents.isEmpty()) {
-                    events.remove(selectedDate);
-                }
+            return;
+        }
 
-                updateEventArea();
-                updateCalendar();
+        String[] options = {"All recurrences", "This and following", "Only this one"};
+        int choice = JOptionPane.showOptionDialog(this,
+                "Delete which occurrences of this recurring event?",
+                "Confirm Deletion",
+                JOptionPane.DEFAULT_OPTION,
+                JOptionPane.QUESTION_MESSAGE,
+                null,
+                options,
+                options[2]);
+        if (choice < 0) {
+            return;
+        }
+
+        store.deleteEvent(selectedDate, selectedEvent, CalendarStore.Scope.values()[choice], presentDate);
+
+        updateEventArea();
+        updateCalendar();
+    }
+
+    // Changes to many events at once. Each is made as one change, checked as a whole and undone
+    // as one, and the views are refreshed once at the end.
+    private void batchEdit() {
+        String[] actions = {"Shift selected events", "Shift a series", "Move this day", "Delete by filter"};
+        int action = JOptionPane.showOptionDialog(this,
+                "Select events in the list to shift them, or pick what to change together:",
+                "Batch Edit",
+                JOptionPane.DEFAULT_OPTION,
+                JOptionPane.QUESTION_MESSAGE,
+                null,
+                actions,
+                actions[0]);
+        List<String> rejected;
+        switch (action) {
+            case 0:
+                rejected = shiftSelectedEvents();
+                break;
+            case 1:
+                rejected = shiftSeries();
+                break;
+            case 2:
+                rejected = moveDay();
+                break;
+            case 3:
+                rejected = deleteByFilter();
+                break;
+            default:
+                return;
+        }
+        if (rejected == null) {
+            return;
+        }
+        if (!rejected.isEmpty()) {
+            StringBuilder message = new StringBuilder("Nothing was changed:\n");
+            for (String reason : rejected.subList(0, Math.min(10, rejected.size()))) {
+                message.append(reason).append('\n');
+            }
+            if (rejected.size() > 10) {
+                message.append("... and ").append(rejected.size() - 10).append(" more.");
             }
+            JOptionPane.showMessageDialog(this, message.toString(), "Error", JOptionPane.ERROR_MESSAGE);
         }
+        refreshViews();
     }
 
-    private void removeRecurringEvent(Event event, LocalDate startDate) {
-    for (Map.Entry<LocalDate, List<Event>> entry : events.entrySet()) {
-        LocalDate entryDate = entry.getKey();
-        if (entryDate.isBefore(startDate)) {
-            continue;
+    // The events selected in the list, or all of the selected day's if none are. Null if the
+    // dialog was cancelled, otherwise why nothing changed.
+    private List<String> shiftSelectedEvents() {
+        Map<LocalDate, List<Event>> selection = new TreeMap<>();
+        if (eventList.getModel() instanceof EventListModel) {
+            selection = ((EventListModel) eventList.getModel()).eventsAt(eventList.getSelectedIndices(), selectedDate);
+        }
+        if (selection.isEmpty()) {
+            List<Event> dailyEvents = store.eventsOn(selectedDate);
+            if (dailyEvents.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "No events selected.", "Error", JOptionPane.ERROR_MESSAGE);
+                return null;
+            }
+            selection.put(selectedDate, dailyEvents);
+        }
+        int count = 0;
+        for (List<Event> dailyEvents : selection.values()) {
+            count += dailyEvents.size();
+        }
+        Long minutes = askShift("Shift " + count + " event(s) by:");
+        return minutes == null ? null : store.shiftEvents(selection, minutes, presentDate);
+    }
+
+    private List<String> shiftSeries() {
+        List<Event> series = new ArrayList<>();
+        for (Event event : store.eventsOn(selectedDate)) {
+            if (event.seriesId != 0) {
+                series.add(event);
+            }
+        }
+        if (series.isEmpty()) {
+            JOptionPane.showMessageDialog(this, "No recurring events on this date.", "Error", JOptionPane.ERROR_MESSAGE);
+            return null;
+        }
+        Event selectedEvent = (Event) JOptionPane.showInputDialog(this,
+                "Select the series to shift:",
+                "Shift Series",
+                JOptionPane.QUESTION_MESSAGE,
+                null,
+                series.toArray(),
+                series.get(0));
+        if (selectedEvent == null) {
+            return null;
+        }
+        Long minutes = askShift("Shift the series from " + presentDate + " on by:");
+        return minutes == null ? null : store.shiftSeries(selectedEvent, minutes, presentDate);
+    }
+
+    private List<String> moveDay() {
+        String input = JOptionPane.showInputDialog(this, "Move the events of " + selectedDate + " to (yyyy-MM-dd):");
+        if (input == null) {
+            return null;
+        }
+        try {
+            return store.moveDay(selectedDate, LocalDate.parse(input.trim()), presentDate);
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Invalid date format. Please use yyyy-MM-dd.", "Error", JOptionPane.ERROR_MESSAGE);
+            return null;
+        }
+    }
+
+    private List<String> deleteByFilter() {
+        JPanel panel = new JPanel(new GridLayout(0, 1));
+        JTextField containsField = new JTextField(20);
+        JTextField fromField = new JTextField(displayedMonth.atDay(1).toString(), 10);
+        JTextField toField = new JTextField(displayedMonth.atEndOfMonth().toString(), 10);
+        panel.add(new JLabel("Title or data contains:"));
+        panel.add(containsField);
+        panel.add(new JLabel("From (yyyy-MM-dd):"));
+        panel.add(fromField);
+        panel.add(new JLabel("To (yyyy-MM-dd):"));
+        panel.add(toField);
+        if (JOptionPane.showConfirmDialog(this, panel, "Delete by Filter", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return null;
+        }
+        LocalDate from, to;
+        try {
+            from = LocalDate.parse(fromField.getText().trim());
+            to = LocalDate.parse(toField.getText().trim());
+        } catch (DateTimeParseException e) {
+            JOptionPane.showMessageDialog(this, "Invalid date format. Please use yyyy-MM-dd.", "Error", JOptionPane.ERROR_MESSAGE);
+            return null;
+        }
+        String text = containsField.getText().trim().toLowerCase(Locale.ROOT);
+        int choice = JOptionPane.showConfirmDialog(this,
+                "Delete every event " + (text.isEmpty() ? "" : "containing \"" + text + "\" ") + "from " + from + " to " + to + "?",
+                "Confirm Deletion", JOptionPane.YES_NO_OPTION);
+        if (choice != JOptionPane.YES_OPTION) {
+            return null;
+        }
+        int deleted = store.deleteMatching(from, to, event -> event.title.toLowerCase(Locale.ROOT).contains(text)
+                || event.data.toLowerCase(Locale.ROOT).contains(text));
+        JOptionPane.showMessageDialog(this, deleted + " event(s) deleted.", "Delete by Filter", JOptionPane.INFORMATION_MESSAGE);
+        return Collections.emptyList();
+    }
+
+    // The shift in minutes, or null if cancelled.
+    private Long askShift(String message) {
+        JPanel panel = new JPanel(new GridLayout(0, 1));
+        JSpinner amountSpinner = new JSpinner(new SpinnerNumberModel(0, -100000, 100000, 1));
+        JComboBox<String> unitBox = new JComboBox<>(new String[]{"minutes", "hours", "days"});
+        panel.add(new JLabel(message));
+        panel.add(amountSpinner);
+        panel.add(unitBox);
+        if (JOptionPane.showConfirmDialog(this, panel, "Shift", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
+            return null;
+        }
+        long amount = (Integer) amountSpinner.getValue();
+        switch (unitBox.getSelectedIndex()) {
+            case 1:
+                return amount * 60;
+            case 2:
+                return amount * 24 * 60;
+            default:
+                return amount;
         }
-        entry.getValue().removeIf(e -> e.title.equals(event.title) &&
-                e.startTime.equals(event.startTime) &&
-                e.endTime.equals(event.endTime));
     }
-    events.values().removeIf(List::isEmpty);
-}
 
     private void setPresentDate() {
         String input = JOptionPane.showInputDialog(this, "Enter present date (yyyy-MM-dd):");
+        if (input == null) {
+            return;
+        }
         try {
             LocalDate newPresentDate = LocalDate.parse(input);
-            if (newPresentDate.getYear() == 2024 && newPresentDate.getMonthValue() == 7) {
-                presentDate = newPresentDate;
-                updateCalendar();
-                JOptionPane.showMessageDialog(this, "Present date set to: " + presentDate);
-            } else {
-                JOptionPane.showMessageDialog(this, "Date must be in July 2024.", "Error", JOptionPane.ERROR_MESSAGE);
-            }
+            presentDate = newPresentDate;
+            showMonth(YearMonth.from(presentDate));
+            JOptionPane.showMessageDialog(this, "Present date set to: " + presentDate);
         } catch (DateTimeParseException e) {
             JOptionPane.showMessageDialog(this, "Invalid date format. Please use yyyy-MM-dd.", "Error", JOptionPane.ERROR_MESSAGE);
         }
@@ -538,41 +1130,203 @@ public class CalendarApp extends JFrame {
             return;
         }*/
 
-        if (daysOff.contains(selectedDate)) {
-            daysOff.remove(selectedDate);
+        String holiday = store.workingCalendar().holidayOn(selectedDate);
+        if (holiday != null) {
+            JOptionPane.showMessageDialog(this, selectedDate + " is a holiday (" + holiday + "). Change it under Holidays.", "Information", JOptionPane.INFORMATION_MESSAGE);
+            return;
+        }
+
+        if (store.isDayOff(selectedDate)) {
+            store.setDayOff(selectedDate, false);
             JOptionPane.showMessageDialog(this, selectedDate + " is no longer a day off.", "Day Off Removed", JOptionPane.INFORMATION_MESSAGE);
         } else {
-            daysOff.add(selectedDate);
+            store.setDayOff(selectedDate, true);
             JOptionPane.showMessageDialog(this, selectedDate + " is now set as a day off.", "Day Off Set", JOptionPane.INFORMATION_MESSAGE);
         }
 
         updateCalendar();
     }
 
-    private void saveEvents() {
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream("events.dat"))) {
-            oos.writeObject(events);
-            oos.writeObject(daysOff);
+    // The weekend and holidays as editable text, one rule a line. A holiday list from a file in
+    // the same format is appended with Import, to be checked before it is taken.
+    private void editHolidays() {
+        JTextArea rulesArea = new JTextArea(store.workingCalendar().format(), 15, 40);
+        JButton importListButton = new JButton("Import...");
+        importListButton.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser();
+            chooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Holiday lists (*.txt)", "txt"));
+            if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+                return;
+            }
+            try {
+                for (String line : Files.readAllLines(chooser.getSelectedFile().toPath())) {
+                    rulesArea.append(line + "\n");
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                JOptionPane.showMessageDialog(this, "Error reading holidays: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        });
+
+        JPanel panel = new JPanel(new BorderLayout(0, 5));
+        panel.add(new JLabel("<html>weekend SATURDAY SUNDAY<br>--12-25 Christmas Day<br>4 THURSDAY NOVEMBER Thanksgiving<br>"
+                + "last MONDAY MAY Memorial Day<br>2027-04-02 Company offsite</html>"), BorderLayout.NORTH);
+        panel.add(new JScrollPane(rulesArea), BorderLayout.CENTER);
+        panel.add(importListButton, BorderLayout.SOUTH);
+
+        while (JOptionPane.showConfirmDialog(this, panel, "Weekend and Holidays", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) == JOptionPane.OK_OPTION) {
+            try {
+                store.setWorkingRules(WorkingCalendar.parse(Arrays.asList(rulesArea.getText().split("\n"))));
+                updateCalendar();
+                return;
+            } catch (IllegalArgumentException e) {
+                JOptionPane.showMessageDialog(this, e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+            }
+        }
+    }
+
+    // Hides the window straight away and lets the store finish writing on its I/O thread.
+    private void closeStore() {
+        setVisible(false);
+        dispose();
+        if (server != null) {
+            server.close();
+        }
+        if (reminders != null) {
+            reminders.close();
+        }
+        store.closeAsync(() -> System.exit(0));
+    }
+
+    // The store hands each loading stage back on the EDT: the month on screen first, then the
+    // journal tail. The grid is already painted (empty) by the time either arrives.
+    private void loadEvents() {
+        store.loadAsync(YearMonth.from(selectedDate), this::refreshViews, () -> {
+            updateTitle();
+            setEditingEnabled(true);
+            refreshViews();
+            reminders = new ReminderScheduler(store, Clock.systemDefaultZone(), REMINDER_LEAD,
+                    reminder -> SwingUtilities.invokeLater(() -> showReminder(reminder)));
+            reminders.start();
+            startServer();
+        });
+    }
+
+    // The HTTP interface, if -Dcalendar.http.port asks for it.
+    private void startServer() {
+        Integer port = Integer.getInteger("calendar.http.port");
+        if (port == null) {
+            return;
+        }
+        try {
+            server = new CalendarServer(store, port, () -> presentDate, this::refreshLater);
+            server.start();
+            System.err.println("HTTP interface at http://localhost:" + server.port() + "/agenda");
         } catch (IOException e) {
             e.printStackTrace();
+            JOptionPane.showMessageDialog(this, "Error starting the HTTP interface: " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
         }
     }
 
-    @SuppressWarnings("unchecked")
-    private void loadEvents() {
-        File file = new File("events.dat");
-        if (file.exists()) {
-            try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(file))) {
-                events = (Map<LocalDate, List<Event>>) ois.readObject();
-                daysOff = (Set<LocalDate>) ois.readObject();
-                updateCalendar();
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
-            }
+    // Reminders come up without blocking the window, one dialog each.
+    private void showReminder(ReminderScheduler.Reminder reminder) {
+        if (!isDisplayable()) {
+            return;
+        }
+        JDialog dialog = new JOptionPane(reminder.toString(), JOptionPane.INFORMATION_MESSAGE).createDialog(this, "Reminder");
+        dialog.setModal(false);
+        dialog.setVisible(true);
+    }
+
+    private void refreshViews() {
+        updateCalendar();
+        updateEventArea();
+    }
+
+    // For changes made on other threads: however many arrive before the EDT gets to it, the
+    // views are refreshed once.
+    private void refreshLater() {
+        if (refreshQueued.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> {
+                refreshQueued.set(false);
+                refreshViews();
+            });
         }
     }
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("export")) {
+            System.exit(export(args));
+        }
+        if (args.length > 0 && args[0].equals("report")) {
+            System.exit(report(args));
+        }
+        Metrics.install(true);
         SwingUtilities.invokeLater(() -> new CalendarApp().setVisible(true));
     }
+
+    // java CalendarApp export ics|csv|agenda <from> <to> [file]
+    // Writes the range from the calendar in the working directory without opening a window,
+    // to the file or else to standard output. The calendar is only read, so this can run while
+    // the app has it open.
+    private static int export(String[] args) {
+        if (args.length < 4 || args.length > 5) {
+            System.err.println("Usage: CalendarApp export ics|csv|agenda <from yyyy-MM-dd> <to yyyy-MM-dd> [file]");
+            return 2;
+        }
+        EventExporter.Format format;
+        LocalDate from, to;
+        try {
+            format = EventExporter.Format.valueOf(args[1].toUpperCase(Locale.ROOT));
+            from = LocalDate.parse(args[2]);
+            to = LocalDate.parse(args[3]);
+        } catch (IllegalArgumentException | DateTimeParseException e) {
+            System.err.println("Invalid export arguments: " + e.getMessage());
+            return 2;
+        }
+        try (CalendarStore store = new CalendarStore(Paths.get(""));
+             Writer out = args.length == 5
+                     ? Files.newBufferedWriter(Paths.get(args[4]))
+                     : new BufferedWriter(new OutputStreamWriter(System.out))) {
+            store.loadReadOnly();
+            long written = new EventExporter(out, format).export(store, from, to);
+            System.err.println(written + " events exported");
+            return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        }
+    }
+
+    // java CalendarApp report <from> <to> [file]
+    // Writes the utilization report of the months as CSV, like the Report window's export. Like
+    // export, it only reads the calendar.
+    private static int report(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            System.err.println("Usage: CalendarApp report <from yyyy-MM> <to yyyy-MM> [file]");
+            return 2;
+        }
+        YearMonth from, to;
+        try {
+            from = YearMonth.parse(args[1]);
+            to = YearMonth.parse(args[2]);
+        } catch (DateTimeParseException e) {
+            System.err.println("Invalid report arguments: " + e.getMessage());
+            return 2;
+        }
+        try (CalendarStore store = new CalendarStore(Paths.get(""));
+             Writer out = args.length == 4
+                     ? Files.newBufferedWriter(Paths.get(args[3]))
+                     : new BufferedWriter(new OutputStreamWriter(System.out))) {
+            store.loadReadOnly();
+            Utilization.Report report = new Utilization(store).report(from, to);
+            report.writeCsv(out);
+            System.err.println(report.monthCount() + " months reported");
+            return 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 1;
+        }
+    }
 }
@@ -0,0 +1,305 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.*;
+import java.time.*;
+import java.time.format.TextStyle;
+import java.util.*;
+import java.util.List;
+
+// The calendar grid as one painted component: a month as six weeks of seven days, or a whole
+// year as a heatmap with a column per week. Days are coloured as they always were: red for
+// days off, yellow for weekends with events, light gray for weekends without, green for
+// weekdays with events. The year view shades those darker with the number of events.
+//
+// What each cell shows is worked out once per refresh and kept, so painting never reads the
+// store, and a refresh only repaints the cells whose colour, count or state changed.
+class CalendarGrid extends JComponent {
+    interface DayListener {
+        void daySelected(LocalDate date);
+    }
+
+    private static final String[] DAY_NAMES = {"Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat"};
+    private static final int HEAT_STEPS = 8;
+    private static final Metrics.Timer REFRESHES = Metrics.timer("view.gridRefresh");
+    private static final Metrics.Timer PAINTS = Metrics.timer("view.gridPaint");
+
+    private final CalendarStore store;
+    private final List<DayListener> listeners = new ArrayList<>();
+    private boolean yearView;
+    private YearMonth month = YearMonth.now();
+    private LocalDate presentDate = LocalDate.now();
+    private LocalDate selected;
+
+    // One entry per cell; a null date is a blank cell.
+    private LocalDate[] dates = new LocalDate[0];
+    private Color[] colors = new Color[0];
+    private int[] counts = new int[0];
+    private boolean[] past = new boolean[0];
+    private int columns = 7;
+    private int rows = 6;
+
+    CalendarGrid(CalendarStore store) {
+        this.store = store;
+        setFont(UIManager.getFont("Label.font"));
+        setForeground(UIManager.getColor("Label.foreground"));
+        setBackground(UIManager.getColor("Panel.background"));
+        setOpaque(true);
+        setToolTipText("");
+        addMouseListener(new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e) {
+                int cell = cellAt(e.getPoint());
+                if (cell >= 0 && dates[cell] != null && !past[cell]) {
+                    for (DayListener listener : listeners) {
+                        listener.daySelected(dates[cell]);
+                    }
+                }
+            }
+        });
+    }
+
+    void addDayListener(DayListener listener) {
+        listeners.add(listener);
+    }
+
+    void showMonth(YearMonth month) {
+        if (yearView || !month.equals(this.month)) {
+            yearView = false;
+            this.month = month;
+            relayout();
+        }
+    }
+
+    void showYear(int year) {
+        if (!yearView || year != month.getYear()) {
+            yearView = true;
+            this.month = YearMonth.of(year, month.getMonth());
+            relayout();
+        }
+    }
+
+    boolean isYearView() {
+        return yearView;
+    }
+
+    void setPresentDate(LocalDate presentDate) {
+        this.presentDate = presentDate;
+    }
+
+    void setSelected(LocalDate date) {
+        int old = cellOf(selected);
+        selected = date;
+        int now = cellOf(date);
+        if (old != now) {
+            if (old >= 0) {
+                repaint(cellBounds(old));
+            }
+            if (now >= 0) {
+                repaint(cellBounds(now));
+            }
+        }
+    }
+
+    // Reads the days shown from the store again and repaints the cells that changed.
+    void refresh() {
+        long started = REFRESHES.start();
+        Map<YearMonth, MonthModel> models = new HashMap<>();
+        for (int i = 0; i < dates.length; i++) {
+            LocalDate date = dates[i];
+            if (date == null) {
+                continue;
+            }
+            MonthModel model = models.computeIfAbsent(YearMonth.from(date), store::monthModel);
+            int count = model.eventsOn(date).size();
+            Color color = colorOf(date, count);
+            boolean isPast = date.isBefore(presentDate);
+            if (count != counts[i] || !Objects.equals(color, colors[i]) || isPast != past[i]) {
+                counts[i] = count;
+                colors[i] = color;
+                past[i] = isPast;
+                repaint(cellBounds(i));
+            }
+        }
+        REFRESHES.stop(started);
+    }
+
+    private void relayout() {
+        LocalDate first = yearView ? LocalDate.of(month.getYear(), 1, 1) : month.atDay(1);
+        LocalDate last = yearView ? LocalDate.of(month.getYear(), 12, 31) : month.atEndOfMonth();
+        LocalDate start = first.minusDays(first.getDayOfWeek().getValue() % 7);
+        int cells = yearView ? (int) (last.toEpochDay() - start.toEpochDay() + 7) / 7 * 7 : 42;
+        columns = yearView ? cells / 7 : 7;
+        rows = yearView ? 7 : 6;
+        dates = new LocalDate[cells];
+        colors = new Color[cells];
+        counts = new int[cells];
+        past = new boolean[cells];
+        for (int i = 0; i < cells; i++) {
+            LocalDate date = start.plusDays(i);
+            dates[i] = date.isBefore(first) || date.isAfter(last) ? null : date;
+        }
+        revalidate();
+        repaint();
+        refresh();
+    }
+
+    private Color colorOf(LocalDate date, int count) {
+        Color base;
+        WorkingCalendar calendar = store.workingCalendar();
+        if (calendar.isDayOff(date)) {
+            base = Color.RED;
+        } else if (calendar.isWeekend(date)) {
+            base = count > 0 ? Color.YELLOW : Color.LIGHT_GRAY;
+        } else {
+            base = count > 0 ? Color.GREEN : null;
+        }
+        if (!yearView || base == null || count <= 1) {
+            return base;
+        }
+        float shade = Math.min(count - 1, HEAT_STEPS) / (float) HEAT_STEPS * 0.6f;
+        return new Color((int) (base.getRed() * (1 - shade)), (int) (base.getGreen() * (1 - shade)), (int) (base.getBlue() * (1 - shade)));
+    }
+
+    // In the month view cells go across a week; in the year view they go down a week.
+    private Rectangle cellBounds(int cell) {
+        int column = yearView ? cell / 7 : cell % 7;
+        int row = yearView ? cell % 7 : cell / 7;
+        int left = leftMargin();
+        int top = topMargin();
+        int x0 = left + column * (getWidth() - left) / columns;
+        int x1 = left + (column + 1) * (getWidth() - left) / columns;
+        int y0 = top + row * (getHeight() - top) / rows;
+        int y1 = top + (row + 1) * (getHeight() - top) / rows;
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    private int cellAt(Point point) {
+        int left = leftMargin();
+        int top = topMargin();
+        if (point.x < left || point.y < top || getWidth() <= left || getHeight() <= top) {
+            return -1;
+        }
+        int column = Math.min(columns - 1, (point.x - left) * columns / (getWidth() - left));
+        int row = Math.min(rows - 1, (point.y - top) * rows / (getHeight() - top));
+        int cell = yearView ? column * 7 + row : row * 7 + column;
+        return cell < dates.length ? cell : -1;
+    }
+
+    private int cellOf(LocalDate date) {
+        if (date == null) {
+            return -1;
+        }
+        for (int i = 0; i < dates.length; i++) {
+            if (date.equals(dates[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int topMargin() {
+        return getFontMetrics(getFont()).getHeight() + 4;
+    }
+
+    private int leftMargin() {
+        return yearView ? getFontMetrics(getFont()).stringWidth("Wed") + 6 : 0;
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        if (isPreferredSizeSet()) {
+            return super.getPreferredSize();
+        }
+        return yearView
+                ? new Dimension(leftMargin() + columns * 13, topMargin() + rows * 13)
+                : new Dimension(columns * 60, topMargin() + rows * 40);
+    }
+
+    @Override
+    public String getToolTipText(MouseEvent e) {
+        int cell = cellAt(e.getPoint());
+        if (cell < 0 || dates[cell] == null) {
+            return null;
+        }
+        String holiday = store.workingCalendar().holidayOn(dates[cell]);
+        return dates[cell] + ": " + counts[cell] + (counts[cell] == 1 ? " event" : " events")
+                + (holiday != null ? " (" + holiday + ")" : store.isDayOff(dates[cell]) ? " (day off)" : "");
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        long started = PAINTS.start();
+        Graphics2D g2 = (Graphics2D) g.create();
+        g2.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+        Rectangle clip = g2.getClipBounds() != null ? g2.getClipBounds() : new Rectangle(getSize());
+        g2.setColor(getBackground());
+        g2.fillRect(clip.x, clip.y, clip.width, clip.height);
+        FontMetrics metrics = g2.getFontMetrics(getFont());
+        g2.setFont(getFont());
+        if (clip.y < topMargin() || clip.x < leftMargin()) {
+            paintHeaders(g2, metrics);
+        }
+        for (int i = 0; i < dates.length; i++) {
+            if (dates[i] != null) {
+                Rectangle bounds = cellBounds(i);
+                if (bounds.intersects(clip)) {
+                    paintCell(g2, metrics, i, bounds);
+                }
+            }
+        }
+        g2.dispose();
+        PAINTS.stop(started);
+    }
+
+    private void paintHeaders(Graphics2D g, FontMetrics metrics) {
+        g.setColor(getForeground());
+        int baseline = metrics.getAscent() + 2;
+        if (!yearView) {
+            for (int column = 0; column < 7; column++) {
+                Rectangle cell = cellBounds(column);
+                g.drawString(DAY_NAMES[column], cell.x + (cell.width - metrics.stringWidth(DAY_NAMES[column])) / 2, baseline);
+            }
+            return;
+        }
+        for (int row = 1; row < 7; row += 2) {
+            Rectangle cell = cellBounds(row);
+            g.drawString(DAY_NAMES[row], 2, cell.y + (cell.height + metrics.getAscent()) / 2 - 1);
+        }
+        Month labelled = null;
+        for (int i = 0; i < dates.length; i += 7) {
+            LocalDate weekEnd = dates[Math.min(i + 6, dates.length - 1)];
+            if (weekEnd != null && weekEnd.getMonth() != labelled) {
+                labelled = weekEnd.getMonth();
+                g.drawString(labelled.getDisplayName(TextStyle.SHORT, Locale.ENGLISH), cellBounds(i).x, baseline);
+            }
+        }
+    }
+
+    private void paintCell(Graphics2D g, FontMetrics metrics, int cell, Rectangle bounds) {
+        Color fill = colors[cell] != null ? colors[cell] : UIManager.getColor("Button.background");
+        g.setColor(fill != null ? fill : Color.WHITE);
+        g.fillRect(bounds.x + 1, bounds.y + 1, bounds.width - 2, bounds.height - 2);
+        g.setColor(Color.GRAY);
+        g.drawRect(bounds.x + 1, bounds.y + 1, bounds.width - 3, bounds.height - 3);
+        if (dates[cell].equals(selected)) {
+            g.setColor(Color.BLUE);
+            g.drawRect(bounds.x + 2, bounds.y + 2, bounds.width - 5, bounds.height - 5);
+            g.drawRect(bounds.x + 3, bounds.y + 3, bounds.width - 7, bounds.height - 7);
+        }
+        // Year cells are usually too small for text; the shade and the tooltip give the count.
+        if (yearView && (bounds.height < metrics.getHeight() + 4 || bounds.width < 2 * metrics.getHeight())) {
+            return;
+        }
+        g.setColor(past[cell] ? Color.GRAY : Color.BLACK);
+        if (!yearView) {
+            g.drawString(String.valueOf(dates[cell].getDayOfMonth()), bounds.x + 6, bounds.y + metrics.getAscent() + 4);
+        }
+        if (counts[cell] > 0) {
+            String count = String.valueOf(counts[cell]);
+            if (metrics.stringWidth(count) + 4 <= bounds.width) {
+                g.drawString(count, bounds.x + bounds.width - metrics.stringWidth(count) - 5,
+                        bounds.y + bounds.height - metrics.getDescent() - 3);
+            }
+        }
+    }
+}
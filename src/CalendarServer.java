@@ -0,0 +1,545 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.*;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+// A small HTTP/JSON interface to the store for other tools on the same machine, turned on in
+// the app with -Dcalendar.http.port. It only listens on the loopback address, and changes are
+// refused from anything sending an Origin header, so a web page open in a browser on the
+// machine cannot make them. POST bodies must be sent as application/json, which a page can
+// only do with an Origin.
+//
+//     GET    /agenda?from=2026-10-01&to=2026-10-31     the events of each day, series included
+//     GET    /freebusy?from=...&to=...                 busy periods, overlapping events merged
+//     POST   /events   {"date":"2026-10-20","title":"Review","data":"","start":"09:00","end":"10:00"}
+//     DELETE /events?date=2026-10-20&start=09:00[&title=Review][&scope=only|following|all]
+//
+// Every request runs on its own virtual thread and reads the store the way any other thread
+// does, without the lock, so readers never wait on each other or on the window. GET responses
+// carry an ETag made from the versions of the months in the range; a client that sends it
+// back gets 304 before anything is read. Responses are written out a month at a time as they
+// are read, so a long range is never held whole, and a range may span at most a few years.
+class CalendarServer implements Closeable {
+    private static final int BACKLOG = 1024;
+    private static final int MAX_RANGE_YEARS = 5;
+
+    private static final Metrics.Timer REQUESTS = Metrics.timer("http.request");
+    private static final Metrics.Counter NOT_MODIFIED = Metrics.counter("http.notModified");
+
+    private final CalendarStore store;
+    private final Supplier<LocalDate> presentDate;
+    private final Runnable changed;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    // Versions start again from zero in every run, so tags from an earlier run must not match.
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+    // Adds and deletes are checked against the present date, as in the window, and changed is
+    // run after each one that went through. Port 0 picks a free port.
+    CalendarServer(CalendarStore store, int port, Supplier<LocalDate> presentDate, Runnable changed) throws IOException {
+        this.store = store;
+        this.presentDate = presentDate;
+        this.changed = changed;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        server.setExecutor(executor);
+        server.createContext("/agenda", exchange -> handle(exchange, this::agenda));
+        server.createContext("/freebusy", exchange -> handle(exchange, this::freeBusy));
+        server.createContext("/events", exchange -> handle(exchange, this::events));
+    }
+
+    void start() {
+        server.start();
+    }
+
+    int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // A request that cannot be answered, with the status and message to answer it with.
+    private static class Failure extends Exception {
+        final int status;
+
+        Failure(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private interface FailingHandler {
+        void handle(HttpExchange exchange) throws IOException, Failure;
+    }
+
+    private void handle(HttpExchange exchange, FailingHandler handler) throws IOException {
+        long started = REQUESTS.start();
+        try (exchange) {
+            try {
+                handler.handle(exchange);
+            } catch (Failure e) {
+                sendError(exchange, e.status, e.getMessage());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                sendError(exchange, 500, String.valueOf(e.getMessage()));
+            }
+        } finally {
+            REQUESTS.stop(started);
+        }
+    }
+
+    private void agenda(HttpExchange exchange) throws IOException, Failure {
+        requireMethod(exchange, "GET");
+        Map<String, String> query = query(exchange);
+        LocalDate from = date(query, "from");
+        LocalDate to = date(query, "to");
+        checkRange(from, to);
+        if (notModified(exchange, from, to)) {
+            return;
+        }
+        try (Writer out = startJson(exchange, 200)) {
+            out.write("{\"from\":\"" + from + "\",\"to\":\"" + to + "\",\"days\":[");
+            boolean[] first = {true};
+            WorkingCalendar calendar = store.workingCalendar();
+            forEachDay(from, to, (date, dailyEvents) -> {
+                boolean dayOff = calendar.isDayOff(date);
+                if (dailyEvents.isEmpty() && !dayOff) {
+                    return;
+                }
+                out.write(first[0] ? "\n" : ",\n");
+                first[0] = false;
+                out.write("{\"date\":\"" + date + "\",\"dayOff\":" + dayOff);
+                String holiday = calendar.holidayOn(date);
+                if (holiday != null) {
+                    out.write(",\"holiday\":" + quote(holiday));
+                }
+                out.write(",\"events\":[");
+                for (int i = 0; i < dailyEvents.size(); i++) {
+                    out.write(i == 0 ? "" : ",");
+                    writeEvent(out, dailyEvents.get(i));
+                }
+                out.write("]}");
+            });
+            out.write("\n]}\n");
+        }
+    }
+
+    private void freeBusy(HttpExchange exchange) throws IOException, Failure {
+        requireMethod(exchange, "GET");
+        Map<String, String> query = query(exchange);
+        LocalDate from = date(query, "from");
+        LocalDate to = date(query, "to");
+        checkRange(from, to);
+        if (notModified(exchange, from, to)) {
+            return;
+        }
+        try (Writer out = startJson(exchange, 200)) {
+            out.write("{\"from\":\"" + from + "\",\"to\":\"" + to + "\",\"busy\":[");
+            boolean[] first = {true};
+            WorkingCalendar calendar = store.workingCalendar();
+            forEachDay(from, to, (date, dailyEvents) -> {
+                if (calendar.isDayOff(date)) {
+                    out.write((first[0] ? "\n" : ",\n") + "{\"date\":\"" + date + "\",\"allDay\":true}");
+                    first[0] = false;
+                    return;
+                }
+                // the day's events are in start order, so overlapping ones are next to each other
+                LocalTime start = null;
+                LocalTime end = null;
+                for (Event event : dailyEvents) {
+                    if (start != null && event.startTime.isAfter(end)) {
+                        out.write((first[0] ? "\n" : ",\n") + busy(date, start, end));
+                        first[0] = false;
+                        start = null;
+                    }
+                    if (start == null) {
+                        start = event.startTime;
+                        end = event.endTime;
+                    } else if (event.endTime.isAfter(end)) {
+                        end = event.endTime;
+                    }
+                }
+                if (start != null) {
+                    out.write((first[0] ? "\n" : ",\n") + busy(date, start, end));
+                    first[0] = false;
+                }
+            });
+            out.write("\n]}\n");
+        }
+    }
+
+    private static String busy(LocalDate date, LocalTime start, LocalTime end) {
+        return "{\"date\":\"" + date + "\",\"start\":\"" + start + "\",\"end\":\"" + end + "\"}";
+    }
+
+    private void events(HttpExchange exchange) throws IOException, Failure {
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            throw new Failure(403, "Changes are not accepted from web pages.");
+        }
+        if (!store.isLoaded()) {
+            throw new Failure(503, "The calendar is still loading.");
+        }
+        switch (exchange.getRequestMethod()) {
+            case "POST":
+                addEvent(exchange);
+                break;
+            case "DELETE":
+                deleteEvent(exchange);
+                break;
+            default:
+                exchange.getResponseHeaders().set("Allow", "POST, DELETE");
+                throw new Failure(405, "Use POST or DELETE.");
+        }
+    }
+
+    // Checked and added as one change, so nothing can take the slot between the two.
+    private void addEvent(HttpExchange exchange) throws IOException, Failure {
+        String type = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (type == null || !type.split(";")[0].trim().equalsIgnoreCase("application/json")) {
+            throw new Failure(415, "Send the event as application/json.");
+        }
+        Map<String, String> body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = parseObject(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        LocalDate date = date(body, "date");
+        Event event = new Event(body.getOrDefault("title", ""), body.getOrDefault("data", ""),
+                time(body, "start"), time(body, "end"), false, false);
+        store.loadMonth(date);
+        String[] rejected = new String[1];
+        store.batch(() -> {
+            rejected[0] = store.checkDate(date, presentDate.get());
+            if (rejected[0] == null) {
+                rejected[0] = store.checkEvent(date, event, null);
+            }
+            if (rejected[0] == null) {
+                store.addEvent(date, event);
+            }
+        });
+        if (rejected[0] != null) {
+            throw new Failure(409, rejected[0]);
+        }
+        changed.run();
+        try (Writer out = startJson(exchange, 201)) {
+            out.write("{\"date\":\"" + date + "\",\"event\":");
+            writeEvent(out, event);
+            out.write("}\n");
+        }
+    }
+
+    // The event starting at the given time on the date, and with the given title if there is
+    // one. A series loses only that occurrence unless the scope says otherwise.
+    private void deleteEvent(HttpExchange exchange) throws IOException, Failure {
+        Map<String, String> query = query(exchange);
+        LocalDate date = date(query, "date");
+        LocalTime start = time(query, "start");
+        String title = query.get("title");
+        CalendarStore.Scope scope;
+        switch (query.getOrDefault("scope", "only")) {
+            case "only":
+                scope = CalendarStore.Scope.ONLY_THIS;
+                break;
+            case "following":
+                scope = CalendarStore.Scope.FOLLOWING;
+                break;
+            case "all":
+                scope = CalendarStore.Scope.ALL;
+                break;
+            default:
+                throw new Failure(400, "scope must be only, following or all.");
+        }
+        store.loadMonth(date);
+        Event[] deleted = new Event[1];
+        store.batch(() -> {
+            for (Event event : store.eventsOn(date)) {
+                if (event.startTime.equals(start) && (title == null || event.title.equals(title))) {
+                    store.deleteEvent(date, event, scope, presentDate.get());
+                    deleted[0] = event;
+                    return;
+                }
+            }
+        });
+        if (deleted[0] == null) {
+            throw new Failure(404, "No event at " + start + " on " + date + ".");
+        }
+        changed.run();
+        try (Writer out = startJson(exchange, 200)) {
+            out.write("{\"date\":\"" + date + "\",\"deleted\":");
+            writeEvent(out, deleted[0]);
+            out.write("}\n");
+        }
+    }
+
+    // Checked before anything is sent, since a failure once the response has started can only
+    // cut it short.
+    private static void checkRange(LocalDate from, LocalDate to) throws Failure {
+        if (to.isBefore(from)) {
+            throw new Failure(400, "to must not be before from.");
+        }
+        if (to.isAfter(from.plusYears(MAX_RANGE_YEARS))) {
+            throw new Failure(400, "from and to may be at most " + MAX_RANGE_YEARS + " years apart.");
+        }
+    }
+
+    // Answers 304 if the client's tag still matches the months of the range, otherwise sets
+    // the current tag for the response about to be written. The tag is taken before anything
+    // is read, so a change made while the response is written only ever makes it look stale.
+    private boolean notModified(HttpExchange exchange, LocalDate from, LocalDate to) throws IOException {
+        long version = -1;
+        for (YearMonth month = YearMonth.from(from); !month.atDay(1).isAfter(to); month = month.plusMonths(1)) {
+            version = Math.max(version, store.monthVersion(month));
+        }
+        String tag = "\"" + epoch + "-" + Long.toString(version, 36) + "\"";
+        exchange.getResponseHeaders().set("ETag", tag);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        if (tag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            exchange.sendResponseHeaders(304, -1);
+            NOT_MODIFIED.increment();
+            return true;
+        }
+        return false;
+    }
+
+    private interface DayWriter {
+        void write(LocalDate date, List<Event> dailyEvents) throws IOException;
+    }
+
+    // Every day of the range in order, empty ones included. The store hands them over a month
+    // at a time and drops again the months it had to decode, so old ranges do not pile up in it.
+    private void forEachDay(LocalDate from, LocalDate to, DayWriter writer) throws IOException {
+        LocalDate[] next = {from};
+        store.forEachDay(from, to, (date, dailyEvents) -> {
+            for (; next[0].isBefore(date); next[0] = next[0].plusDays(1)) {
+                writer.write(next[0], Collections.emptyList());
+            }
+            writer.write(date, dailyEvents);
+            next[0] = date.plusDays(1);
+        });
+        for (; !next[0].isAfter(to); next[0] = next[0].plusDays(1)) {
+            writer.write(next[0], Collections.emptyList());
+        }
+    }
+
+    private static void writeEvent(Writer out, Event event) throws IOException {
+        out.write("{\"title\":" + quote(event.title) + ",\"data\":" + quote(event.data)
+                + ",\"start\":\"" + event.startTime + "\",\"end\":\"" + event.endTime + "\"");
+        if (event.seriesId != 0) {
+            out.write(",\"seriesId\":" + event.seriesId);
+        }
+        if (event.isRecurringDaily || event.isRecurringWeekly) {
+            out.write(",\"repeats\":\"" + (event.isRecurringDaily ? "daily" : "weekly") + "\"");
+        }
+        out.write('}');
+    }
+
+    // Sent with chunked encoding, so it goes out as it is written.
+    private static Writer startJson(HttpExchange exchange, int status) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, 0);
+        return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 8192);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = ("{\"error\":" + quote(message) + "}\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    private static void requireMethod(HttpExchange exchange, String method) throws Failure {
+        if (!exchange.getRequestMethod().equals(method)) {
+            exchange.getResponseHeaders().set("Allow", method);
+            throw new Failure(405, "Use " + method + ".");
+        }
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> query = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (String pair : raw.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return query;
+    }
+
+    private static LocalDate date(Map<String, String> values, String name) throws Failure {
+        try {
+            return LocalDate.parse(required(values, name));
+        } catch (DateTimeParseException e) {
+            throw new Failure(400, name + " must be a date (yyyy-MM-dd).");
+        }
+    }
+
+    private static LocalTime time(Map<String, String> values, String name) throws Failure {
+        try {
+            return LocalTime.parse(required(values, name));
+        } catch (DateTimeParseException e) {
+            throw new Failure(400, name + " must be a time (HH:mm).");
+        }
+    }
+
+    private static String required(Map<String, String> values, String name) throws Failure {
+        String value = values.get(name);
+        if (value == null) {
+            throw new Failure(400, "Missing " + name + ".");
+        }
+        return value;
+    }
+
+    static String quote(String text) {
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    // A flat JSON object, which is all a request body is. Strings are unescaped; numbers,
+    // true, false and null are kept as their text.
+    static Map<String, String> parseObject(String json) throws Failure {
+        Map<String, String> values = new HashMap<>();
+        int[] at = {skipSpace(json, 0)};
+        expect(json, at, '{');
+        if (peek(json, at) == '}') {
+            at[0]++;
+            return values;
+        }
+        while (true) {
+            String key = parseString(json, at);
+            expect(json, at, ':');
+            String value = peek(json, at) == '"' ? parseString(json, at) : parseLiteral(json, at);
+            values.put(key, value);
+            char next = peek(json, at);
+            at[0]++;
+            if (next == '}') {
+                return values;
+            }
+            if (next != ',') {
+                throw new Failure(400, "Expected , or } at " + (at[0] - 1) + ".");
+            }
+        }
+    }
+
+    private static String parseString(String json, int[] at) throws Failure {
+        expect(json, at, '"');
+        StringBuilder text = new StringBuilder();
+        for (int i = at[0]; i < json.length(); i++) {
+            char c = json.charAt(i);
+            if (c == '"') {
+                at[0] = i + 1;
+                return text.toString();
+            }
+            if (c == '\\' && i + 1 < json.length()) {
+                char escaped = json.charAt(++i);
+                switch (escaped) {
+                    case 'n':
+                        text.append('\n');
+                        break;
+                    case 'r':
+                        text.append('\r');
+                        break;
+                    case 't':
+                        text.append('\t');
+                        break;
+                    case 'b':
+                        text.append('\b');
+                        break;
+                    case 'f':
+                        text.append('\f');
+                        break;
+                    case 'u':
+                        if (i + 4 >= json.length()) {
+                            throw new Failure(400, "Bad escape at " + i + ".");
+                        }
+                        try {
+                            text.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                        } catch (NumberFormatException e) {
+                            throw new Failure(400, "Bad escape at " + i + ".");
+                        }
+                        i += 4;
+                        break;
+                    default:
+                        text.append(escaped);
+                }
+            } else {
+                text.append(c);
+            }
+        }
+        throw new Failure(400, "Unterminated string.");
+    }
+
+    private static String parseLiteral(String json, int[] at) throws Failure {
+        int start = at[0];
+        int end = start;
+        while (end < json.length() && ",}] \t\r\n".indexOf(json.charAt(end)) < 0) {
+            end++;
+        }
+        if (end == start) {
+            throw new Failure(400, "Expected a value at " + start + ".");
+        }
+        at[0] = end;
+        return json.substring(start, end);
+    }
+
+    private static void expect(String json, int[] at, char c) throws Failure {
+        if (peek(json, at) != c) {
+            throw new Failure(400, "Expected " + c + " at " + at[0] + ".");
+        }
+        at[0]++;
+    }
+
+    // The next character that is not white space, or 0 at the end.
+    private static char peek(String json, int[] at) {
+        at[0] = skipSpace(json, at[0]);
+        return at[0] < json.length() ? json.charAt(at[0]) : 0;
+    }
+
+    private static int skipSpace(String json, int i) {
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+}
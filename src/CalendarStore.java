@@ -0,0 +1,2233 @@
+import java.io.*;
+import java.lang.invoke.VarHandle;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.*;
+
+// The calendar without any of the Swing around it: the sorted day store, recurrence rules,
+// the working calendar of weekends, holidays and days off, the series index, the journal and the snapshot file behind them.
+//
+// Any thread may read or change a store. Changes take the write lock one at a time; reads take
+// no lock. A stored day is a list that is replaced rather than changed, and a rule is copied
+// before it changes, so a reader only ever sees whole values. A version counter that is odd
+// while a change runs tells a reader whether a change overlapped what it read, in which case
+// it reads again, so every read sees the store as it was between two changes.
+//
+// Disk work runs on the store's own I/O thread. The owner executor, the EDT in the app, is
+// where loading hands its stages over; a store created without one only compacts when asked to.
+class CalendarStore implements Closeable {
+    static final String STORE_FILE = "events.bin";
+    static final String LEGACY_FILE = "events.dat";
+    static final String JOURNAL_FILE = "events.journal";
+    static final String HOLIDAYS_FILE = "holidays.txt";
+    private static final long COMPACT_THRESHOLD = 1024 * 1024;
+    private static final long COMPACT_INTERVAL_MS = 5 * 60 * 1000;
+    private static final long SAVE_DEBOUNCE_MS = 2000;
+    private static final int MONTH_CACHE_SIZE = 12;
+    private static final int SEARCH_YEARS = 2;
+    private static final int OPTIMISTIC_READS = 3;
+    private static final int HISTORY_LIMIT = 100;
+
+    private static final Metrics.Timer RANGE_READS = Metrics.timer("store.eventsBetween");
+    private static final Metrics.Timer MONTH_MODELS = Metrics.timer("store.monthModel");
+    private static final Metrics.Timer CONFLICT_CHECKS = Metrics.timer("store.conflictCheck", 16);
+    private static final Metrics.Timer SEARCHES = Metrics.timer("store.searchCandidates");
+    private static final Metrics.Timer WRITES = Metrics.timer("store.write");
+    private static final Metrics.Counter READ_RETRIES = Metrics.counter("store.readRetries");
+    private static final Metrics.Counter LOCKED_READS = Metrics.counter("store.lockedReads");
+    private static final Metrics.Timer LOADS = Metrics.timer("persist.load");
+    private static final Metrics.Counter REPLAYED = Metrics.counter("persist.journalReplayed");
+    private static final Metrics.Timer COMPACTIONS = Metrics.timer("persist.compact");
+    private static final Metrics.Timer FLUSHES = Metrics.timer("persist.flush");
+
+    // How much of a series is deleted along with the chosen occurrence.
+    enum Scope { ALL, FOLLOWING, ONLY_THIS }
+
+    // Told about each event of a batch that could not be added, by its index in the day's list.
+    interface Rejection {
+        void reject(LocalDate date, int index, String reason);
+    }
+
+    interface DayVisitor {
+        void visit(LocalDate date, List<Event> events) throws IOException;
+    }
+
+    // Told about every change as it is made, under the write lock, so it must be quick and must
+    // not call back into the store. A null date means any day may have changed.
+    interface ChangeListener {
+        void changed(LocalDate date);
+    }
+
+    private final Path directory;
+    private final Executor owner;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Odd while a change is running; only changed by the holder of the write lock.
+    private volatile long version;
+    private boolean writing;
+    private final NavigableMap<LocalDate, List<Event>> events = new ConcurrentSkipListMap<>();
+    private final PackedDay.Pool texts = new PackedDay.Pool();
+    // Replaced as a whole on every change, like the rules. The days off in it are saved with
+    // the events; the weekend and holidays in their own text file.
+    private volatile WorkingCalendar calendar = WorkingCalendar.STANDARD;
+    // Replaced as a whole on every change; the order matters to which occurrence wins a slot.
+    private volatile Map<Long, RecurrenceRule> recurrences = Collections.emptyMap();
+    private Map<Long, NavigableSet<LocalDate>> seriesDates = new HashMap<>();
+    // Cached schedules and month models are stamped with the version they were read at, and
+    // are only used while that is later than the last change to their month. A reader racing
+    // a change can then never leave a stale one behind for the next reader.
+    private final Map<LocalDate, Cached<DaySchedule>> schedules = new ConcurrentHashMap<>();
+    private final Map<YearMonth, Cached<MonthModel>> monthModels = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<YearMonth, Cached<MonthModel>> eldest) {
+            return size() > MONTH_CACHE_SIZE;
+        }
+    });
+    private final Map<YearMonth, Long> monthChanged = new ConcurrentHashMap<>();
+    private final List<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+    // Undo history, only touched under the write lock. Each change made after loading records
+    // what it replaced into a step; undoing a step records what it puts back over for redo.
+    private final Deque<Step> undoSteps = new ArrayDeque<>();
+    private final Deque<Step> redoSteps = new ArrayDeque<>();
+    private Step recording;
+    private long writeStarted;
+    private volatile long allChanged = -1;
+    private volatile long lastChanged = -1;
+    // Built in the background once loading is done (or on the first search if that comes
+    // sooner), then kept up to date by every change. Changes made while it is being built
+    // wait in the backlog. Both are only touched under the write lock.
+    private SearchIndex searchIndex;
+    private List<Consumer<SearchIndex>> searchBacklog;
+    private volatile EventStoreFile storeFile;
+    private final Set<YearMonth> loadedMonths = ConcurrentHashMap.newKeySet();
+    private volatile EventJournal journal;
+    private volatile boolean loaded;
+    private volatile boolean readOnly;
+    private boolean compacting;
+    private ScheduledFuture<?> pendingCompaction;
+    // Loading, compaction and shutdown all run here, one at a time, never on the owner thread.
+    private final ScheduledExecutorService ioExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "calendar-io");
+        t.setDaemon(true);
+        return t;
+    });
+
+    CalendarStore(Path directory) {
+        this(directory, null);
+    }
+
+    CalendarStore(Path directory, Executor owner) {
+        this.directory = directory;
+        this.owner = owner;
+        if (owner != null) {
+            ioExecutor.scheduleWithFixedDelay(() -> {
+                if (journal != null && journal.size() > 0) {
+                    compactJournal();
+                }
+            }, COMPACT_INTERVAL_MS, COMPACT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void addChangeListener(ChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    void removeChangeListener(ChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    // Changes made before the journal is open would not be saved, so callers should not edit
+    // until this is true.
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    // Stored single events for the day merged with whatever the recurrence rules produce for it.
+    // Occurrences that would collide with an event that was there first are left out, which is
+    // what the old copy-into-every-day loop did when it skipped overlapping days.
+    List<Event> eventsOn(LocalDate date) {
+        ensureMonth(date);
+        return read(() -> mergedOn(date));
+    }
+
+    private List<Event> mergedOn(LocalDate date) {
+        List<Event> dailyEvents = events.getOrDefault(date, Collections.emptyList());
+        List<Event> merged = null;
+        WorkingCalendar current = calendar;
+        for (RecurrenceRule rule : recurrences.values()) {
+            if (rule.occursOn(date, current)) {
+                if (merged == null) {
+                    merged = new ArrayList<>(dailyEvents);
+                }
+                addIfFree(merged, rule.event);
+            }
+        }
+        if (merged == null) {
+            return dailyEvents;
+        }
+        merged.sort(Comparator.comparing(e -> e.startTime));
+        return merged;
+    }
+
+    // One sub-map scan over the sorted store for the stored events, plus each rule expanded
+    // over the same range.
+    NavigableMap<LocalDate, List<Event>> eventsBetween(LocalDate from, LocalDate to) {
+        long started = RANGE_READS.start();
+        for (LocalDate month = from.withDayOfMonth(1); !month.isAfter(to); month = month.plusMonths(1)) {
+            ensureMonth(month);
+        }
+        NavigableMap<LocalDate, List<Event>> range = read(() -> withRules(events.subMap(from, true, to, true), from, to));
+        RANGE_READS.stop(started);
+        return range;
+    }
+
+    // Hands the days of a range to the visitor in order, a month at a time, so only one month
+    // of it is ever held. Months nobody opened are decoded for the walk and dropped again
+    // rather than kept in the store.
+    void forEachDay(LocalDate from, LocalDate to, DayVisitor visitor) throws IOException {
+        for (YearMonth month = YearMonth.from(from); !month.atDay(1).isAfter(to); month = month.plusMonths(1)) {
+            LocalDate first = from.isAfter(month.atDay(1)) ? from : month.atDay(1);
+            LocalDate last = to.isBefore(month.atEndOfMonth()) ? to : month.atEndOfMonth();
+            EventStoreFile file = storeFile;
+            NavigableMap<LocalDate, List<Event>> stored;
+            if (file != null && !loadedMonths.contains(month) && file.contains(month)) {
+                stored = new TreeMap<>(readStoredMonth(file, month)).subMap(first, true, last, true);
+            } else {
+                stored = events.subMap(first, true, last, true);
+            }
+            for (Map.Entry<LocalDate, List<Event>> day : read(() -> withRules(stored, first, last)).entrySet()) {
+                visitor.visit(day.getKey(), day.getValue());
+            }
+        }
+    }
+
+    private NavigableMap<LocalDate, List<Event>> withRules(NavigableMap<LocalDate, List<Event>> stored, LocalDate from, LocalDate to) {
+        NavigableMap<LocalDate, List<Event>> range = new TreeMap<>();
+        for (Map.Entry<LocalDate, List<Event>> entry : stored.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                range.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+        }
+        Map<Long, RecurrenceRule> rules = recurrences;
+        if (!rules.isEmpty()) {
+            WorkingCalendar current = calendar;
+            for (RecurrenceRule rule : rules.values()) {
+                rule.expand(from, to, current, (date, event) -> addIfFree(range.computeIfAbsent(date, k -> new ArrayList<>()), event));
+            }
+            range.values().removeIf(List::isEmpty);
+            range.values().forEach(list -> list.sort(Comparator.comparing(e -> e.startTime)));
+        }
+        return range;
+    }
+
+    MonthModel monthModel(YearMonth month) {
+        Cached<MonthModel> cached = monthModels.get(month);
+        if (cached != null && isCurrent(cached, month)) {
+            return cached.value;
+        }
+        long started = MONTH_MODELS.start();
+        ensureMonth(month.atDay(1));
+        long seen = version;
+        MonthModel model = new MonthModel(month, eventsBetween(month.atDay(1), month.atEndOfMonth()));
+        cache(monthModels, month, model, seen);
+        MONTH_MODELS.stop(started);
+        return model;
+    }
+
+    // Days off set by hand and holidays alike.
+    boolean isDayOff(LocalDate date) {
+        return calendar.isDayOff(date);
+    }
+
+    WorkingCalendar workingCalendar() {
+        return calendar;
+    }
+
+    // Takes the weekend and holidays of the given calendar, keeping the days off, and saves
+    // them. Not an undoable change: undo covers events and days off only.
+    void setWorkingRules(WorkingCalendar rules) {
+        String text = rules.format();
+        write(() -> {
+            calendar = calendar.withRulesOf(rules);
+            invalidateAll();
+        });
+        Runnable save = () -> {
+            try {
+                writeHolidays(text);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        };
+        if (readOnly) {
+            return;
+        }
+        if (owner == null) {
+            save.run();
+        } else {
+            ioExecutor.execute(save);
+        }
+    }
+
+    RecurrenceRule ruleOf(Event event) {
+        return event.seriesId == 0 ? null : recurrences.get(event.seriesId);
+    }
+
+    boolean isOverlapping(Event event, LocalDate date) {
+        long started = CONFLICT_CHECKS.start();
+        boolean overlapping = scheduleOn(date).overlaps(event.startTime, event.endTime);
+        CONFLICT_CHECKS.stop(started);
+        return overlapping;
+    }
+
+    List<Event> conflicts(Event event, LocalDate date) {
+        long started = CONFLICT_CHECKS.start();
+        List<Event> clashes = scheduleOn(date).conflicts(event.startTime, event.endTime);
+        CONFLICT_CHECKS.stop(started);
+        return clashes;
+    }
+
+    // Checks every occurrence of a series against the day indexes in one walk over its dates,
+    // stopping at the horizon for open-ended series.
+    Map<LocalDate, List<Event>> seriesConflicts(RecurrenceRule rule, LocalDate horizon) {
+        ensureMonths(rule.start, horizon);
+        return read(() -> {
+            Map<LocalDate, List<Event>> found = new TreeMap<>();
+            rule.expand(rule.start, horizon, calendar, (date, event) -> {
+                List<Event> clashes = conflicts(event, date);
+                if (!clashes.isEmpty()) {
+                    found.put(date, clashes);
+                }
+            });
+            return found;
+        });
+    }
+
+    // The earliest gaps of the given length between from and to, inside the daily window, at
+    // most one per gap. Days off are never offered and weekends only when asked for. Each day
+    // is one long of busy half hours, so a day is checked with a handful of bit operations.
+    List<FreeSlot> findFreeSlots(LocalDate from, LocalDate to, Duration length, LocalTime dayStart,
+                                 LocalTime dayEnd, boolean skipWeekends, int limit) {
+        int slots = slotCount(length);
+        long window = slotWindow(dayStart, dayEnd);
+        ensureMonths(from, to);
+        return read(() -> {
+            List<FreeSlot> found = new ArrayList<>();
+            WorkingCalendar current = calendar;
+            for (LocalDate date = from; !date.isAfter(to) && found.size() < limit; date = date.plusDays(1)) {
+                if (skipWeekends) {
+                    date = current.nextWorkingDay(date);
+                    if (date == null || date.isAfter(to)) {
+                        break;
+                    }
+                } else if (current.isDayOff(date)) {
+                    continue;
+                }
+                long starts = DaySchedule.runStarts(window & ~scheduleOn(date).occupancy(), slots);
+                while (starts != 0 && found.size() < limit) {
+                    int slot = Long.numberOfTrailingZeros(starts);
+                    LocalTime start = DaySchedule.slotTime(slot);
+                    found.add(new FreeSlot(date, start, start.plus(length)));
+                    starts &= -1L << (slot + slots);
+                }
+            }
+            return found;
+        });
+    }
+
+    // Start times at which the given length is free on every open day between from and to, for
+    // placing a recurring event: the free half hours of all those days ANDed together.
+    List<LocalTime> findCommonSlots(LocalDate from, LocalDate to, Duration length, LocalTime dayStart,
+                                    LocalTime dayEnd, boolean skipWeekends) {
+        ensureMonths(from, to);
+        long free = read(() -> {
+            long open = slotWindow(dayStart, dayEnd);
+            WorkingCalendar current = calendar;
+            for (LocalDate date = from; !date.isAfter(to) && open != 0; date = date.plusDays(1)) {
+                if (skipWeekends ? current.isWorkingDay(date) : !current.isDayOff(date)) {
+                    open &= ~scheduleOn(date).occupancy();
+                }
+            }
+            return open;
+        });
+        List<LocalTime> found = new ArrayList<>();
+        int slots = slotCount(length);
+        for (long starts = DaySchedule.runStarts(free, slots); starts != 0; starts &= starts - 1) {
+            found.add(DaySchedule.slotTime(Long.numberOfTrailingZeros(starts)));
+        }
+        return found;
+    }
+
+    private static int slotCount(Duration length) {
+        return (int) Math.max(1, (length.toMinutes() + DaySchedule.SLOT_MINUTES - 1) / DaySchedule.SLOT_MINUTES);
+    }
+
+    // The whole slots inside the daily window. The last half hour is left out since an event
+    // cannot end at midnight.
+    private static long slotWindow(LocalTime dayStart, LocalTime dayEnd) {
+        int slot = DaySchedule.SLOT_MINUTES;
+        int start = (DaySchedule.minuteOfDay(dayStart) + slot - 1) / slot * slot;
+        int end = Math.min(DaySchedule.minuteOfDay(dayEnd) / slot * slot, (DaySchedule.SLOTS_PER_DAY - 1) * slot);
+        return DaySchedule.slotMask(start, end);
+    }
+
+    // Events whose title or data contain every word of the query as the start of a word, in
+    // date order from the given date on. The stream is lazy, so skip and limit page through it
+    // without looking at later days. Open-ended series are followed for SEARCH_YEARS past
+    // the last stored match.
+    Stream<SearchHit> search(String query, LocalDate from) {
+        List<String> words = SearchIndex.words(query);
+        if (words.isEmpty()) {
+            return Stream.empty();
+        }
+        // The index is the one structure changed in place, so it is only read under the lock.
+        long started = SEARCHES.start();
+        SearchIndex.Candidates candidates = locked(() -> {
+            SearchIndex index = searchIndex();
+            return index == null ? null : index.candidates(words);
+        });
+        SEARCHES.stop(started);
+        if (candidates == null) {
+            return Stream.empty();
+        }
+        Map<Long, RecurrenceRule> current = recurrences;
+        List<RecurrenceRule> rules = new ArrayList<>();
+        for (long id : candidates.rules) {
+            RecurrenceRule rule = current.get(id);
+            if (rule != null) {
+                rules.add(rule);
+            }
+        }
+        Iterator<SearchHit> hits = new SearchHits(words, candidates.days, rules, from);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(hits, Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    // True once searches can find events. With an owner thread the index is built on the I/O
+    // thread after loading, and searches find nothing until it is in.
+    boolean isSearchReady() {
+        return locked(() -> searchIndex != null || owner == null);
+    }
+
+    // Headless stores build the index on first use, decoding every month. With an owner that
+    // would stall its thread, so the index is only ever built in the background there, again
+    // here if the last build failed or the index was dropped since.
+    private SearchIndex searchIndex() {
+        if (searchIndex == null && owner != null) {
+            if (searchBacklog == null && loaded) {
+                buildSearchIndex();
+            }
+            return null;
+        }
+        if (searchIndex == null) {
+            ensureAllMonths();
+            SearchIndex index = new SearchIndex();
+            for (Map.Entry<LocalDate, List<Event>> entry : events.entrySet()) {
+                for (Event event : entry.getValue()) {
+                    index.add(entry.getKey(), event);
+                }
+            }
+            for (RecurrenceRule rule : recurrences.values()) {
+                index.addRule(rule);
+            }
+            searchIndex = index;
+        }
+        return searchIndex;
+    }
+
+    // Builds the search index on the I/O thread from a copy of the decoded days and straight
+    // from the store file for the months nobody has opened yet. Called under the write lock.
+    private void buildSearchIndex() {
+        Map<LocalDate, List<Event>> decoded = new HashMap<>();
+        for (Map.Entry<LocalDate, List<Event>> entry : events.entrySet()) {
+            decoded.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+        }
+        List<RecurrenceRule> rules = new ArrayList<>(recurrences.values());
+        EventStoreFile file = storeFile;
+        List<YearMonth> undecoded = new ArrayList<>();
+        if (file != null) {
+            for (YearMonth month : file.months()) {
+                if (!loadedMonths.contains(month)) {
+                    undecoded.add(month);
+                }
+            }
+        }
+        List<Consumer<SearchIndex>> backlog = new ArrayList<>();
+        searchBacklog = backlog;
+        ioExecutor.execute(() -> {
+            SearchIndex index = new SearchIndex();
+            try {
+                for (YearMonth month : undecoded) {
+                    for (Map.Entry<LocalDate, List<Event>> entry : readStoredMonth(file, month).entrySet()) {
+                        for (Event event : entry.getValue()) {
+                            index.add(entry.getKey(), event);
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+                locked(() -> {
+                    if (searchBacklog == backlog) {
+                        searchBacklog = null;
+                    }
+                    return null;
+                });
+                return;
+            }
+            for (Map.Entry<LocalDate, List<Event>> entry : decoded.entrySet()) {
+                for (Event event : entry.getValue()) {
+                    index.add(entry.getKey(), event);
+                }
+            }
+            for (RecurrenceRule rule : rules) {
+                index.addRule(rule);
+            }
+            locked(() -> {
+                if (searchBacklog == backlog) {
+                    for (Consumer<SearchIndex> change : backlog) {
+                        change.accept(index);
+                    }
+                    searchIndex = index;
+                    searchBacklog = null;
+                }
+                return null;
+            });
+        });
+    }
+
+    // Applies a change to the search index, or queues it while the index is being built.
+    private void indexChange(Consumer<SearchIndex> change) {
+        if (searchIndex != null) {
+            change.accept(searchIndex);
+        } else if (searchBacklog != null) {
+            searchBacklog.add(change);
+        }
+    }
+
+    // Days decoded from the store file. While the index is still being built it reads them
+    // from the file itself, so only a finished index takes them.
+    private void indexDays(Map<LocalDate, List<Event>> days) {
+        if (searchIndex != null) {
+            for (Map.Entry<LocalDate, List<Event>> entry : days.entrySet()) {
+                for (Event event : entry.getValue()) {
+                    searchIndex.add(entry.getKey(), event);
+                }
+            }
+        }
+    }
+
+    // Why nothing can be added on the date, or null if it is open for events.
+    String checkDate(LocalDate date, LocalDate presentDate) {
+        WorkingCalendar current = calendar;
+        if (current.isDayOff(date)) {
+            String holiday = current.holidayOn(date);
+            return holiday == null ? "Cannot add events on dayoffs." : "Cannot add events on a holiday (" + holiday + ").";
+        }
+        if (date.isBefore(presentDate)) {
+            return "Cannot add events for past dates.";
+        }
+        return null;
+    }
+
+    // Why the event cannot be stored on the date, or null if it can. An event being edited is
+    // passed as replacing so that it does not count as its own conflict.
+    String checkEvent(LocalDate date, Event event, Event replacing) {
+        String invalid = checkDetails(event);
+        if (invalid != null) {
+            return invalid;
+        }
+        boolean overlapping;
+        if (replacing == null) {
+            overlapping = isOverlapping(event, date);
+        } else {
+            List<Event> clashes = conflicts(event, date);
+            clashes.remove(replacing);
+            overlapping = !clashes.isEmpty();
+        }
+        return overlapping ? "This event overlaps with an existing event." : null;
+    }
+
+    private static String checkDetails(Event event) {
+        if (event.title.isEmpty() || !event.startTime.isBefore(event.endTime)) {
+            return "Invalid event details.";
+        }
+        if (event.title.length() + event.data.length() > EventJournal.MAX_TEXT) {
+            return "The event title and details are too long.";
+        }
+        return null;
+    }
+
+    private DaySchedule scheduleOn(LocalDate date) {
+        Cached<DaySchedule> cached = schedules.get(date);
+        if (cached != null && (cached.version > lastChanged || isCurrent(cached, YearMonth.from(date)))) {
+            return cached.value;
+        }
+        ensureMonth(date);
+        long seen = version;
+        List<Event> dailyEvents = read(() -> mergedOn(date));
+        DaySchedule schedule = dailyEvents.isEmpty() ? DaySchedule.EMPTY : new DaySchedule(dailyEvents);
+        cache(schedules, date, schedule, seen);
+        return schedule;
+    }
+
+    private static void addIfFree(List<Event> dailyEvents, Event event) {
+        for (Event existingEvent : dailyEvents) {
+            if (DaySchedule.overlaps(event, existingEvent)) {
+                return;
+            }
+        }
+        dailyEvents.add(event);
+    }
+
+    void addEvent(LocalDate date, Event event) {
+        ensureMonth(date);
+        write(() -> {
+            List<Event> dailyEvents = merge(events.getOrDefault(date, Collections.emptyList()), List.of(event));
+            putDay(date, dailyEvents);
+            if (event.seriesId != 0) {
+                seriesDates.computeIfAbsent(event.seriesId, k -> new TreeSet<>()).add(date);
+            }
+            indexChange(index -> index.add(date, event));
+            invalidate(date);
+            if (journal != null) {
+                journal.addEvent(date, event);
+                journalChanged();
+            }
+        });
+    }
+
+    // Two lists in start order as one, the events of the first before those of the second that
+    // start at the same time, as a stable sort of the two would have them.
+    private static List<Event> merge(List<Event> sorted, List<Event> more) {
+        List<Event> merged = new ArrayList<>(sorted.size() + more.size());
+        int i = 0;
+        for (Event event : more) {
+            while (i < sorted.size() && !sorted.get(i).startTime.isAfter(event.startTime)) {
+                merged.add(sorted.get(i++));
+            }
+            merged.add(event);
+        }
+        merged.addAll(sorted.subList(i, sorted.size()));
+        return merged;
+    }
+
+    // Adds many events at once with the checks the add dialog makes: no days off, no past dates, a title
+    // and an end after the start, no overlaps. Each day takes one pass, its new events in start
+    // order against the day's schedule and against the ones accepted before them, followed by
+    // a single sort. The whole batch is one change to readers. Returns how many were added.
+    int addEvents(SortedMap<LocalDate, List<Event>> batch, LocalDate presentDate, Rejection rejection) {
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        ensureMonths(batch.firstKey(), batch.lastKey());
+        return write(() -> {
+            int added = 0;
+            for (Map.Entry<LocalDate, List<Event>> entry : batch.entrySet()) {
+                LocalDate date = entry.getKey();
+                List<Event> candidates = entry.getValue();
+                String rejected = checkDate(date, presentDate);
+                if (rejected != null) {
+                    for (int i = 0; i < candidates.size(); i++) {
+                        rejection.reject(date, i, rejected);
+                    }
+                    continue;
+                }
+                Integer[] order = new Integer[candidates.size()];
+                for (int i = 0; i < order.length; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, Comparator.comparing(i -> candidates.get(i).startTime));
+                DaySchedule schedule = scheduleOn(date);
+                List<Event> accepted = new ArrayList<>();
+                int acceptedEnd = -1;
+                for (int i : order) {
+                    Event event = candidates.get(i);
+                    String invalid = checkDetails(event);
+                    if (invalid != null) {
+                        rejection.reject(date, i, invalid);
+                    } else if (DaySchedule.minuteOfDay(event.startTime) < acceptedEnd
+                            || schedule.overlaps(event.startTime, event.endTime)) {
+                        rejection.reject(date, i, "This event overlaps with an existing event.");
+                    } else {
+                        accepted.add(event);
+                        acceptedEnd = Math.max(acceptedEnd, DaySchedule.minuteOfDay(event.endTime));
+                    }
+                }
+                if (accepted.isEmpty()) {
+                    continue;
+                }
+                // accepted in start order, so one merge puts the day in order
+                List<Event> dailyEvents = merge(events.getOrDefault(date, Collections.emptyList()), accepted);
+                putDay(date, dailyEvents);
+                for (Event event : accepted) {
+                    if (event.seriesId != 0) {
+                        seriesDates.computeIfAbsent(event.seriesId, k -> new TreeSet<>()).add(date);
+                    }
+                    indexChange(index -> index.add(date, event));
+                    if (journal != null) {
+                        journal.addEvent(date, event);
+                    }
+                }
+                invalidate(date);
+                added += accepted.size();
+            }
+            if (journal != null && added > 0) {
+                journalChanged();
+            }
+            return added;
+        });
+    }
+
+    void removeEvent(LocalDate date, Event event) {
+        ensureMonth(date);
+        write(() -> {
+            List<Event> stored = events.get(date);
+            if (stored != null) {
+                List<Event> dailyEvents = new ArrayList<>(stored);
+                if (dailyEvents.remove(event)) {
+                    indexChange(index -> index.remove(date, event));
+                }
+                putDay(date, dailyEvents);
+                if (!dailyEvents.contains(event)) {
+                    unindexSeriesDate(event.seriesId, date);
+                }
+                invalidate(date);
+                if (journal != null) {
+                    journal.removeEvent(date, event);
+                    journalChanged();
+                }
+            }
+        });
+    }
+
+    void clearDay(LocalDate date) {
+        ensureMonth(date);
+        write(() -> {
+            List<Event> removed = events.get(date);
+            if (removed != null) {
+                putDay(date, Collections.emptyList());
+                for (Event event : removed) {
+                    unindexSeriesDate(event.seriesId, date);
+                    indexChange(index -> index.remove(date, event));
+                }
+                invalidate(date);
+                if (journal != null) {
+                    journal.clearDay(date);
+                    journalChanged();
+                }
+            }
+        });
+    }
+
+    // Deletes a single event, or the chosen part of a series: everything from the present date
+    // on, everything from the event's date on, or just that one occurrence.
+    void deleteEvent(LocalDate date, Event event, Scope scope, LocalDate presentDate) {
+        write(() -> {
+            RecurrenceRule rule = ruleOf(event);
+            if ((rule == null && event.seriesId == 0) || scope == Scope.ONLY_THIS) {
+                if (rule != null) {
+                    addException(rule, date);
+                } else {
+                    removeEvent(date, event);
+                }
+                return;
+            }
+            LocalDate from = scope == Scope.ALL ? presentDate : date;
+            if (rule != null) {
+                endSeries(rule, from);
+            } else {
+                removeSeries(event.seriesId, from);
+            }
+        });
+    }
+
+    // Moves events by the same number of minutes each, which may carry them to other days, as
+    // one change: either every one moves or, if any cannot, none does. Stored events are moved;
+    // an occurrence of a series is taken out of it and stored at its new time on its own. Each
+    // day touched is checked in one pass over its events and its new ones merged in once.
+    // Returns why the batch could not be made, or an empty list if it was.
+    List<String> shiftEvents(Map<LocalDate, List<Event>> selection, long minutes, LocalDate presentDate) {
+        for (LocalDate date : selection.keySet()) {
+            ensureMonth(date);
+            ensureMonth(date.atStartOfDay().plusMinutes(minutes).toLocalDate());
+        }
+        return write(() -> {
+            List<String> rejected = new ArrayList<>();
+            Map<LocalDate, List<Event>> removed = new TreeMap<>();
+            Map<LocalDate, List<Event>> added = new TreeMap<>();
+            Map<RecurrenceRule, List<LocalDate>> detached = new LinkedHashMap<>();
+            for (Map.Entry<LocalDate, List<Event>> entry : selection.entrySet()) {
+                LocalDate date = entry.getKey();
+                for (Event event : entry.getValue()) {
+                    LocalDateTime start = date.atTime(event.startTime).plusMinutes(minutes);
+                    LocalDateTime end = date.atTime(event.endTime).plusMinutes(minutes);
+                    if (!end.toLocalDate().equals(start.toLocalDate())) {
+                        rejected.add(describe(date, event) + " would run past midnight.");
+                        continue;
+                    }
+                    RecurrenceRule rule = ruleOf(event);
+                    boolean stored = events.getOrDefault(date, Collections.emptyList()).contains(event);
+                    if (!stored && (rule == null || !rule.occursOn(date, calendar))) {
+                        rejected.add(describe(date, event) + " is no longer there.");
+                        continue;
+                    }
+                    if (stored) {
+                        removed.computeIfAbsent(date, k -> new ArrayList<>()).add(event);
+                        Event moved = new Event(event.title, event.data, start.toLocalTime(), end.toLocalTime(),
+                                event.isRecurringDaily, event.isRecurringWeekly);
+                        moved.seriesId = event.seriesId;
+                        added.computeIfAbsent(start.toLocalDate(), k -> new ArrayList<>()).add(moved);
+                    } else {
+                        removed.computeIfAbsent(date, k -> new ArrayList<>()).add(event);
+                        detached.computeIfAbsent(rule, k -> new ArrayList<>()).add(date);
+                        added.computeIfAbsent(start.toLocalDate(), k -> new ArrayList<>())
+                                .add(new Event(event.title, event.data, start.toLocalTime(), end.toLocalTime(), false, false));
+                    }
+                }
+            }
+            for (Map.Entry<LocalDate, List<Event>> entry : added.entrySet()) {
+                LocalDate date = entry.getKey();
+                List<Event> incoming = entry.getValue();
+                incoming.sort(Comparator.comparing(e -> e.startTime));
+                String closed = checkDate(date, presentDate);
+                if (closed != null) {
+                    rejected.add(date + ": " + closed);
+                    continue;
+                }
+                List<Event> staying = new ArrayList<>(mergedOn(date));
+                for (Event event : removed.getOrDefault(date, Collections.emptyList())) {
+                    staying.remove(event);
+                }
+                Event latest = null;
+                for (Event event : merge(staying, incoming)) {
+                    if (latest != null && event.startTime.isBefore(latest.endTime)) {
+                        rejected.add(describe(date, event) + " would overlap " + latest.title + ".");
+                    }
+                    if (latest == null || event.endTime.isAfter(latest.endTime)) {
+                        latest = event;
+                    }
+                }
+            }
+            if (!rejected.isEmpty()) {
+                return rejected;
+            }
+
+            for (Map.Entry<RecurrenceRule, List<LocalDate>> entry : detached.entrySet()) {
+                RecurrenceRule changed = recurrences.get(entry.getKey().id).copy();
+                changed.exceptions.addAll(entry.getValue());
+                putRule(changed);
+                if (journal != null) {
+                    for (LocalDate date : entry.getValue()) {
+                        journal.addException(changed.id, date);
+                    }
+                }
+            }
+            Set<LocalDate> touched = new TreeSet<>(removed.keySet());
+            touched.addAll(added.keySet());
+            for (LocalDate date : touched) {
+                List<Event> dailyEvents = new ArrayList<>(events.getOrDefault(date, Collections.emptyList()));
+                for (Event event : removed.getOrDefault(date, Collections.emptyList())) {
+                    if (dailyEvents.remove(event)) {
+                        indexChange(index -> index.remove(date, event));
+                        if (journal != null) {
+                            journal.removeEvent(date, event);
+                        }
+                        if (!dailyEvents.contains(event)) {
+                            unindexSeriesDate(event.seriesId, date);
+                        }
+                    }
+                }
+                List<Event> incoming = added.getOrDefault(date, Collections.emptyList());
+                for (Event event : incoming) {
+                    if (event.seriesId != 0) {
+                        seriesDates.computeIfAbsent(event.seriesId, k -> new TreeSet<>()).add(date);
+                    }
+                    indexChange(index -> index.add(date, event));
+                    if (journal != null) {
+                        journal.addEvent(date, event);
+                    }
+                }
+                putDay(date, merge(dailyEvents, incoming));
+                invalidate(date);
+            }
+            if (journal != null) {
+                journalChanged();
+            }
+            return rejected;
+        });
+    }
+
+    private static String describe(LocalDate date, Event event) {
+        return event.title + " on " + date + " at " + event.startTime;
+    }
+
+    // Every event stored on one day moved to another at the same times, as one change.
+    List<String> moveDay(LocalDate from, LocalDate to, LocalDate presentDate) {
+        ensureMonth(from);
+        List<Event> stored = read(() -> events.getOrDefault(from, Collections.emptyList()));
+        if (stored.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return shiftEvents(Map.of(from, stored), Duration.between(from.atStartOfDay(), to.atStartOfDay()).toMinutes(), presentDate);
+    }
+
+    // Moves a series by the given minutes from the present date on, the way editing one does:
+    // a rule is ended before its first occurrence from then and a moved copy starts in its
+    // place. All or nothing like shiftEvents, and checked against everything but the series
+    // itself; a series stored occurrence by occurrence is moved with shiftEvents. Returns why
+    // it could not be moved, or an empty list if it was.
+    List<String> shiftSeries(Event occurrence, long minutes, LocalDate presentDate) {
+        RecurrenceRule rule = ruleOf(occurrence);
+        if (rule == null) {
+            NavigableSet<LocalDate> dates = locked(() -> {
+                NavigableSet<LocalDate> all = seriesDates.get(occurrence.seriesId);
+                return all == null ? new TreeSet<LocalDate>() : new TreeSet<>(all.tailSet(presentDate, true));
+            });
+            Map<LocalDate, List<Event>> selection = new TreeMap<>();
+            for (LocalDate date : dates) {
+                for (Event event : eventsOn(date)) {
+                    if (event.seriesId == occurrence.seriesId && ruleOf(event) == null) {
+                        selection.computeIfAbsent(date, k -> new ArrayList<>()).add(event);
+                    }
+                }
+            }
+            return shiftEvents(selection, minutes, presentDate);
+        }
+        WorkingCalendar current = calendar;
+        LocalDate from = rule.start.isBefore(presentDate) ? presentDate : rule.start;
+        for (int i = 0; i < 7 && !rule.matchesPattern(from, current); i++) {
+            from = from.plusDays(1);
+        }
+        if (!rule.matchesPattern(from, current)) {
+            return Collections.emptyList();
+        }
+        LocalDateTime start = from.atTime(rule.event.startTime).plusMinutes(minutes);
+        LocalDateTime end = from.atTime(rule.event.endTime).plusMinutes(minutes);
+        if (!end.toLocalDate().equals(start.toLocalDate())) {
+            return List.of(describe(from, rule.event) + " would run past midnight.");
+        }
+        long days = from.until(start.toLocalDate(), ChronoUnit.DAYS);
+        String closed = checkDate(start.toLocalDate(), presentDate);
+        if (closed != null) {
+            return List.of(start.toLocalDate() + ": " + closed);
+        }
+        Event moved = new Event(rule.event.title, rule.event.data, start.toLocalTime(), end.toLocalTime(),
+                rule.event.isRecurringDaily, rule.event.isRecurringWeekly);
+        RecurrenceRule shifted = new RecurrenceRule(moved, start.toLocalDate(), rule.frequency, rule.weekdaysOnly,
+                rule.skipDaysOff, rule.end == null ? null : rule.end.plusDays(days), 0, current);
+        for (LocalDate exception : rule.exceptions) {
+            if (!exception.isBefore(from)) {
+                shifted.exceptions.add(exception.plusDays(days));
+            }
+        }
+        LocalDate horizon = shifted.end != null && shifted.end.isBefore(shifted.start.plusYears(1))
+                ? shifted.end : shifted.start.plusYears(1);
+        LocalDate ends = from;
+        ensureMonths(shifted.start, horizon);
+        return write(() -> {
+            List<String> rejected = new ArrayList<>();
+            for (Map.Entry<LocalDate, List<Event>> clash : seriesConflicts(shifted, horizon).entrySet()) {
+                for (Event event : clash.getValue()) {
+                    if (event.seriesId != rule.id) {
+                        rejected.add(describe(clash.getKey(), moved) + " would overlap " + event.title + ".");
+                    }
+                }
+            }
+            if (rejected.isEmpty()) {
+                endSeries(rule, ends);
+                addRule(shifted);
+            }
+            return rejected;
+        });
+    }
+
+    // Deletes every event between the dates that the filter accepts, as one change. Stored
+    // events are removed and occurrences of series become exceptions to them. Returns how
+    // many were deleted.
+    int deleteMatching(LocalDate from, LocalDate to, Predicate<Event> filter) {
+        ensureMonths(from, to);
+        return write(() -> {
+            int deleted = 0;
+            Map<Long, List<LocalDate>> exceptions = new LinkedHashMap<>();
+            for (Map.Entry<LocalDate, List<Event>> day : withRules(events.subMap(from, true, to, true), from, to).entrySet()) {
+                LocalDate date = day.getKey();
+                List<Event> stored = events.getOrDefault(date, Collections.emptyList());
+                List<Event> kept = new ArrayList<>(stored.size());
+                for (Event event : stored) {
+                    if (filter.test(event)) {
+                        indexChange(index -> index.remove(date, event));
+                        if (journal != null) {
+                            journal.removeEvent(date, event);
+                        }
+                        deleted++;
+                    } else {
+                        kept.add(event);
+                    }
+                }
+                boolean changed = kept.size() < stored.size();
+                for (Event event : day.getValue()) {
+                    RecurrenceRule rule = ruleOf(event);
+                    if (rule != null && !stored.contains(event) && filter.test(event)) {
+                        exceptions.computeIfAbsent(rule.id, k -> new ArrayList<>()).add(date);
+                        deleted++;
+                        changed = true;
+                    }
+                }
+                if (kept.size() < stored.size()) {
+                    putDay(date, kept);
+                    for (Event event : stored) {
+                        if (!kept.contains(event)) {
+                            unindexSeriesDate(event.seriesId, date);
+                        }
+                    }
+                }
+                // only the days that lost an event, so cached months nothing was taken from stay
+                if (changed) {
+                    invalidate(date);
+                }
+            }
+            for (Map.Entry<Long, List<LocalDate>> entry : exceptions.entrySet()) {
+                RecurrenceRule changed = recurrences.get(entry.getKey()).copy();
+                changed.exceptions.addAll(entry.getValue());
+                putRule(changed);
+                if (journal != null) {
+                    for (LocalDate date : entry.getValue()) {
+                        journal.addException(changed.id, date);
+                    }
+                }
+            }
+            if (journal != null && deleted > 0) {
+                journalChanged();
+            }
+            return deleted;
+        });
+    }
+
+    // Adds a series after turning the occurrences that would collide with existing events in
+    // its first year into exceptions. Returns those collisions.
+    Map<LocalDate, List<Event>> addSeries(RecurrenceRule rule) {
+        LocalDate checkedUntil = checkHorizon(rule);
+        ensureMonths(rule.start, checkedUntil);
+        return write(() -> {
+            Map<LocalDate, List<Event>> clashes = seriesConflicts(rule, checkedUntil);
+            rule.exceptions.addAll(clashes.keySet());
+            addRule(rule);
+            return clashes;
+        });
+    }
+
+    // Adds many series as one change, each checked on its first day and given exceptions where
+    // it collides the way addSeries does. One that cannot go in is told to the rejection with
+    // its place in the list. Returns how many were added.
+    int addSeries(List<RecurrenceRule> rules, LocalDate presentDate, Rejection rejection) {
+        if (rules.isEmpty()) {
+            return 0;
+        }
+        for (RecurrenceRule rule : rules) {
+            ensureMonths(rule.start, checkHorizon(rule));
+        }
+        return write(() -> {
+            int added = 0;
+            for (int i = 0; i < rules.size(); i++) {
+                RecurrenceRule rule = rules.get(i);
+                String rejected = checkDate(rule.start, presentDate);
+                if (rejected == null) {
+                    rejected = checkEvent(rule.start, rule.event, null);
+                }
+                if (rejected != null) {
+                    rejection.reject(rule.start, i, rejected);
+                    continue;
+                }
+                addSeries(rule);
+                added++;
+            }
+            return added;
+        });
+    }
+
+    private static LocalDate checkHorizon(RecurrenceRule rule) {
+        LocalDate horizon = rule.start.plusYears(1);
+        return rule.end != null && rule.end.isBefore(horizon) ? rule.end : horizon;
+    }
+
+    // The rule must not be changed by the caller once it is added.
+    void addRule(RecurrenceRule rule) {
+        write(() -> {
+            putRule(rule);
+            indexChange(index -> index.addRule(rule));
+            invalidateAll();
+            if (journal != null) {
+                journal.addRule(rule);
+                journalChanged();
+            }
+        });
+    }
+
+    void addException(RecurrenceRule rule, LocalDate date) {
+        write(() -> {
+            RecurrenceRule current = recurrences.get(rule.id);
+            if (current == null) {
+                return;
+            }
+            RecurrenceRule changed = current.copy();
+            changed.exceptions.add(date);
+            putRule(changed);
+            invalidate(date);
+            if (journal != null) {
+                journal.addException(rule.id, date);
+                journalChanged();
+            }
+        });
+    }
+
+    // Ends a series the day before the given date, dropping it entirely if it had not started yet.
+    void endSeries(RecurrenceRule rule, LocalDate from) {
+        write(() -> {
+            RecurrenceRule current = recurrences.get(rule.id);
+            if (current == null) {
+                return;
+            }
+            if (!current.start.isBefore(from)) {
+                dropRule(current.id);
+                indexChange(index -> index.removeRule(current));
+                if (journal != null) {
+                    journal.removeRule(current.id);
+                }
+            } else {
+                LocalDate last = from.minusDays(1);
+                if (current.end == null || current.end.isAfter(last)) {
+                    RecurrenceRule changed = current.copy();
+                    changed.end = last;
+                    putRule(changed);
+                    if (journal != null) {
+                        journal.endRule(current.id, last);
+                    }
+                }
+            }
+            invalidateAll();
+            if (journal != null) {
+                journalChanged();
+            }
+        });
+    }
+
+    // Removes the stored occurrences of a series from the given date on. Only series written
+    // occurrence by occurrence are stored this way; the index points straight at their days.
+    void removeSeries(long seriesId, LocalDate from) {
+        write(() -> {
+            NavigableSet<LocalDate> dates = seriesDates.get(seriesId);
+            if (dates == null) {
+                return;
+            }
+            for (LocalDate date : new ArrayList<>(dates.tailSet(from, true))) {
+                ensureMonth(date);
+                List<Event> stored = events.get(date);
+                if (stored != null) {
+                    List<Event> dailyEvents = new ArrayList<>(stored.size());
+                    for (Event event : stored) {
+                        if (event.seriesId == seriesId) {
+                            indexChange(index -> index.remove(date, event));
+                        } else {
+                            dailyEvents.add(event);
+                        }
+                    }
+                    putDay(date, dailyEvents);
+                }
+                dates.remove(date);
+                invalidate(date);
+            }
+            if (dates.isEmpty()) {
+                seriesDates.remove(seriesId);
+            }
+            if (journal != null) {
+                journal.removeSeries(seriesId, from);
+                journalChanged();
+            }
+        });
+    }
+
+    void setDayOff(LocalDate date, boolean off) {
+        write(() -> {
+            if (recording != null) {
+                recording.daysOff.putIfAbsent(date, calendar.daysOff().contains(date));
+            }
+            calendar = calendar.withDayOff(date, off);
+            invalidate(date);
+            if (journal != null) {
+                journal.setDayOff(date, off);
+                journalChanged();
+            }
+        });
+    }
+
+    // Replays removals journaled before series ids existed, which matched occurrences by
+    // title and time across the whole calendar.
+    private void removeMatchingEvents(Event event, LocalDate startDate) {
+        ensureAllMonths();
+        write(() -> {
+            for (Map.Entry<LocalDate, List<Event>> entry : events.tailMap(startDate, true).entrySet()) {
+                List<Event> dailyEvents = new ArrayList<>(entry.getValue());
+                if (dailyEvents.removeIf(e -> e.title.equals(event.title) &&
+                        e.startTime.equals(event.startTime) &&
+                        e.endTime.equals(event.endTime))) {
+                    putDay(entry.getKey(), dailyEvents);
+                }
+            }
+            searchIndex = null;
+            searchBacklog = null;
+            invalidateAll();
+        });
+    }
+
+    // Stored days are never changed once stored, only replaced, so a reader holding one keeps
+    // a whole day. They are kept packed; the events read back are equal to the ones put in but
+    // made anew on each read. Called under the write lock.
+    private void putDay(LocalDate date, List<Event> dailyEvents) {
+        storeDay(date, dailyEvents.isEmpty() ? null : PackedDay.of(dailyEvents, texts));
+    }
+
+    // Takes a packed day, or null to empty the day.
+    private void storeDay(LocalDate date, List<Event> dailyEvents) {
+        if (recording != null && !recording.days.containsKey(date)) {
+            recording.days.put(date, events.get(date));
+        }
+        if (dailyEvents == null) {
+            events.remove(date);
+        } else {
+            events.put(date, dailyEvents);
+        }
+    }
+
+    // Rules are replaced the same way, together with the map holding them.
+    private void putRule(RecurrenceRule rule) {
+        Map<Long, RecurrenceRule> rules = new LinkedHashMap<>(recurrences);
+        rules.put(rule.id, rule);
+        storeRules(Collections.unmodifiableMap(rules));
+    }
+
+    private RecurrenceRule dropRule(long id) {
+        Map<Long, RecurrenceRule> rules = new LinkedHashMap<>(recurrences);
+        RecurrenceRule removed = rules.remove(id);
+        storeRules(Collections.unmodifiableMap(rules));
+        return removed;
+    }
+
+    private void storeRules(Map<Long, RecurrenceRule> rules) {
+        if (recording != null && recording.rules == null) {
+            recording.rules = recurrences;
+        }
+        recurrences = rules;
+    }
+
+    // Runs the changes as one change: readers see all of them or none, and they are undone
+    // together.
+    void batch(Runnable changes) {
+        write(changes);
+    }
+
+    boolean canUndo() {
+        return locked(() -> !undoSteps.isEmpty());
+    }
+
+    boolean canRedo() {
+        return locked(() -> !redoSteps.isEmpty());
+    }
+
+    // Puts back what the last change replaced. Returns false if there was nothing to undo.
+    boolean undo() {
+        return write(() -> restore(undoSteps, redoSteps));
+    }
+
+    boolean redo() {
+        return write(() -> restore(redoSteps, undoSteps));
+    }
+
+    // Restores the last step of one history onto the store, recording what it replaces as the
+    // step for the other. Only the days, rules and days off the step holds are touched, and the
+    // rules go back as the one map they were, so undoing the end of a series is a single swap
+    // whatever its length. Everything is journaled like any other change.
+    private boolean restore(Deque<Step> from, Deque<Step> to) {
+        Step step = from.pollLast();
+        if (step == null) {
+            return false;
+        }
+        recording = new Step();
+        for (Map.Entry<LocalDate, List<Event>> entry : step.days.entrySet()) {
+            restoreDay(entry.getKey(), entry.getValue());
+        }
+        if (step.rules != null) {
+            restoreRules(step.rules);
+        }
+        for (Map.Entry<LocalDate, Boolean> entry : step.daysOff.entrySet()) {
+            setDayOff(entry.getKey(), entry.getValue());
+        }
+        to.addLast(recording);
+        recording = null;
+        if (journal != null) {
+            journalChanged();
+        }
+        return true;
+    }
+
+    private void restoreDay(LocalDate date, List<Event> dailyEvents) {
+        ensureMonth(date);
+        for (Event event : events.getOrDefault(date, Collections.emptyList())) {
+            unindexSeriesDate(event.seriesId, date);
+            indexChange(index -> index.remove(date, event));
+        }
+        storeDay(date, dailyEvents);
+        if (journal != null) {
+            journal.clearDay(date);
+        }
+        if (dailyEvents != null) {
+            for (Event event : dailyEvents) {
+                if (event.seriesId != 0) {
+                    seriesDates.computeIfAbsent(event.seriesId, k -> new TreeSet<>()).add(date);
+                }
+                indexChange(index -> index.add(date, event));
+                if (journal != null) {
+                    journal.addEvent(date, event);
+                }
+            }
+        }
+        invalidate(date);
+    }
+
+    // Journals and indexes only the rules that differ between the two maps.
+    private void restoreRules(Map<Long, RecurrenceRule> rules) {
+        Map<Long, RecurrenceRule> current = recurrences;
+        for (RecurrenceRule rule : current.values()) {
+            if (rules.get(rule.id) != rule) {
+                indexChange(index -> index.removeRule(rule));
+                if (journal != null) {
+                    journal.removeRule(rule.id);
+                }
+            }
+        }
+        for (RecurrenceRule rule : rules.values()) {
+            if (current.get(rule.id) != rule) {
+                indexChange(index -> index.addRule(rule));
+                if (journal != null) {
+                    journal.addRule(rule);
+                }
+            }
+        }
+        storeRules(rules);
+        invalidateAll();
+    }
+
+    private void unindexSeriesDate(long seriesId, LocalDate date) {
+        NavigableSet<LocalDate> dates = seriesDates.get(seriesId);
+        if (dates != null) {
+            dates.remove(date);
+            if (dates.isEmpty()) {
+                seriesDates.remove(seriesId);
+            }
+        }
+    }
+
+    // Decodes the month holding the date from the store file the first time it is needed, off
+    // the lock, and installs it as a change. Once loading has finished, months are marked even
+    // while there is no store file yet, so that the first snapshot, once it is swapped in, is
+    // never decoded over later changes.
+    private void ensureMonth(LocalDate date) {
+        YearMonth month = YearMonth.from(date);
+        if (loadedMonths.contains(month)) {
+            return;
+        }
+        EventStoreFile file = storeFile;
+        if (file == null && !loaded) {
+            return;
+        }
+        Map<LocalDate, List<Event>> days = Collections.emptyMap();
+        if (file != null && file.contains(month)) {
+            try {
+                days = readStoredMonth(file, month);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        Map<LocalDate, List<Event>> decoded = days;
+        write(() -> installMonth(month, decoded));
+    }
+
+    // Decodes the month of the date now, so that a change to it made later under the lock does
+    // not have to read the store file there.
+    void loadMonth(LocalDate date) {
+        ensureMonth(date);
+    }
+
+    private void ensureMonths(LocalDate from, LocalDate to) {
+        for (LocalDate month = from.withDayOfMonth(1); !month.isAfter(to); month = month.plusMonths(1)) {
+            ensureMonth(month);
+        }
+    }
+
+    private void ensureAllMonths() {
+        EventStoreFile file = storeFile;
+        if (file != null) {
+            for (YearMonth month : file.months()) {
+                ensureMonth(month.atDay(1));
+            }
+        }
+    }
+
+    // Called under the write lock, after the change itself.
+    private void invalidate(LocalDate date) {
+        YearMonth month = YearMonth.from(date);
+        monthChanged.put(month, version);
+        lastChanged = version;
+        schedules.remove(date);
+        monthModels.remove(month);
+        for (ChangeListener listener : changeListeners) {
+            listener.changed(date);
+        }
+    }
+
+    private void invalidateMonth(YearMonth month) {
+        monthChanged.put(month, version);
+        lastChanged = version;
+        schedules.keySet().removeIf(date -> YearMonth.from(date).equals(month));
+        monthModels.remove(month);
+    }
+
+    private void invalidateAll() {
+        allChanged = version;
+        lastChanged = version;
+        schedules.clear();
+        monthModels.clear();
+        for (ChangeListener listener : changeListeners) {
+            listener.changed(null);
+        }
+    }
+
+    // Every month holding stored events, whether decoded this session or still only in the
+    // store file. Recurrences are not counted; they run on with no last month.
+    NavigableSet<YearMonth> storedMonths() {
+        NavigableSet<YearMonth> months = new TreeSet<>();
+        EventStoreFile file = storeFile;
+        if (file != null) {
+            months.addAll(file.months());
+        }
+        return read(() -> {
+            for (YearMonth month : loadedMonths) {
+                NavigableMap<LocalDate, List<Event>> days = events.subMap(month.atDay(1), true, month.atEndOfMonth(), true);
+                if (days.values().stream().allMatch(List::isEmpty)) {
+                    months.remove(month);
+                } else {
+                    months.add(month);
+                }
+            }
+            return months;
+        });
+    }
+
+    // Changes whenever anything read for the month may have: one of its days, or the rules,
+    // the working calendar or the whole store. Versions only grow, so the largest over a
+    // range tells whether any month of it changed.
+    long monthVersion(YearMonth month) {
+        return Math.max(allChanged, monthChanged.getOrDefault(month, -1L));
+    }
+
+    private boolean isCurrent(Cached<?> cached, YearMonth month) {
+        if (cached.version > lastChanged) {
+            return true;
+        }
+        return cached.version > allChanged && cached.version > monthChanged.getOrDefault(month, -1L);
+    }
+
+    // Only values read between changes are kept; one read while a change runs is not.
+    private static <K, T> void cache(Map<K, Cached<T>> cache, K key, T value, long seen) {
+        if ((seen & 1) == 0) {
+            cache.put(key, new Cached<>(value, seen));
+        }
+    }
+
+    // Runs the read without taking the lock, and again if a change overlapped it. A reader
+    // that keeps losing to changes takes the lock for its last try so that it cannot starve.
+    private <T> T read(Supplier<T> reader) {
+        if (writeLock.isHeldByCurrentThread()) {
+            return reader.get();
+        }
+        for (int attempt = 0; attempt < OPTIMISTIC_READS; attempt++) {
+            long seen = version;
+            if ((seen & 1) != 0) {
+                READ_RETRIES.increment();
+                Thread.onSpinWait();
+                continue;
+            }
+            T result;
+            try {
+                result = reader.get();
+            } catch (RuntimeException e) {
+                // a half-made change can make a read fail; only a failure between changes is real
+                VarHandle.acquireFence();
+                if (version == seen) {
+                    throw e;
+                }
+                READ_RETRIES.increment();
+                continue;
+            }
+            VarHandle.acquireFence();
+            if (version == seen) {
+                return result;
+            }
+            READ_RETRIES.increment();
+        }
+        LOCKED_READS.increment();
+        return locked(reader);
+    }
+
+    // A change, made under the write lock. Changes may call each other; the version only
+    // moves for the outermost one, so readers see them as one.
+    private void write(Runnable change) {
+        write(() -> {
+            change.run();
+            return null;
+        });
+    }
+
+    private <T> T write(Supplier<T> change) {
+        boolean outermost = beginWrite();
+        try {
+            return change.get();
+        } finally {
+            endWrite(outermost);
+        }
+    }
+
+    private boolean beginWrite() {
+        writeLock.lock();
+        if (writing) {
+            return false;
+        }
+        writing = true;
+        writeStarted = WRITES.start();
+        version++;
+        if (loaded) {
+            recording = new Step();
+        }
+        return true;
+    }
+
+    private void endWrite(boolean outermost) {
+        if (outermost) {
+            if (recording != null && !recording.isEmpty()) {
+                undoSteps.addLast(recording);
+                if (undoSteps.size() > HISTORY_LIMIT) {
+                    undoSteps.removeFirst();
+                }
+                redoSteps.clear();
+            }
+            recording = null;
+            version++;
+            writing = false;
+            WRITES.stop(writeStarted);
+        }
+        writeLock.unlock();
+    }
+
+    // Holds off changes without being one, for work that must not see one half done.
+    private <T> T locked(Supplier<T> action) {
+        writeLock.lock();
+        try {
+            return action.get();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Loads on the calling thread, replaying the journal straight into the store.
+    void load() throws IOException {
+        long started = LOADS.start();
+        boolean outermost = beginWrite();
+        try {
+            WorkingCalendar rules = readHolidays();
+            if (rules != null) {
+                calendar = calendar.withRulesOf(rules);
+            }
+            EventStoreFile file = openStoreFile();
+            if (file != null) {
+                installStore(file);
+            }
+            journal = EventJournal.open(directory.resolve(JOURNAL_FILE), file == null ? 0 : file.seq(), new JournalReplay());
+            loaded = true;
+            invalidateAll();
+            if (journal.size() > 0) {
+                flush();
+            }
+        } finally {
+            endWrite(outermost);
+            LOADS.stop(started);
+        }
+    }
+
+    // Loads for reading only, as a second process may while the app has the calendar open: the
+    // journal is replayed into memory but never opened for appending, cut short or folded into
+    // the store file, nothing in the directory is changed, and closing writes nothing. Changes
+    // made to the store afterwards are kept in memory only.
+    void loadReadOnly() throws IOException {
+        long started = LOADS.start();
+        readOnly = true;
+        boolean outermost = beginWrite();
+        try {
+            WorkingCalendar rules = readHolidays();
+            if (rules != null) {
+                calendar = calendar.withRulesOf(rules);
+            }
+            Path path = directory.resolve(STORE_FILE);
+            Path legacy = directory.resolve(LEGACY_FILE);
+            EventStoreFile file = null;
+            if (Files.exists(path)) {
+                file = EventStoreFile.open(path);
+            } else if (Files.exists(legacy)) {
+                Path converted = convertLegacySnapshot(legacy, Files.createTempDirectory("calendar").resolve(STORE_FILE));
+                converted.toFile().deleteOnExit();
+                converted.getParent().toFile().deleteOnExit();
+                file = EventStoreFile.open(converted);
+            }
+            if (file != null) {
+                installStore(file);
+            }
+            EventJournal.replay(directory.resolve(JOURNAL_FILE), file == null ? 0 : file.seq(), new JournalReplay());
+            loaded = true;
+            invalidateAll();
+        } finally {
+            endWrite(outermost);
+            LOADS.stop(started);
+        }
+    }
+
+    // Runs on the I/O thread and hands each stage to the owner as soon as it is ready: the store
+    // index and the month on screen first (then onMonth runs), then the journal tail (then
+    // onLoaded runs), then the neighbouring months.
+    void loadAsync(YearMonth shown, Runnable onMonth, Runnable onLoaded) {
+        ioExecutor.execute(() -> {
+            long started = System.nanoTime();
+            EventStoreFile file = null;
+            long seq = 0;
+            try {
+                WorkingCalendar rules = readHolidays();
+                if (rules != null) {
+                    owner.execute(() -> write(() -> {
+                        calendar = calendar.withRulesOf(rules);
+                        invalidateAll();
+                    }));
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            try {
+                file = openStoreFile();
+                if (file != null) {
+                    EventStoreFile opened = file;
+                    Map<LocalDate, List<Event>> shownDays = readStoredMonth(opened, shown);
+                    seq = file.seq();
+                    owner.execute(() -> {
+                        write(() -> {
+                            installStore(opened);
+                            installMonth(shown, shownDays);
+                        });
+                        onMonth.run();
+                    });
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            EventJournal.Deferred tail = new EventJournal.Deferred();
+            EventJournal openedJournal = null;
+            try {
+                openedJournal = EventJournal.open(directory.resolve(JOURNAL_FILE), seq, tail);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            EventJournal loadedJournal = openedJournal;
+            LOADS.stop(started);
+            REPLAYED.add(tail.size());
+            owner.execute(() -> {
+                write(() -> {
+                    tail.applyTo(new JournalReplay());
+                    journal = loadedJournal;
+                    loaded = true;
+                    invalidateAll();
+                    buildSearchIndex();
+                });
+                onLoaded.run();
+                if (journal != null && journal.size() > 0) {
+                    compactJournal();
+                }
+            });
+
+            if (file != null) {
+                for (YearMonth month : List.of(shown.minusMonths(1), shown.plusMonths(1))) {
+                    try {
+                        Map<LocalDate, List<Event>> days = readStoredMonth(file, month);
+                        owner.execute(() -> write(() -> installMonth(month, days)));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+    }
+
+    // Decodes a month on the I/O thread so paging to it does not wait on the store.
+    void prefetchMonth(YearMonth month) {
+        EventStoreFile file = storeFile;
+        if (owner == null || file == null || loadedMonths.contains(month) || !file.contains(month)) {
+            return;
+        }
+        ioExecutor.execute(() -> {
+            try {
+                Map<LocalDate, List<Event>> days = readStoredMonth(file, month);
+                write(() -> {
+                    if (storeFile == file) {
+                        installMonth(month, days);
+                    }
+                });
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private EventStoreFile openStoreFile() throws IOException {
+        Path path = directory.resolve(STORE_FILE);
+        Path legacy = directory.resolve(LEGACY_FILE);
+        if (!Files.exists(path) && Files.exists(legacy)) {
+            migrateLegacySnapshot(legacy, path);
+        }
+        return Files.exists(path) ? EventStoreFile.open(path) : null;
+    }
+
+    // Months are read from the store file off the lock. A save can close that file and put a new
+    // one in its place meanwhile; the month is then read from the new one, which holds it too.
+    // A reader interrupted mid-read reads again with the interrupt put back afterwards, since a
+    // month that failed to load would be saved empty.
+    private Map<LocalDate, List<Event>> readStoredMonth(EventStoreFile file, YearMonth month) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return file.readMonth(month);
+                } catch (ClosedByInterruptException e) {
+                    Thread.interrupted();
+                    interrupted = true;
+                } catch (ClosedChannelException e) {
+                    EventStoreFile current = locked(() -> storeFile);
+                    if (current == null || current == file) {
+                        throw e;
+                    }
+                    file = current;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Puts a snapshot written next to the store file in its place and opens it, under the lock
+    // so that no month is read in between. The old file is closed first, as Windows will not
+    // replace a file that is open; if the new one cannot be put in place the old one is opened
+    // again.
+    private EventStoreFile replaceStoreFile(Path written) throws IOException {
+        Path path = directory.resolve(STORE_FILE);
+        return locked(() -> {
+            EventStoreFile previous = storeFile;
+            try {
+                if (previous != null) {
+                    previous.close();
+                }
+                EventStoreFile.replace(written, path);
+                storeFile = EventStoreFile.open(path);
+            } catch (IOException e) {
+                if (previous != null) {
+                    try {
+                        storeFile = EventStoreFile.open(path);
+                    } catch (IOException reopening) {
+                        e.addSuppressed(reopening);
+                    }
+                }
+                throw new UncheckedIOException(e);
+            }
+            return storeFile;
+        });
+    }
+
+    // The weekend and holidays saved by setWorkingRules, or null if there are none.
+    private WorkingCalendar readHolidays() throws IOException {
+        Path path = directory.resolve(HOLIDAYS_FILE);
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try {
+            return WorkingCalendar.parse(Files.readAllLines(path));
+        } catch (IllegalArgumentException e) {
+            throw new IOException(path + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void writeHolidays(String text) throws IOException {
+        Path path = directory.resolve(HOLIDAYS_FILE);
+        Path tmp = directory.resolve(HOLIDAYS_FILE + ".tmp");
+        Files.write(tmp, text.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void installStore(EventStoreFile file) {
+        storeFile = file;
+        calendar = calendar.withDaysOff(file.daysOff());
+        Map<Long, RecurrenceRule> rules = new LinkedHashMap<>(recurrences);
+        for (RecurrenceRule rule : file.rules()) {
+            rules.put(rule.id, rule);
+        }
+        recurrences = Collections.unmodifiableMap(rules);
+        seriesDates = new HashMap<>();
+        for (Map.Entry<Long, NavigableSet<LocalDate>> entry : file.seriesDates().entrySet()) {
+            seriesDates.put(entry.getKey(), new TreeSet<>(entry.getValue()));
+        }
+        searchIndex = null;
+        searchBacklog = null;
+        invalidateAll();
+    }
+
+    // Takes a decoded month, unless another thread got there first. Called under the write lock.
+    private void installMonth(YearMonth month, Map<LocalDate, List<Event>> days) {
+        if ((storeFile != null || loaded) && loadedMonths.add(month)) {
+            // decoded from the file, not changed, so not part of any undo step
+            for (Map.Entry<LocalDate, List<Event>> entry : days.entrySet()) {
+                events.put(entry.getKey(), PackedDay.of(entry.getValue(), texts));
+            }
+            indexDays(days);
+            invalidateMonth(month);
+        }
+    }
+
+    // Compaction waits until the user pauses so a burst of edits is folded into one snapshot,
+    // unless the journal has grown far past the threshold in the meantime. Without an owner
+    // thread there is nobody to hand the copy to, and the journal is folded in by flush() or
+    // on the next load instead.
+    private void journalChanged() {
+        if (owner == null) {
+            return;
+        }
+        if (journal.size() > 4 * COMPACT_THRESHOLD) {
+            compactJournal();
+            return;
+        }
+        if (pendingCompaction != null) {
+            pendingCompaction.cancel(false);
+        }
+        pendingCompaction = ioExecutor.schedule(() -> {
+            if (journal != null && journal.size() > COMPACT_THRESHOLD) {
+                compactJournal();
+            }
+        }, SAVE_DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Folds the journal into a fresh snapshot. The state is copied under the lock and written
+    // out on the I/O thread while new changes go to a new journal file.
+    private void compactJournal() {
+        locked(() -> {
+            if (compacting || journal == null) {
+                return null;
+            }
+            long seq = journal.lastSeq();
+            boolean rotated;
+            try {
+                rotated = journal.rotate();
+            } catch (IOException e) {
+                e.printStackTrace();
+                return null;
+            }
+            // A journal rotated by an earlier compaction that failed is still in the way. The
+            // snapshot folds it in along with the live one, and compaction runs again once it
+            // is gone so the live journal is rotated after all.
+            Snapshot snapshot = new Snapshot(seq);
+            EventJournal current = journal;
+            compacting = true;
+            ioExecutor.execute(() -> {
+                long started = COMPACTIONS.start();
+                boolean retry = false;
+                try {
+                    replaceStoreFile(snapshot.writeTo(directory.resolve(STORE_FILE)));
+                    current.dropRotated();
+                    retry = !rotated;
+                } catch (IOException | UncheckedIOException e) {
+                    e.printStackTrace();
+                } finally {
+                    locked(() -> {
+                        compacting = false;
+                        return null;
+                    });
+                    COMPACTIONS.stop(started);
+                }
+                if (retry) {
+                    compactJournal();
+                }
+            });
+            return null;
+        });
+    }
+
+    // The same compaction done on the calling thread, for stores without an owner executor.
+    void flush() throws IOException {
+        if (readOnly) {
+            throw new IOException("The calendar was opened read-only");
+        }
+        long started = FLUSHES.start();
+        writeLock.lock();
+        try {
+            Path path = directory.resolve(STORE_FILE);
+            if (journal == null) {
+                replaceStoreFile(new Snapshot(0).writeTo(path));
+            } else {
+                long seq = journal.lastSeq();
+                boolean rotated = journal.rotate();
+                replaceStoreFile(new Snapshot(seq).writeTo(path));
+                journal.dropRotated();
+                if (!rotated) {
+                    // an earlier rotated journal was in the way; the snapshot holds the live
+                    // one as well, so it can go now too
+                    journal.rotate();
+                    journal.dropRotated();
+                }
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            writeLock.unlock();
+            FLUSHES.stop(started);
+        }
+    }
+
+    // Finishes writing on the I/O thread, after any compaction that is still running there,
+    // then runs done there as well.
+    void closeAsync(Runnable done) {
+        Runnable finish = finishWriting();
+        ioExecutor.execute(() -> {
+            finish.run();
+            done.run();
+        });
+    }
+
+    @Override
+    public void close() {
+        finishWriting().run();
+        ioExecutor.shutdownNow();
+        EventStoreFile file = storeFile;
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // If the journal never opened, everything is written out as one snapshot; nothing at all is
+    // written if loading never finished, since the store would be missing what was on disk.
+    private Runnable finishWriting() {
+        return locked(() -> {
+            if (pendingCompaction != null) {
+                pendingCompaction.cancel(false);
+            }
+            if (!loaded || readOnly) {
+                return () -> { };
+            }
+            if (journal == null) {
+                Snapshot snapshot = new Snapshot(0);
+                return () -> {
+                    try {
+                        replaceStoreFile(snapshot.writeTo(directory.resolve(STORE_FILE)));
+                    } catch (IOException | UncheckedIOException e) {
+                        e.printStackTrace();
+                    }
+                };
+            }
+            EventJournal current = journal;
+            return () -> {
+                try {
+                    current.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            };
+        });
+    }
+
+    // Walks the candidates a quarter at a time: the stored candidate days in the quarter plus the
+    // days the candidate rules fall on, each checked against the merged events of the day.
+    private class SearchHits implements Iterator<SearchHit> {
+        private static final int WINDOW_DAYS = 92;
+
+        private final List<String> words;
+        private final int[] days;
+        private final List<RecurrenceRule> rules;
+        private final LocalDate[] ruleEnds;
+        private final Deque<SearchHit> pending = new ArrayDeque<>();
+        private LocalDate next;
+
+        SearchHits(List<String> words, int[] days, List<RecurrenceRule> rules, LocalDate from) {
+            this.words = words;
+            this.days = days;
+            this.rules = rules;
+            this.next = from;
+            LocalDate lastStored = days.length == 0 || days[days.length - 1] < from.toEpochDay()
+                    ? from : LocalDate.ofEpochDay(days[days.length - 1]);
+            ruleEnds = new LocalDate[rules.size()];
+            for (int i = 0; i < ruleEnds.length; i++) {
+                RecurrenceRule rule = rules.get(i);
+                LocalDate after = rule.start.isAfter(lastStored) ? rule.start : lastStored;
+                ruleEnds[i] = rule.end != null ? rule.end : after.plusYears(SEARCH_YEARS);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (pending.isEmpty() && next != null) {
+                LocalDate first = nextCandidate(next);
+                if (first == null) {
+                    next = null;
+                    break;
+                }
+                LocalDate last = first.plusDays(WINDOW_DAYS - 1);
+                NavigableSet<LocalDate> window = new TreeSet<>();
+                for (int i = ceiling(first); i < days.length && days[i] <= last.toEpochDay(); i++) {
+                    window.add(LocalDate.ofEpochDay(days[i]));
+                }
+                for (int i = 0; i < ruleEnds.length; i++) {
+                    rules.get(i).expand(first, last.isAfter(ruleEnds[i]) ? ruleEnds[i] : last, calendar, (date, event) -> window.add(date));
+                }
+                for (LocalDate date : window) {
+                    for (Event event : eventsOn(date)) {
+                        if (SearchIndex.matches(event, words)) {
+                            pending.add(new SearchHit(date, event));
+                        }
+                    }
+                }
+                next = last.plusDays(1);
+            }
+            return !pending.isEmpty();
+        }
+
+        @Override
+        public SearchHit next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return pending.poll();
+        }
+
+        // The first day on or after the given one that a stored candidate or a running
+        // candidate rule could fall on, so empty stretches are skipped in one step.
+        private LocalDate nextCandidate(LocalDate from) {
+            int stored = ceiling(from);
+            LocalDate best = stored < days.length ? LocalDate.ofEpochDay(days[stored]) : null;
+            for (int i = 0; i < ruleEnds.length; i++) {
+                if (!ruleEnds[i].isBefore(from)) {
+                    LocalDate start = rules.get(i).start.isAfter(from) ? rules.get(i).start : from;
+                    if (best == null || start.isBefore(best)) {
+                        best = start;
+                    }
+                }
+            }
+            return best;
+        }
+
+        // Index of the first candidate day on or after the date.
+        private int ceiling(LocalDate date) {
+            long day = date.toEpochDay();
+            int lo = 0, hi = days.length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (days[mid] < day) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+
+    // What one change replaced: the stored days (null for a day that was empty), the rule map
+    // (null if no rule changed) and the days off, each as it was before. Day lists and rule
+    // maps are never changed once stored, so a step shares them with the store and its cost
+    // is what the change touched.
+    private static class Step {
+        final Map<LocalDate, List<Event>> days = new HashMap<>();
+        Map<Long, RecurrenceRule> rules;
+        final Map<LocalDate, Boolean> daysOff = new HashMap<>();
+
+        boolean isEmpty() {
+            return days.isEmpty() && rules == null && daysOff.isEmpty();
+        }
+    }
+
+    private static class Cached<T> {
+        final T value;
+        final long version;
+
+        Cached(T value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    // A copy of everything that goes into the store file, taken under the lock so it can be
+    // written out anywhere. Only months decoded this session are copied; the rest are carried
+    // over from the old store file byte for byte.
+    private class Snapshot {
+        final long seq;
+        final EventStoreFile previous = storeFile;
+        final SortedMap<YearMonth, Map<LocalDate, List<Event>>> months = new TreeMap<>();
+        final Set<LocalDate> daysOffCopy = calendar.daysOff();
+        final List<RecurrenceRule> rules = new ArrayList<>();
+        final Map<Long, NavigableSet<LocalDate>> seriesDatesCopy = new HashMap<>();
+
+        Snapshot(long seq) {
+            this.seq = seq;
+            for (YearMonth month : loadedMonths) {
+                months.put(month, new HashMap<>());
+            }
+            for (Map.Entry<LocalDate, List<Event>> entry : events.entrySet()) {
+                months.computeIfAbsent(YearMonth.from(entry.getKey()), k -> new HashMap<>())
+                        .put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+            for (RecurrenceRule rule : recurrences.values()) {
+                rules.add(rule.copy());
+            }
+            for (Map.Entry<Long, NavigableSet<LocalDate>> entry : seriesDates.entrySet()) {
+                seriesDatesCopy.put(entry.getKey(), new TreeSet<>(entry.getValue()));
+            }
+        }
+
+        // Writes the snapshot next to the store file at path, returning the file written.
+        Path writeTo(Path path) throws IOException {
+            return EventStoreFile.write(path, months, previous, daysOffCopy, rules, seriesDatesCopy, seq);
+        }
+    }
+
+    // One-time conversion of the Java-serialized events.dat written by earlier versions. The old
+    // file is kept next to the new one with a .migrated suffix.
+    static void migrateLegacySnapshot(Path legacy, Path target) throws IOException {
+        EventStoreFile.replace(convertLegacySnapshot(legacy, target), target);
+        Files.move(legacy, legacy.resolveSibling(legacy.getFileName() + ".migrated"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Writes the legacy file as a store file next to the target, returning the file written.
+    @SuppressWarnings("unchecked")
+    private static Path convertLegacySnapshot(Path legacy, Path target) throws IOException {
+        Map<LocalDate, List<Event>> legacyEvents;
+        Set<LocalDate> legacyDaysOff;
+        List<RecurrenceRule> legacyRules = new ArrayList<>();
+        long seq = 0;
+        try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(Files.newInputStream(legacy)))) {
+            legacyEvents = (Map<LocalDate, List<Event>>) ois.readObject();
+            legacyDaysOff = (Set<LocalDate>) ois.readObject();
+            try {
+                legacyRules = (List<RecurrenceRule>) ois.readObject();
+                RecurrenceRule.reserveIds(legacyRules);
+                seq = ois.readLong();
+            } catch (EOFException e) {
+                // written before recurrence rules and the journal existed
+            }
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+        // Old versions copied one Event instance into every day of a series; serialization keeps
+        // that sharing, so each shared instance becomes one series id.
+        Map<Event, Long> legacySeries = new IdentityHashMap<>();
+        Map<Long, NavigableSet<LocalDate>> legacySeriesDates = new HashMap<>();
+        SortedMap<YearMonth, Map<LocalDate, List<Event>>> months = new TreeMap<>();
+        for (Map.Entry<LocalDate, List<Event>> entry : legacyEvents.entrySet()) {
+            for (Event event : entry.getValue()) {
+                if (event.seriesId == 0 && (event.isRecurringDaily || event.isRecurringWeekly)) {
+                    long id = legacySeries.computeIfAbsent(event, k -> RecurrenceRule.newSeriesId());
+                    legacySeriesDates.computeIfAbsent(id, k -> new TreeSet<>()).add(entry.getKey());
+                }
+            }
+            months.computeIfAbsent(YearMonth.from(entry.getKey()), k -> new HashMap<>()).put(entry.getKey(), entry.getValue());
+        }
+        legacySeries.forEach((event, id) -> event.seriesId = id);
+        return EventStoreFile.write(target, months, null, legacyDaysOff, legacyRules, legacySeriesDates, seq);
+    }
+
+    // Applies journal records through the same methods the app uses; the journal field is still
+    // null while this runs, so nothing is written back.
+    private class JournalReplay implements EventJournal.Replay {
+        @Override
+        public void addEvent(LocalDate date, Event event) {
+            CalendarStore.this.addEvent(date, event);
+        }
+
+        @Override
+        public void removeEvent(LocalDate date, Event event) {
+            CalendarStore.this.removeEvent(date, event);
+        }
+
+        @Override
+        public void clearDay(LocalDate date) {
+            CalendarStore.this.clearDay(date);
+        }
+
+        @Override
+        public void removeLegacySeries(Event event, LocalDate from) {
+            removeMatchingEvents(event, from);
+        }
+
+        @Override
+        public void removeSeries(long seriesId, LocalDate from) {
+            CalendarStore.this.removeSeries(seriesId, from);
+        }
+
+        @Override
+        public void addRule(RecurrenceRule rule) {
+            CalendarStore.this.addRule(rule);
+        }
+
+        @Override
+        public void endRule(long id, LocalDate end) {
+            RecurrenceRule rule = recurrences.get(id);
+            if (rule != null) {
+                endSeries(rule, end.plusDays(1));
+            }
+        }
+
+        @Override
+        public void removeRule(long id) {
+            write(() -> {
+                RecurrenceRule rule = dropRule(id);
+                if (rule != null) {
+                    indexChange(index -> index.removeRule(rule));
+                }
+                invalidateAll();
+            });
+        }
+
+        @Override
+        public void addException(long id, LocalDate date) {
+            RecurrenceRule rule = recurrences.get(id);
+            if (rule != null) {
+                CalendarStore.this.addException(rule, date);
+            }
+        }
+
+        @Override
+        public void setDayOff(LocalDate date, boolean off) {
+            CalendarStore.this.setDayOff(date, off);
+        }
+    }
+}
@@ -0,0 +1,131 @@
+import java.time.LocalTime;
+import java.util.*;
+
+// Read-only index over one day's events, sorted by start time.
+//
+// Intervals are half-open, [start, end): a meeting ending at 10:00 does not collide with one
+// starting at 10:00. The old check compared with isBefore/isAfter on both ends and so treated
+// back-to-back meetings as overlapping.
+//
+// Next to the exact intervals the day keeps its occupancy as one long, a bit per half hour
+// that any event touches. Bitwise operations on it answer free-slot questions across many
+// days at once and let most overlap checks return without the binary search.
+class DaySchedule {
+    static final int SLOT_MINUTES = 30;
+    static final int SLOTS_PER_DAY = 24 * 60 / SLOT_MINUTES;
+    static final DaySchedule EMPTY = new DaySchedule(Collections.emptyList());
+
+    private final Event[] events;
+    private final int[] starts;
+    private final int[] ends;
+    // Running maximum of the end minute. Events on a day normally never overlap, which makes this
+    // equal to ends[], but days saved by older versions may, and the scan must still stop early.
+    private final int[] maxEnds;
+    private final long occupancy;
+
+    DaySchedule(List<Event> sortedEvents) {
+        int n = sortedEvents.size();
+        events = sortedEvents.toArray(new Event[0]);
+        starts = new int[n];
+        ends = new int[n];
+        maxEnds = new int[n];
+        int maxEnd = Integer.MIN_VALUE;
+        long slots = 0;
+        for (int i = 0; i < n; i++) {
+            starts[i] = minuteOfDay(events[i].startTime);
+            ends[i] = minuteOfDay(events[i].endTime);
+            maxEnd = Math.max(maxEnd, ends[i]);
+            maxEnds[i] = maxEnd;
+            slots |= slotMask(starts[i], ends[i]);
+        }
+        occupancy = slots;
+    }
+
+    int size() {
+        return events.length;
+    }
+
+    // Half-hour slots touched by any event of the day.
+    long occupancy() {
+        return occupancy;
+    }
+
+    boolean overlaps(LocalTime start, LocalTime end) {
+        int s = minuteOfDay(start);
+        int e = minuteOfDay(end);
+        if (isClear(s, e)) {
+            return false;
+        }
+        int i = startsBefore(e);
+        return i > 0 && maxEnds[i - 1] > s;
+    }
+
+    List<Event> conflicts(LocalTime start, LocalTime end) {
+        int s = minuteOfDay(start);
+        int e = minuteOfDay(end);
+        if (isClear(s, e)) {
+            return new ArrayList<>();
+        }
+        int i = startsBefore(e);
+        List<Event> found = new ArrayList<>();
+        for (int j = i - 1; j >= 0 && maxEnds[j] > s; j--) {
+            if (ends[j] > s) {
+                found.add(events[j]);
+            }
+        }
+        Collections.reverse(found);
+        return found;
+    }
+
+    // Nothing of the day shares a half hour with the interval, so nothing can overlap it. An
+    // empty interval has no slots and always goes to the exact check.
+    private boolean isClear(int startMinute, int endMinute) {
+        long mask = slotMask(startMinute, endMinute);
+        return mask != 0 && (occupancy & mask) == 0;
+    }
+
+    // Number of events whose start lies before the given minute.
+    private int startsBefore(int minute) {
+        int lo = 0, hi = starts.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (starts[mid] < minute) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    // Bits of the half-hour slots that [startMinute, endMinute) touches.
+    static long slotMask(int startMinute, int endMinute) {
+        int first = startMinute / SLOT_MINUTES;
+        int last = Math.min((endMinute + SLOT_MINUTES - 1) / SLOT_MINUTES, SLOTS_PER_DAY);
+        if (last <= first) {
+            return 0;
+        }
+        return (-1L >>> (64 - (last - first))) << first;
+    }
+
+    // Bit i is set where slots i .. i + length - 1 are all set in free.
+    static long runStarts(long free, int length) {
+        long starts = free;
+        for (int i = 1; i < length && starts != 0; i++) {
+            starts &= free >>> i;
+        }
+        return starts;
+    }
+
+    static LocalTime slotTime(int slot) {
+        return LocalTime.ofSecondOfDay((long) slot * SLOT_MINUTES * 60);
+    }
+
+    static int minuteOfDay(LocalTime time) {
+        return time.getHour() * 60 + time.getMinute();
+    }
+
+    static boolean overlaps(Event a, Event b) {
+        return a.startTime.isBefore(b.endTime) && b.startTime.isBefore(a.endTime);
+    }
+}
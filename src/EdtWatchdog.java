@@ -0,0 +1,109 @@
+import javax.swing.*;
+import java.time.LocalTime;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// Notices when the event dispatch thread is blocked. A daemon thread posts an empty task to
+// the EDT and waits for it to run; if it has not run within the threshold, the EDT is busy
+// with something else and its stack is taken then, while it is still stuck, so the trace shows
+// the code at fault rather than whatever runs after it. The stall ends when the task finally
+// runs, which gives its length.
+class EdtWatchdog {
+    private static final int TRACES_KEPT = 5;
+
+    private final long thresholdMs;
+    private final Deque<String> traces = new ArrayDeque<>();
+    private volatile Thread edt;
+    private volatile long stalls;
+    private volatile long longestStallMs;
+
+    EdtWatchdog(long thresholdMs) {
+        this.thresholdMs = thresholdMs;
+    }
+
+    void start() {
+        Thread thread = new Thread(this::watch, "calendar-edt-watchdog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void watch() {
+        Object ran = new Object();
+        boolean[] done = new boolean[1];
+        try {
+            while (true) {
+                synchronized (ran) {
+                    done[0] = false;
+                }
+                long posted = System.nanoTime();
+                SwingUtilities.invokeLater(() -> {
+                    edt = Thread.currentThread();
+                    synchronized (ran) {
+                        done[0] = true;
+                        ran.notifyAll();
+                    }
+                });
+                String trace = null;
+                synchronized (ran) {
+                    long deadline = posted + thresholdMs * 1_000_000;
+                    for (long left = thresholdMs; !done[0] && left > 0; left = (deadline - System.nanoTime()) / 1_000_000) {
+                        ran.wait(left);
+                    }
+                    if (!done[0]) {
+                        trace = traceOf(edt);
+                        while (!done[0]) {
+                            ran.wait();
+                        }
+                    }
+                }
+                if (trace != null) {
+                    stalled((System.nanoTime() - posted) / 1_000_000, trace);
+                }
+                Thread.sleep(thresholdMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static String traceOf(Thread thread) {
+        StringBuilder trace = new StringBuilder();
+        if (thread != null) {
+            trace.append('"').append(thread.getName()).append("\" ").append(thread.getState()).append('\n');
+            for (StackTraceElement element : thread.getStackTrace()) {
+                trace.append("\tat ").append(element).append('\n');
+            }
+        }
+        return trace.toString();
+    }
+
+    private synchronized void stalled(long millis, String trace) {
+        stalls++;
+        longestStallMs = Math.max(longestStallMs, millis);
+        traces.addFirst("EDT blocked for " + millis + " ms at " + LocalTime.now() + "\n" + trace);
+        while (traces.size() > TRACES_KEPT) {
+            traces.removeLast();
+        }
+    }
+
+    long stalls() {
+        return stalls;
+    }
+
+    long longestStallMs() {
+        return longestStallMs;
+    }
+
+    synchronized String lastStall() {
+        return traces.isEmpty() ? "" : traces.peekFirst();
+    }
+
+    synchronized String report() {
+        StringBuilder report = new StringBuilder(String.format("%-28s %10d%n%-28s %10d%n",
+                "edt.stalls", stalls, "edt.longestStallMs", longestStallMs));
+        for (String trace : traces) {
+            report.append(trace);
+        }
+        return report.toString();
+    }
+}
@@ -0,0 +1,54 @@
+import java.io.Serializable;
+import java.time.LocalTime;
+import java.util.Objects;
+
+class Event implements Serializable {
+    // Matches the implicit value of the original class so old events.dat files still deserialize.
+    private static final long serialVersionUID = -1644754587305849949L;
+
+    String title;
+    String data;
+    LocalTime startTime;
+    LocalTime endTime;
+    boolean isRecurringDaily;
+    boolean isRecurringWeekly;
+    // Id of the series the event belongs to, 0 for a one-off event.
+    long seriesId;
+
+    public Event(String title, String data, LocalTime startTime, LocalTime endTime, boolean isRecurringDaily, boolean isRecurringWeekly) {
+        this.title = title;
+        this.data = data;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.isRecurringDaily = isRecurringDaily;
+        this.isRecurringWeekly = isRecurringWeekly;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Event)) {
+            return false;
+        }
+        Event other = (Event) o;
+        return title.equals(other.title) && data.equals(other.data)
+                && startTime.equals(other.startTime) && endTime.equals(other.endTime)
+                && isRecurringDaily == other.isRecurringDaily && isRecurringWeekly == other.isRecurringWeekly
+                && seriesId == other.seriesId;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(title, data, startTime, endTime, isRecurringDaily, isRecurringWeekly, seriesId);
+    }
+
+    @Override
+    public String toString() {
+        return title + " (" + startTime + " - " + endTime + ")" +
+                (isRecurringDaily ? " [Daily]" : "") +
+                (isRecurringWeekly ? " [Weekly]" : "")+
+                (data.isEmpty() ? "" : " [" + data + "]");
+    }
+}
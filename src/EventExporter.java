@@ -0,0 +1,127 @@
+import java.io.*;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+
+// Writes the events of a date range as iCalendar, CSV or a plain-text agenda. The store hands
+// the range over a month at a time and every event is written as soon as it is seen, so the
+// memory used does not grow with the size of the calendar or of the range. Recurring events
+// are written as their occurrences in the range, the way the views show them.
+//
+// The CSV columns are the ones EventImporter reads, so an export can be imported again.
+class EventExporter {
+    enum Format { ICS, CSV, AGENDA }
+
+    private static final DateTimeFormatter ICS_DATE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+    private static final int ICS_LINE_LIMIT = 75;
+
+    private final Writer out;
+    private final Format format;
+    private final String stamp = LocalDateTime.now(ZoneOffset.UTC).format(ICS_DATE_TIME) + "Z";
+
+    EventExporter(Writer out, Format format) {
+        this.out = out;
+        this.format = format;
+    }
+
+    // Returns how many events were written. Any thread may export; each month of the range is
+    // read as it was between two changes.
+    long export(CalendarStore store, LocalDate from, LocalDate to) throws IOException {
+        long[] written = {0};
+        begin();
+        store.forEachDay(from, to, (date, dailyEvents) -> {
+            if (format == Format.AGENDA) {
+                out.write(date + ":\n");
+            }
+            for (int i = 0; i < dailyEvents.size(); i++) {
+                writeEvent(date, i, dailyEvents.get(i));
+            }
+            written[0] += dailyEvents.size();
+        });
+        end();
+        out.flush();
+        return written[0];
+    }
+
+    private void begin() throws IOException {
+        switch (format) {
+            case ICS:
+                out.write("BEGIN:VCALENDAR\r\nVERSION:2.0\r\nPRODID:-//Pro-Calendar//EN\r\n");
+                break;
+            case CSV:
+                out.write("date,start,end,title,data\n");
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void end() throws IOException {
+        if (format == Format.ICS) {
+            out.write("END:VCALENDAR\r\n");
+        }
+    }
+
+    private void writeEvent(LocalDate date, int index, Event event) throws IOException {
+        switch (format) {
+            case ICS:
+                out.write("BEGIN:VEVENT\r\n");
+                icsLine("UID:" + date.format(DateTimeFormatter.BASIC_ISO_DATE) + "-" + index
+                        + (event.seriesId != 0 ? "-" + event.seriesId : "") + "@pro-calendar");
+                icsLine("DTSTAMP:" + stamp);
+                icsLine("DTSTART:" + date.atTime(event.startTime).format(ICS_DATE_TIME));
+                icsLine("DTEND:" + date.atTime(event.endTime).format(ICS_DATE_TIME));
+                icsLine("SUMMARY:" + icsText(event.title));
+                if (!event.data.isEmpty()) {
+                    icsLine("DESCRIPTION:" + icsText(event.data));
+                }
+                out.write("END:VEVENT\r\n");
+                break;
+            case CSV:
+                out.write(date + "," + event.startTime + "," + event.endTime + ","
+                        + csvField(event.title) + "," + csvField(event.data) + "\n");
+                break;
+            default:
+                out.write("- " + event + "\n");
+                break;
+        }
+    }
+
+    // Long lines are folded: broken at the limit and continued after a single space.
+    private void icsLine(String line) throws IOException {
+        int start = 0;
+        while (line.length() - start > ICS_LINE_LIMIT) {
+            int end = start + ICS_LINE_LIMIT - (start == 0 ? 0 : 1);
+            if (Character.isHighSurrogate(line.charAt(end - 1))) {
+                end--;
+            }
+            out.write(line, start, end - start);
+            out.write("\r\n ");
+            start = end;
+        }
+        out.write(line, start, line.length() - start);
+        out.write("\r\n");
+    }
+
+    private static String icsText(String text) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' || c == ',' || c == ';') {
+                escaped.append('\\').append(c);
+            } else if (c == '\n') {
+                escaped.append("\\n");
+            } else if (c != '\r') {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+
+    private static String csvField(String text) {
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0) {
+            return text;
+        }
+        return "\"" + text.replace("\"", "\"\"") + "\"";
+    }
+}
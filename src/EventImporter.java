@@ -0,0 +1,641 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.time.format.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Reads .ics and .csv files into a CalendarStore.
+//
+// One thread reads the file and cuts it into chunks of records (a CSV line, or an iCalendar
+// VEVENT block), which are parsed in parallel with only a few chunks in flight at a time.
+// Parsed events are grouped by day into batches of a few thousand, which the store takes
+// through addEvents, checking each day of a batch in one pass and sorting it once, so only
+// a batch is ever held in memory. Recurring events are held in slices of a few hundred and
+// added after the single events read before them. Every row that does not make it in is
+// written to the reject report with its line number and reason.
+//
+// CSV rows are  date,start,end,title[,data]  with yyyy-MM-dd dates and HH:mm times and an
+// optional header line. iCalendar events need a DTSTART with a time and a DTEND or DURATION
+// on the same day; DAILY and WEEKLY RRULEs (with UNTIL, COUNT, weekday BYDAY and EXDATE)
+// become recurrence rules.
+class EventImporter {
+    private static final int CHUNK_SIZE = 5_000;
+    private static final int SLICE_SIZE = 20_000;
+    private static final int SERIES_SLICE = 500;
+    private static final DateTimeFormatter ICS_DATE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss");
+    private static final Set<DayOfWeek> WEEKDAYS = EnumSet.range(DayOfWeek.MONDAY, DayOfWeek.FRIDAY);
+
+    interface Progress {
+        void update(long bytesRead, long totalBytes, long rowsRead);
+    }
+
+    static class Report {
+        long read;
+        long added;
+        long rejected;
+
+        @Override
+        public String toString() {
+            return read + " events read, " + added + " added, " + rejected + " rejected";
+        }
+    }
+
+    private final CalendarStore store;
+    private final Executor owner;
+    private final int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+
+    // Changes are handed to the owner executor of the store, or made on the calling thread
+    // when there is none.
+    EventImporter(CalendarStore store, Executor owner) {
+        this.store = store;
+        this.owner = owner;
+    }
+
+    private static class Record {
+        final long line;
+        final String text;
+
+        Record(long line, String text) {
+            this.line = line;
+            this.text = text;
+        }
+    }
+
+    private static class Row {
+        final long line;
+        final LocalDate date;
+        final Event event;
+        RecurrenceRule.Frequency frequency;
+        boolean weekdaysOnly;
+        LocalDate until;
+        int count;
+        final Set<LocalDate> exceptions = new HashSet<>();
+
+        Row(long line, LocalDate date, Event event) {
+            this.line = line;
+            this.date = date;
+            this.event = event;
+        }
+    }
+
+    private static class Chunk {
+        final List<Row> rows = new ArrayList<>();
+        final List<String> rejects = new ArrayList<>();
+    }
+
+    // Runs on the calling thread, which must not be the owner thread, and blocks until the
+    // whole file is in the store.
+    Report importFile(Path file, LocalDate presentDate, Writer rejects, Progress progress) throws IOException {
+        boolean ics = file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".ics");
+        long totalBytes = Files.size(file);
+        Report report = new Report();
+        NavigableMap<LocalDate, List<Row>> pending = new TreeMap<>();
+        int pendingSize = 0;
+        List<Row> series = new ArrayList<>();
+
+        ExecutorService parsers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "calendar-import");
+            t.setDaemon(true);
+            return t;
+        });
+        Deque<Future<Chunk>> inFlight = new ArrayDeque<>();
+        try (CountingInputStream counter = new CountingInputStream(Files.newInputStream(file));
+             BufferedReader reader = new BufferedReader(new InputStreamReader(counter, StandardCharsets.UTF_8))) {
+            RecordReader records = ics ? new IcsRecordReader(reader) : new CsvRecordReader(reader);
+            List<Record> chunk = new ArrayList<>(CHUNK_SIZE);
+            for (Record record = records.next(); ; record = records.next()) {
+                if (record != null) {
+                    chunk.add(record);
+                }
+                if (chunk.size() == CHUNK_SIZE || (record == null && !chunk.isEmpty())) {
+                    List<Record> toParse = chunk;
+                    inFlight.add(parsers.submit(() -> parse(toParse, ics)));
+                    chunk = new ArrayList<>(CHUNK_SIZE);
+                }
+                // Chunks are taken back in file order, so earlier rows win; waiting on the
+                // oldest keeps only a few chunks in memory.
+                while (!inFlight.isEmpty() && (inFlight.size() >= 2 * threads || record == null)) {
+                    Chunk parsed = await(inFlight.poll());
+                    writeRejects(rejects, parsed.rejects);
+                    report.read += parsed.rows.size() + parsed.rejects.size();
+                    report.rejected += parsed.rejects.size();
+                    for (Row row : parsed.rows) {
+                        if (row.frequency != null) {
+                            series.add(row);
+                        } else {
+                            pending.computeIfAbsent(row.date, k -> new ArrayList<>()).add(row);
+                            pendingSize++;
+                        }
+                    }
+                    if (pendingSize >= SLICE_SIZE) {
+                        apply(pending, presentDate, rejects, report);
+                        pendingSize = 0;
+                    }
+                    if (series.size() >= SERIES_SLICE) {
+                        apply(pending, presentDate, rejects, report);
+                        pendingSize = 0;
+                        addSeries(series, presentDate, rejects, report);
+                    }
+                    progress.update(counter.count, totalBytes, report.read);
+                }
+                if (record == null) {
+                    break;
+                }
+            }
+        } finally {
+            parsers.shutdownNow();
+        }
+        apply(pending, presentDate, rejects, report);
+        addSeries(series, presentDate, rejects, report);
+        rejects.flush();
+        return report;
+    }
+
+    // Hands the pending rows to the store in one batch, so each day in it is checked and
+    // sorted once. Rows of a day already filled by an earlier batch are checked against it.
+    private void apply(NavigableMap<LocalDate, List<Row>> pending, LocalDate presentDate, Writer rejects, Report report) throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        SortedMap<LocalDate, List<Event>> batch = new TreeMap<>();
+        for (Map.Entry<LocalDate, List<Row>> day : pending.entrySet()) {
+            List<Event> dayEvents = new ArrayList<>(day.getValue().size());
+            for (Row row : day.getValue()) {
+                dayEvents.add(row.event);
+            }
+            batch.put(day.getKey(), dayEvents);
+        }
+        List<String> batchRejects = new ArrayList<>();
+        report.added += onOwner(() -> store.addEvents(batch, presentDate, (date, index, reason) ->
+                batchRejects.add(reject(pending.get(date).get(index).line, reason))));
+        writeRejects(rejects, batchRejects);
+        report.rejected += batchRejects.size();
+        pending.clear();
+    }
+
+    private static void writeRejects(Writer rejects, List<String> lines) throws IOException {
+        for (String line : lines) {
+            rejects.write(line);
+            rejects.write(System.lineSeparator());
+        }
+    }
+
+    // Recurring events go in after the single ones read before them, so their occurrences give
+    // way to those the way addSeries always does. Each slice is one change made on the calling
+    // thread under the store's lock: checking a series walks a year of its days, which is too
+    // long to hold up the owner thread for.
+    private void addSeries(List<Row> series, LocalDate presentDate, Writer rejects, Report report) throws IOException {
+        if (series.isEmpty()) {
+            return;
+        }
+        WorkingCalendar calendar = store.workingCalendar();
+        List<RecurrenceRule> rules = new ArrayList<>(series.size());
+        for (Row row : series) {
+            RecurrenceRule rule = new RecurrenceRule(row.event, row.date, row.frequency, row.weekdaysOnly, true, row.until, row.count,
+                    calendar);
+            rule.exceptions.addAll(row.exceptions);
+            rules.add(rule);
+        }
+        List<String> seriesRejects = new ArrayList<>();
+        report.added += store.addSeries(rules, presentDate, (date, index, reason) ->
+                seriesRejects.add(reject(series.get(index).line, reason)));
+        writeRejects(rejects, seriesRejects);
+        report.rejected += seriesRejects.size();
+        series.clear();
+    }
+
+    private <T> T onOwner(Callable<T> task) throws IOException {
+        if (owner == null) {
+            try {
+                return task.call();
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        FutureTask<T> future = new FutureTask<>(task);
+        owner.execute(future);
+        return await(future);
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Import interrupted");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private static Chunk parse(List<Record> records, boolean ics) {
+        Chunk chunk = new Chunk();
+        for (Record record : records) {
+            try {
+                Row row = ics ? parseIcs(record) : parseCsv(record);
+                if (row.event.title.isEmpty() || !row.event.startTime.isBefore(row.event.endTime)) {
+                    chunk.rejects.add(reject(record.line, "Invalid event details."));
+                } else {
+                    chunk.rows.add(row);
+                }
+            } catch (RuntimeException e) {
+                // Whatever a malformed row throws, it costs only that row.
+                chunk.rejects.add(reject(record.line, e.getMessage() != null ? e.getMessage() : "Invalid event details."));
+            }
+        }
+        return chunk;
+    }
+
+    private static String reject(long line, String reason) {
+        return "line " + line + ": " + reason;
+    }
+
+    private static Row parseCsv(Record record) {
+        List<String> fields = csvFields(record.text);
+        if (fields.size() < 4) {
+            throw new IllegalArgumentException("Expected date,start,end,title[,data]");
+        }
+        LocalDate date = csvDate(fields.get(0).trim());
+        LocalTime start = csvTime(fields.get(1).trim());
+        LocalTime end = csvTime(fields.get(2).trim());
+        String data = fields.size() > 4 ? fields.get(4) : "";
+        return new Row(record.line, date, new Event(fields.get(3).trim(), data, start, end, false, false));
+    }
+
+    // The formatters are most of the parsing time for a large file, so the usual yyyy-MM-dd
+    // and HH:mm shapes are read directly.
+    private static LocalDate csvDate(String text) {
+        if (text.length() == 10 && text.charAt(4) == '-' && text.charAt(7) == '-') {
+            int year = digits(text, 0, 4);
+            int month = digits(text, 5, 7);
+            int day = digits(text, 8, 10);
+            if (year >= 0 && month >= 0 && day >= 0) {
+                return LocalDate.of(year, month, day);
+            }
+        }
+        try {
+            return LocalDate.parse(text);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date " + text);
+        }
+    }
+
+    private static LocalTime csvTime(String text) {
+        if (text.length() == 5 && text.charAt(2) == ':') {
+            int hour = digits(text, 0, 2);
+            int minute = digits(text, 3, 5);
+            if (hour >= 0 && minute >= 0) {
+                return LocalTime.of(hour, minute);
+            }
+        }
+        try {
+            return LocalTime.parse(text);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time " + text);
+        }
+    }
+
+    private static int digits(String text, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    static List<String> csvFields(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else if (c == '"') {
+                    quoted = false;
+                } else {
+                    field.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static Row parseIcs(Record record) {
+        LocalDateTime start = null;
+        LocalDateTime end = null;
+        Duration duration = null;
+        String title = "";
+        String data = "";
+        String rrule = null;
+        List<String> exdates = new ArrayList<>();
+        for (String line : record.text.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+                continue;
+            }
+            String[] nameAndParams = line.substring(0, colon).split(";");
+            String name = nameAndParams[0].toUpperCase(Locale.ROOT);
+            String value = line.substring(colon + 1);
+            switch (name) {
+                case "DTSTART":
+                    start = icsDateTime(value, nameAndParams);
+                    break;
+                case "DTEND":
+                    end = icsDateTime(value, nameAndParams);
+                    break;
+                case "DURATION":
+                    try {
+                        duration = Duration.parse(value.trim());
+                    } catch (DateTimeParseException e) {
+                        throw new IllegalArgumentException("Unsupported DURATION " + value);
+                    }
+                    break;
+                case "SUMMARY":
+                    title = icsText(value).trim();
+                    break;
+                case "DESCRIPTION":
+                    data = icsText(value);
+                    break;
+                case "RRULE":
+                    rrule = value;
+                    break;
+                case "EXDATE":
+                    exdates.addAll(Arrays.asList(value.split(",")));
+                    break;
+            }
+        }
+        if (start == null) {
+            throw new IllegalArgumentException("Missing DTSTART");
+        }
+        if (end == null) {
+            end = duration != null ? start.plus(duration) : start;
+        }
+        if (!end.toLocalDate().equals(start.toLocalDate())) {
+            throw new IllegalArgumentException("Events spanning midnight are not supported");
+        }
+        Row row = new Row(record.line, start.toLocalDate(), new Event(title, data, start.toLocalTime(), end.toLocalTime(), false, false));
+        if (rrule != null) {
+            parseRule(row, rrule);
+            for (String exdate : exdates) {
+                row.exceptions.add(icsDate(exdate.trim(), "EXDATE"));
+            }
+        }
+        return row;
+    }
+
+    // The date of an EXDATE or UNTIL value, which may be a bare date or a date-time.
+    private static LocalDate icsDate(String value, String name) {
+        if (value.length() < 8) {
+            throw new IllegalArgumentException("Invalid " + name + " " + value);
+        }
+        return LocalDate.parse(value.substring(0, 8), DateTimeFormatter.BASIC_ISO_DATE);
+    }
+
+    // Local date-time of a DTSTART/DTEND. UTC (Z) and TZID values are converted to the system
+    // time zone; a bare date is an all-day event, which the calendar has no way to show.
+    private static LocalDateTime icsDateTime(String value, String[] params) {
+        value = value.trim();
+        if (value.length() == 8) {
+            throw new IllegalArgumentException("All-day events are not supported");
+        }
+        try {
+            if (value.endsWith("Z")) {
+                return LocalDateTime.parse(value.substring(0, value.length() - 1), ICS_DATE_TIME)
+                        .atZone(ZoneOffset.UTC).withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+            }
+            LocalDateTime local = LocalDateTime.parse(value, ICS_DATE_TIME);
+            for (String param : params) {
+                if (param.toUpperCase(Locale.ROOT).startsWith("TZID=")) {
+                    return local.atZone(ZoneId.of(param.substring(5))).withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+                }
+            }
+            return local;
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid date-time " + value);
+        }
+    }
+
+    private static void parseRule(Row row, String rrule) {
+        Map<String, String> parts = new HashMap<>();
+        for (String part : rrule.split(";")) {
+            int eq = part.indexOf('=');
+            if (eq > 0) {
+                parts.put(part.substring(0, eq).trim().toUpperCase(Locale.ROOT), part.substring(eq + 1).trim());
+            }
+        }
+        String frequency = parts.getOrDefault("FREQ", "");
+        if (!parts.getOrDefault("INTERVAL", "1").equals("1")) {
+            throw new IllegalArgumentException("Unsupported RRULE " + rrule);
+        }
+        Set<DayOfWeek> byDay = EnumSet.noneOf(DayOfWeek.class);
+        if (parts.containsKey("BYDAY")) {
+            for (String day : parts.get("BYDAY").split(",")) {
+                byDay.add(icsDay(day.trim(), rrule));
+            }
+        }
+        if (frequency.equals("DAILY") && (byDay.isEmpty() || byDay.equals(WEEKDAYS))) {
+            row.frequency = RecurrenceRule.Frequency.DAILY;
+            row.weekdaysOnly = !byDay.isEmpty();
+        } else if (frequency.equals("WEEKLY") && byDay.equals(WEEKDAYS)) {
+            row.frequency = RecurrenceRule.Frequency.DAILY;
+            row.weekdaysOnly = true;
+        } else if (frequency.equals("WEEKLY") && (byDay.isEmpty() || byDay.equals(EnumSet.of(row.date.getDayOfWeek())))) {
+            row.frequency = RecurrenceRule.Frequency.WEEKLY;
+        } else {
+            throw new IllegalArgumentException("Unsupported RRULE " + rrule);
+        }
+        row.event.isRecurringDaily = row.frequency == RecurrenceRule.Frequency.DAILY;
+        row.event.isRecurringWeekly = row.frequency == RecurrenceRule.Frequency.WEEKLY;
+        if (parts.containsKey("UNTIL")) {
+            row.until = icsDate(parts.get("UNTIL"), "UNTIL");
+        }
+        if (parts.containsKey("COUNT")) {
+            try {
+                row.count = Integer.parseInt(parts.get("COUNT"));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Unsupported RRULE " + rrule);
+            }
+        }
+    }
+
+    private static DayOfWeek icsDay(String day, String rrule) {
+        switch (day) {
+            case "MO": return DayOfWeek.MONDAY;
+            case "TU": return DayOfWeek.TUESDAY;
+            case "WE": return DayOfWeek.WEDNESDAY;
+            case "TH": return DayOfWeek.THURSDAY;
+            case "FR": return DayOfWeek.FRIDAY;
+            case "SA": return DayOfWeek.SATURDAY;
+            case "SU": return DayOfWeek.SUNDAY;
+            default: throw new IllegalArgumentException("Unsupported RRULE " + rrule);
+        }
+    }
+
+    private static String icsText(String value) {
+        StringBuilder text = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                text.append(next == 'n' || next == 'N' ? '\n' : next);
+            } else {
+                text.append(c);
+            }
+        }
+        return text.toString();
+    }
+
+    private interface RecordReader {
+        // The next record, or null at the end of the file.
+        Record next() throws IOException;
+    }
+
+    // One record per line, except that a quoted field may run over several lines. A first line
+    // starting with "date" is taken as the header.
+    private static class CsvRecordReader implements RecordReader {
+        private final BufferedReader reader;
+        private long lineNumber;
+
+        CsvRecordReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public Record next() throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || (lineNumber == 1 && line.trim().toLowerCase(Locale.ROOT).startsWith("date"))) {
+                    continue;
+                }
+                long first = lineNumber;
+                StringBuilder text = new StringBuilder(line);
+                while (quotesOpen(text)) {
+                    String more = reader.readLine();
+                    if (more == null) {
+                        break;
+                    }
+                    lineNumber++;
+                    text.append('\n').append(more);
+                }
+                return new Record(first, text.toString());
+            }
+            return null;
+        }
+
+        private static boolean quotesOpen(CharSequence text) {
+            int quotes = 0;
+            for (int i = 0; i < text.length(); i++) {
+                if (text.charAt(i) == '"') {
+                    quotes++;
+                }
+            }
+            return quotes % 2 == 1;
+        }
+    }
+
+    // One record per VEVENT, with folded lines joined back together.
+    private static class IcsRecordReader implements RecordReader {
+        private final BufferedReader reader;
+        private long lineNumber;
+        private String pending;
+        private long pendingLine;
+        // The number of the first line of what nextUnfolded last returned, the lines after it
+        // having been read ahead already.
+        private long unfoldedLine;
+
+        IcsRecordReader(BufferedReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public Record next() throws IOException {
+            StringBuilder event = null;
+            long first = 0;
+            String line;
+            while ((line = nextUnfolded()) != null) {
+                if (line.equalsIgnoreCase("BEGIN:VEVENT")) {
+                    event = new StringBuilder();
+                    first = unfoldedLine;
+                } else if (line.equalsIgnoreCase("END:VEVENT") && event != null) {
+                    return new Record(first, event.toString());
+                } else if (event != null) {
+                    event.append(line).append('\n');
+                }
+            }
+            return null;
+        }
+
+        private String nextUnfolded() throws IOException {
+            String line = pending;
+            unfoldedLine = pendingLine;
+            if (line == null) {
+                line = readLine();
+                unfoldedLine = lineNumber;
+            }
+            pending = null;
+            if (line == null) {
+                return null;
+            }
+            StringBuilder unfolded = new StringBuilder(line);
+            String next;
+            while ((next = readLine()) != null && !next.isEmpty() && (next.charAt(0) == ' ' || next.charAt(0) == '\t')) {
+                unfolded.append(next, 1, next.length());
+            }
+            pending = next;
+            pendingLine = lineNumber;
+            return unfolded.toString();
+        }
+
+        private String readLine() throws IOException {
+            String line = reader.readLine();
+            if (line != null) {
+                lineNumber++;
+            }
+            return line;
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        volatile long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
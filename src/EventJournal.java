@@ -0,0 +1,540 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// Write-ahead log of calendar changes. Each change is appended as one small record
+//
+//     [int length][int crc32][long seq][byte op][payload]
+//
+// and the buffered bytes are forced to disk in batches by a background thread, so saving
+// costs the size of the change instead of the size of the calendar. Records carry a sequence
+// number; the snapshot remembers the last one it contains, which keeps replay idempotent
+// when the app dies between writing a snapshot and deleting the journal it was built from.
+class EventJournal implements Closeable {
+    interface Replay {
+        void addEvent(LocalDate date, Event event);
+        void removeEvent(LocalDate date, Event event);
+        void clearDay(LocalDate date);
+        void removeLegacySeries(Event event, LocalDate from);
+        void removeSeries(long seriesId, LocalDate from);
+        void addRule(RecurrenceRule rule);
+        void endRule(long id, LocalDate end);
+        void removeRule(long id);
+        void addException(long id, LocalDate date);
+        void setDayOff(LocalDate date, boolean off);
+    }
+
+    // Collects replayed records so they can be read on an I/O thread and applied later on the
+    // thread that owns the calendar state.
+    static class Deferred implements Replay {
+        private final List<Consumer<Replay>> records = new ArrayList<>();
+
+        int size() {
+            return records.size();
+        }
+
+        void applyTo(Replay replay) {
+            for (Consumer<Replay> record : records) {
+                record.accept(replay);
+            }
+        }
+
+        @Override
+        public void addEvent(LocalDate date, Event event) {
+            records.add(r -> r.addEvent(date, event));
+        }
+
+        @Override
+        public void removeEvent(LocalDate date, Event event) {
+            records.add(r -> r.removeEvent(date, event));
+        }
+
+        @Override
+        public void clearDay(LocalDate date) {
+            records.add(r -> r.clearDay(date));
+        }
+
+        @Override
+        public void removeLegacySeries(Event event, LocalDate from) {
+            records.add(r -> r.removeLegacySeries(event, from));
+        }
+
+        @Override
+        public void removeSeries(long seriesId, LocalDate from) {
+            records.add(r -> r.removeSeries(seriesId, from));
+        }
+
+        @Override
+        public void addRule(RecurrenceRule rule) {
+            records.add(r -> r.addRule(rule));
+        }
+
+        @Override
+        public void endRule(long id, LocalDate end) {
+            records.add(r -> r.endRule(id, end));
+        }
+
+        @Override
+        public void removeRule(long id) {
+            records.add(r -> r.removeRule(id));
+        }
+
+        @Override
+        public void addException(long id, LocalDate date) {
+            records.add(r -> r.addException(id, date));
+        }
+
+        @Override
+        public void setDayOff(LocalDate date, boolean off) {
+            records.add(r -> r.setDayOff(date, off));
+        }
+    }
+
+    private static final byte ADD_EVENT = 1;
+    private static final byte REMOVE_EVENT = 2;
+    private static final byte CLEAR_DAY = 3;
+    private static final byte REMOVE_LEGACY_SERIES = 4;
+    private static final byte ADD_RULE = 5;
+    private static final byte END_RULE = 6;
+    private static final byte REMOVE_RULE = 7;
+    private static final byte ADD_EXCEPTION = 8;
+    private static final byte DAY_OFF = 9;
+    private static final byte REMOVE_SERIES = 10;
+
+    // Longest title and details an event may have together, well inside the record limit.
+    static final int MAX_TEXT = 1 << 20;
+    private static final int MAX_RECORD = 1 << 24;
+    // Never the length of a text written by writeUTF here; it marks a text that follows as an
+    // int length and UTF-8 bytes instead.
+    private static final int LONG_TEXT = 0xFFFF;
+    private static final long SYNC_INTERVAL_MS = 200;
+    private static final Metrics.Counter RECORDS = Metrics.counter("persist.journalRecords");
+    private static final Metrics.Timer SYNCS = Metrics.timer("persist.journalSync");
+
+    private final Path file;
+    private final Path rotated;
+    private final ScheduledExecutorService syncer;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream(128);
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private final CRC32 crc = new CRC32();
+    private static final int FLUSH_SIZE = 64 * 1024;
+
+    // Whole records not yet on disk. They go out together, and a write that fails part way is cut
+    // back off the file, so the file only ever ends on a record boundary.
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream(FLUSH_SIZE);
+    private final DataOutputStream framed = new DataOutputStream(pending);
+    private FileChannel channel;
+    private long written;
+    private long nextSeq;
+    private long size;
+    private boolean dirty;
+
+    private EventJournal(Path file, long nextSeq) throws IOException {
+        this.file = file;
+        this.rotated = rotatedPath(file);
+        this.nextSeq = nextSeq;
+        open();
+        syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "journal-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        syncer.scheduleWithFixedDelay(this::sync, SYNC_INTERVAL_MS, SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // Replays the rotated journal (left over from an unfinished compaction) and then the live one,
+    // skipping everything the snapshot already holds, and opens the live journal for appending.
+    static EventJournal open(Path file, long snapshotSeq, Replay replay) throws IOException {
+        long lastSeq = snapshotSeq;
+        Path rotated = rotatedPath(file);
+        if (Files.exists(rotated)) {
+            lastSeq = Math.max(lastSeq, replay(rotated, snapshotSeq, replay, false));
+        }
+        if (Files.exists(file)) {
+            lastSeq = Math.max(lastSeq, replay(file, snapshotSeq, replay, true));
+        }
+        return new EventJournal(file, lastSeq + 1);
+    }
+
+    // Replays the same records as open, for a reader that must leave the files as they are: a
+    // torn record at the end is skipped, not cut off, and nothing is opened for appending.
+    static void replay(Path file, long snapshotSeq, Replay replay) throws IOException {
+        Path rotated = rotatedPath(file);
+        if (Files.exists(rotated)) {
+            replay(rotated, snapshotSeq, replay, false);
+        }
+        if (Files.exists(file)) {
+            replay(file, snapshotSeq, replay, false);
+        }
+    }
+
+    private static Path rotatedPath(Path file) {
+        return file.resolveSibling(file.getFileName() + ".old");
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        written = channel.size();
+        size = written + pending.size();
+    }
+
+    // Appends the pending records. On failure the file is cut back to where they started and
+    // they stay pending, so the next sync tries them again.
+    private void flushPending() throws IOException {
+        if (pending.size() == 0) {
+            return;
+        }
+        try {
+            pending.writeTo(Channels.newOutputStream(channel));
+        } catch (IOException e) {
+            try {
+                channel.truncate(written);
+            } catch (IOException truncateFailed) {
+                e.addSuppressed(truncateFailed);
+            }
+            throw e;
+        }
+        written += pending.size();
+        pending.reset();
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized long lastSeq() {
+        return nextSeq - 1;
+    }
+
+    void addEvent(LocalDate date, Event event) {
+        write(ADD_EVENT, o -> {
+            writeDate(o, date);
+            writeEvent(o, event);
+        });
+    }
+
+    void removeEvent(LocalDate date, Event event) {
+        write(REMOVE_EVENT, o -> {
+            writeDate(o, date);
+            writeEvent(o, event);
+        });
+    }
+
+    void clearDay(LocalDate date) {
+        write(CLEAR_DAY, o -> writeDate(o, date));
+    }
+
+    void removeSeries(long seriesId, LocalDate from) {
+        write(REMOVE_SERIES, o -> {
+            o.writeLong(seriesId);
+            writeDate(o, from);
+        });
+    }
+
+    void addRule(RecurrenceRule rule) {
+        write(ADD_RULE, o -> writeRule(o, rule));
+    }
+
+    void endRule(long id, LocalDate end) {
+        write(END_RULE, o -> {
+            o.writeLong(id);
+            writeDate(o, end);
+        });
+    }
+
+    void removeRule(long id) {
+        write(REMOVE_RULE, o -> o.writeLong(id));
+    }
+
+    void addException(long id, LocalDate date) {
+        write(ADD_EXCEPTION, o -> {
+            o.writeLong(id);
+            writeDate(o, date);
+        });
+    }
+
+    void setDayOff(LocalDate date, boolean off) {
+        write(DAY_OFF, o -> {
+            writeDate(o, date);
+            o.writeBoolean(off);
+        });
+    }
+
+    private interface Payload {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private synchronized void write(byte op, Payload payload) {
+        try {
+            record.reset();
+            recordOut.writeLong(nextSeq);
+            recordOut.writeByte(op);
+            payload.writeTo(recordOut);
+            if (record.size() > MAX_RECORD) {
+                throw new IllegalArgumentException("Journal record of " + record.size() + " bytes");
+            }
+            crc.reset();
+            crc.update(record.toByteArray());
+            framed.writeInt(record.size());
+            framed.writeInt((int) crc.getValue());
+            record.writeTo(pending);
+            nextSeq++;
+            size += 8 + record.size();
+            dirty = true;
+            RECORDS.increment();
+        } catch (IOException e) {
+            // the record is only built in memory here; disk errors come from flushPending
+            throw new UncheckedIOException(e);
+        }
+        if (pending.size() >= FLUSH_SIZE) {
+            try {
+                flushPending();
+            } catch (IOException e) {
+                // kept pending for the next sync; the change itself has already been made
+                e.printStackTrace();
+            }
+        }
+    }
+
+    synchronized void sync() {
+        if (!dirty) {
+            return;
+        }
+        long started = SYNCS.start();
+        try {
+            flushPending();
+            channel.force(false);
+            dirty = false;
+            SYNCS.stop(started);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Moves the live journal aside so a snapshot can be written from a copy of the current state
+    // while new changes keep going to a fresh file. Returns false while an earlier rotated
+    // journal has not been folded into a snapshot yet.
+    synchronized boolean rotate() throws IOException {
+        if (Files.exists(rotated)) {
+            return false;
+        }
+        flushPending();
+        channel.force(false);
+        channel.close();
+        Files.move(file, rotated, StandardCopyOption.ATOMIC_MOVE);
+        open();
+        dirty = false;
+        return true;
+    }
+
+    void dropRotated() throws IOException {
+        Files.deleteIfExists(rotated);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        syncer.shutdownNow();
+        flushPending();
+        channel.force(false);
+        channel.close();
+        // a sync already waiting for the lock finds nothing left to do
+        dirty = false;
+    }
+
+    private static long replay(Path path, long afterSeq, Replay replay, boolean truncateTorn) throws IOException {
+        long lastSeq = afterSeq;
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                int checksum;
+                byte[] body;
+                try {
+                    checksum = in.readInt();
+                    if (length < 9 || length > MAX_RECORD) {
+                        break;
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (EOFException e) {
+                    break;
+                }
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                DataInputStream r = new DataInputStream(new ByteArrayInputStream(body));
+                long seq = r.readLong();
+                byte op = r.readByte();
+                if (seq > afterSeq) {
+                    apply(op, r, replay);
+                    lastSeq = seq;
+                }
+                validLength += 8 + length;
+            }
+        }
+        // A crash can leave a half-written record at the end; cut it off so new records
+        // appended after it stay reachable.
+        if (truncateTorn && validLength < Files.size(path)) {
+            try (FileOutputStream f = new FileOutputStream(path.toFile(), true)) {
+                f.getChannel().truncate(validLength);
+            }
+        }
+        return lastSeq;
+    }
+
+    private static void apply(byte op, DataInputStream in, Replay replay) throws IOException {
+        switch (op) {
+            case ADD_EVENT:
+                replay.addEvent(readDate(in), readEvent(in));
+                break;
+            case REMOVE_EVENT:
+                replay.removeEvent(readDate(in), readEvent(in));
+                break;
+            case CLEAR_DAY:
+                replay.clearDay(readDate(in));
+                break;
+            case REMOVE_LEGACY_SERIES:
+                replay.removeLegacySeries(readEvent(in), readDate(in));
+                break;
+            case REMOVE_SERIES:
+                replay.removeSeries(in.readLong(), readDate(in));
+                break;
+            case ADD_RULE:
+                replay.addRule(readRule(in));
+                break;
+            case END_RULE:
+                replay.endRule(in.readLong(), readDate(in));
+                break;
+            case REMOVE_RULE:
+                replay.removeRule(in.readLong());
+                break;
+            case ADD_EXCEPTION:
+                replay.addException(in.readLong(), readDate(in));
+                break;
+            case DAY_OFF:
+                replay.setDayOff(readDate(in), in.readBoolean());
+                break;
+            default:
+                throw new IOException("Unknown journal record " + op);
+        }
+    }
+
+    static void writeDate(DataOutputStream out, LocalDate date) throws IOException {
+        out.writeInt((int) date.toEpochDay());
+    }
+
+    static LocalDate readDate(DataInputStream in) throws IOException {
+        return LocalDate.ofEpochDay(in.readInt());
+    }
+
+    static void writeRule(DataOutputStream out, RecurrenceRule rule) throws IOException {
+        out.writeLong(rule.id);
+        writeEvent(out, rule.event);
+        writeDate(out, rule.start);
+        out.writeByte(rule.frequency.ordinal());
+        out.writeBoolean(rule.weekdaysOnly);
+        out.writeBoolean(rule.skipDaysOff);
+        out.writeBoolean(rule.end != null);
+        if (rule.end != null) {
+            writeDate(out, rule.end);
+        }
+        out.writeInt(rule.exceptions.size());
+        for (LocalDate date : rule.exceptions) {
+            writeDate(out, date);
+        }
+    }
+
+    static RecurrenceRule readRule(DataInputStream in) throws IOException {
+        long id = in.readLong();
+        Event event = readEvent(in);
+        LocalDate start = readDate(in);
+        RecurrenceRule.Frequency frequency = RecurrenceRule.Frequency.values()[in.readByte()];
+        boolean weekdaysOnly = in.readBoolean();
+        boolean skipDaysOff = in.readBoolean();
+        LocalDate end = in.readBoolean() ? readDate(in) : null;
+        RecurrenceRule rule = new RecurrenceRule(id, event, start, frequency, weekdaysOnly, skipDaysOff, end);
+        for (int n = in.readInt(); n > 0; n--) {
+            rule.exceptions.add(readDate(in));
+        }
+        return rule;
+    }
+
+    static void writeEvent(DataOutputStream out, Event event) throws IOException {
+        writeText(out, event.title);
+        writeText(out, event.data);
+        out.writeInt(event.startTime.toSecondOfDay());
+        out.writeInt(event.endTime.toSecondOfDay());
+        out.writeByte((event.isRecurringDaily ? 1 : 0) | (event.isRecurringWeekly ? 2 : 0) | (event.seriesId != 0 ? 4 : 0));
+        if (event.seriesId != 0) {
+            out.writeLong(event.seriesId);
+        }
+    }
+
+    // Short text, whatever its characters, fits the two-byte length of writeUTF; longer text
+    // goes after a LONG_TEXT length so files written before it was needed still read.
+    static void writeText(DataOutputStream out, String text) throws IOException {
+        if (text.length() < LONG_TEXT / 3) {
+            out.writeUTF(text);
+            return;
+        }
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(LONG_TEXT);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // The stream must support mark, as the byte array streams records and blocks are read
+    // from do.
+    static String readText(DataInputStream in) throws IOException {
+        in.mark(2);
+        if (in.readUnsignedShort() != LONG_TEXT) {
+            in.reset();
+            return in.readUTF();
+        }
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Reads the events of a day straight into their packed form, without an Event for each.
+    static PackedDay readDay(DataInputStream in, int count) throws IOException {
+        PackedDay.Builder day = new PackedDay.Builder(count);
+        for (int i = 0; i < count; i++) {
+            String title = readText(in);
+            String data = readText(in);
+            int start = in.readInt();
+            int end = in.readInt();
+            int flags = in.readByte();
+            day.add(title, data, start, end, (flags & 1) != 0, (flags & 2) != 0, (flags & 4) != 0 ? in.readLong() : 0);
+        }
+        return day.build();
+    }
+
+    static Event readEvent(DataInputStream in) throws IOException {
+        String title = readText(in);
+        String data = readText(in);
+        LocalTime start = LocalTime.ofSecondOfDay(in.readInt());
+        LocalTime end = LocalTime.ofSecondOfDay(in.readInt());
+        int flags = in.readByte();
+        Event event = new Event(title, data, start, end, (flags & 1) != 0, (flags & 2) != 0);
+        if ((flags & 4) != 0) {
+            event.seriesId = in.readLong();
+        }
+        return event;
+    }
+}
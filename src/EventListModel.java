@@ -0,0 +1,108 @@
+import javax.swing.*;
+import java.awt.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.List;
+
+// The rows of the event list: a title, then a header for each day followed by its events. Rows
+// are kept as the dates and events themselves and only turned into text by the renderer, so
+// a list with thousands of rows costs nothing until a row scrolls into view.
+//
+// A model for a range remembers the month models it was built from. The store replaces those
+// as soon as anything in their month changes, so the model is still current exactly while
+// the store hands back the same ones, and can be kept and shown again without rebuilding.
+class EventListModel extends AbstractListModel<Object> {
+    private final List<Object> rows = new ArrayList<>();
+    private final List<MonthModel> sources;
+
+    EventListModel(String title) {
+        this(title, Collections.emptyList());
+    }
+
+    private EventListModel(String title, List<MonthModel> sources) {
+        this.sources = sources;
+        rows.add(title);
+    }
+
+    // One day header per day with events between from and to, unless the range is a single day.
+    static EventListModel forRange(String title, List<MonthModel> sources, LocalDate from, LocalDate to) {
+        EventListModel model = new EventListModel(title, sources);
+        for (MonthModel month : sources) {
+            for (Map.Entry<LocalDate, List<Event>> day : month.days.subMap(from, true, to, true).entrySet()) {
+                if (!from.equals(to)) {
+                    model.rows.add(day.getKey());
+                }
+                model.rows.addAll(day.getValue());
+            }
+        }
+        return model;
+    }
+
+    boolean isBuiltFrom(List<MonthModel> latest) {
+        if (latest.size() != sources.size()) {
+            return false;
+        }
+        for (int i = 0; i < latest.size(); i++) {
+            if (latest.get(i) != sources.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The events in the given rows, by day. In a list of more than one day an event is on the
+    // day of the header above it; a list of one day has no headers, and its events are on day.
+    Map<LocalDate, List<Event>> eventsAt(int[] indices, LocalDate day) {
+        Map<LocalDate, List<Event>> events = new TreeMap<>();
+        for (int index : indices) {
+            Object row = rows.get(index);
+            if (row instanceof SearchHit) {
+                SearchHit hit = (SearchHit) row;
+                events.computeIfAbsent(hit.date, k -> new ArrayList<>()).add(hit.event);
+            } else if (row instanceof Event) {
+                LocalDate date = day;
+                for (int i = index - 1; i > 0; i--) {
+                    if (rows.get(i) instanceof LocalDate) {
+                        date = (LocalDate) rows.get(i);
+                        break;
+                    }
+                }
+                events.computeIfAbsent(date, k -> new ArrayList<>()).add((Event) row);
+            }
+        }
+        return events;
+    }
+
+    void addAll(Collection<?> more) {
+        if (!more.isEmpty()) {
+            int first = rows.size();
+            rows.addAll(more);
+            fireIntervalAdded(this, first, rows.size() - 1);
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return rows.size();
+    }
+
+    @Override
+    public Object getElementAt(int index) {
+        return rows.get(index);
+    }
+
+    static class Renderer extends DefaultListCellRenderer {
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected, boolean cellHasFocus) {
+            String text;
+            if (value instanceof LocalDate) {
+                text = value + ":";
+            } else if (value instanceof Event || value instanceof SearchHit) {
+                text = "- " + value;
+            } else {
+                text = String.valueOf(value);
+            }
+            return super.getListCellRendererComponent(list, text, index, isSelected, cellHasFocus);
+        }
+    }
+}
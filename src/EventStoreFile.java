@@ -0,0 +1,336 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+
+// Binary snapshot of the calendar, read a month at a time through a file channel so that only
+// the months somebody looks at are ever decoded. No mapping is kept: a mapped file cannot be
+// replaced on Windows, and the store replaces this one on every save. The store closes it
+// first, which waits for reads in progress; reads after that throw ClosedChannelException.
+//
+//     int   magic "PCAL"
+//     short version
+//     long  last journal sequence contained in the snapshot
+//     int   month count
+//     int   meta length
+//     month count x (int epoch month, long offset, int length)   sorted by month
+//     meta: int day-off count, epoch days..., int rule count, rules...,
+//           int series count, then per series (long id, int date count, epoch days...)   [version 2]
+//     month blocks: int day count, then per day (byte day of month, int event count, events...)
+//
+// Events and rules use the same encoding as the journal records.
+class EventStoreFile {
+    static final int MAGIC = 0x5043414C;
+    static final short VERSION = 2;
+
+    private static final int HEADER_SIZE = 4 + 2 + 8 + 4 + 4;
+    private static final int INDEX_ENTRY_SIZE = 4 + 8 + 4;
+    private static final Metrics.Timer MONTH_DECODES = Metrics.timer("persist.monthDecode");
+
+    private final Path path;
+    private FileChannel channel;
+    private int reading;
+    private boolean closed;
+    private final long seq;
+    // Offset and length of each month's block.
+    private final NavigableMap<YearMonth, long[]> index = new TreeMap<>();
+    private final Set<LocalDate> daysOff = new HashSet<>();
+    private final List<RecurrenceRule> rules = new ArrayList<>();
+    private final Map<Long, NavigableSet<LocalDate>> seriesDates = new HashMap<>();
+
+    private EventStoreFile(Path path, FileChannel channel) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        long size = channel.size();
+        if (size < HEADER_SIZE) {
+            throw new IOException("Not a calendar store file");
+        }
+        ByteBuffer header = ByteBuffer.wrap(bytes(0, HEADER_SIZE));
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a calendar store file");
+        }
+        short version = header.getShort(4);
+        if (version > VERSION) {
+            throw new IOException("Unsupported calendar store version " + version);
+        }
+        seq = header.getLong(6);
+        int monthCount = header.getInt(14);
+        int metaLength = header.getInt(18);
+        if (monthCount < 0 || metaLength < 0 || HEADER_SIZE + (long) monthCount * INDEX_ENTRY_SIZE + metaLength > size) {
+            throw new IOException("Calendar store file is truncated");
+        }
+        ByteBuffer entries = ByteBuffer.wrap(bytes(HEADER_SIZE, monthCount * INDEX_ENTRY_SIZE));
+        for (int i = 0; i < monthCount; i++) {
+            int epochMonth = entries.getInt();
+            long offset = entries.getLong();
+            int length = entries.getInt();
+            if (offset < 0 || length < 0 || offset + length > size) {
+                throw new IOException("Calendar store file is truncated");
+            }
+            index.put(YearMonth.of(epochMonth / 12, epochMonth % 12 + 1), new long[]{offset, length});
+        }
+        long position = HEADER_SIZE + (long) monthCount * INDEX_ENTRY_SIZE;
+        DataInputStream meta = new DataInputStream(new ByteArrayInputStream(bytes(position, metaLength)));
+        for (int n = meta.readInt(); n > 0; n--) {
+            daysOff.add(EventJournal.readDate(meta));
+        }
+        for (int n = meta.readInt(); n > 0; n--) {
+            rules.add(EventJournal.readRule(meta));
+        }
+        if (version >= 2) {
+            for (int n = meta.readInt(); n > 0; n--) {
+                long id = meta.readLong();
+                NavigableSet<LocalDate> dates = new TreeSet<>();
+                for (int count = meta.readInt(); count > 0; count--) {
+                    dates.add(EventJournal.readDate(meta));
+                }
+                RecurrenceRule.reserveId(id);
+                seriesDates.put(id, dates);
+            }
+        }
+    }
+
+    static EventStoreFile open(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new EventStoreFile(path, channel);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Waits for the reads in progress, then closes the file.
+    synchronized void close() throws IOException {
+        closed = true;
+        while (reading > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        channel.close();
+    }
+
+    long seq() {
+        return seq;
+    }
+
+    Set<LocalDate> daysOff() {
+        return daysOff;
+    }
+
+    List<RecurrenceRule> rules() {
+        return rules;
+    }
+
+    // Dates holding stored occurrences of each series, so a series can be edited or deleted
+    // without decoding every month.
+    Map<Long, NavigableSet<LocalDate>> seriesDates() {
+        return seriesDates;
+    }
+
+    Set<YearMonth> months() {
+        return index.keySet();
+    }
+
+    boolean contains(YearMonth month) {
+        return index.containsKey(month);
+    }
+
+    Map<LocalDate, List<Event>> readMonth(YearMonth month) throws IOException {
+        Map<LocalDate, List<Event>> days = new HashMap<>();
+        long[] entry = index.get(month);
+        if (entry == null) {
+            return days;
+        }
+        long started = MONTH_DECODES.start();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes(entry[0], (int) entry[1])));
+        for (int dayCount = in.readInt(); dayCount > 0; dayCount--) {
+            LocalDate date = month.atDay(in.readByte());
+            days.put(date, EventJournal.readDay(in, in.readInt()));
+        }
+        MONTH_DECODES.stop(started);
+        return days;
+    }
+
+    int monthLength(YearMonth month) {
+        return (int) index.get(month)[1];
+    }
+
+    // Copies the encoded block of a month exactly as stored, so a new snapshot can carry months
+    // nobody opened this session across without decoding them.
+    void copyMonth(YearMonth month, FileChannel target) throws IOException {
+        long[] entry = index.get(month);
+        FileChannel source = beginRead();
+        try {
+            for (long copied = 0; copied < entry[1]; ) {
+                long n = source.transferTo(entry[0] + copied, entry[1] - copied, target);
+                if (n <= 0) {
+                    throw new EOFException("Calendar store file is truncated");
+                }
+                copied += n;
+            }
+        } finally {
+            endRead();
+        }
+    }
+
+    private byte[] bytes(long offset, int length) throws IOException {
+        ByteBuffer bytes = ByteBuffer.allocate(length);
+        FileChannel source = beginRead();
+        try {
+            readFully(source, bytes, offset);
+        } finally {
+            endRead();
+        }
+        return bytes.array();
+    }
+
+    private static void readFully(FileChannel source, ByteBuffer bytes, long offset) throws IOException {
+        while (bytes.hasRemaining()) {
+            if (source.read(bytes, offset + bytes.position()) < 0) {
+                throw new EOFException("Calendar store file is truncated");
+            }
+        }
+    }
+
+    // An interrupted reader shuts the channel for every reader, not just itself, so it is opened
+    // again, as long as the file on disk is still this snapshot; once the store has replaced
+    // it, the old one is gone.
+    private synchronized FileChannel beginRead() throws IOException {
+        if (closed) {
+            throw new ClosedChannelException();
+        }
+        if (channel == null || !channel.isOpen()) {
+            FileChannel reopened = FileChannel.open(path, StandardOpenOption.READ);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            try {
+                readFully(reopened, header, 0);
+                if (header.getLong(6) != seq) {
+                    throw new IOException(path + " was replaced while it was being read");
+                }
+            } catch (IOException e) {
+                reopened.close();
+                throw e;
+            }
+            channel = reopened;
+        }
+        reading++;
+        return channel;
+    }
+
+    private synchronized void endRead() {
+        if (--reading == 0) {
+            notifyAll();
+        }
+    }
+
+    // Writes the snapshot next to the target, returning the file written.
+    static Path write(Path target, SortedMap<YearMonth, Map<LocalDate, List<Event>>> decodedMonths,
+                      EventStoreFile previous, Set<LocalDate> daysOff, Collection<RecurrenceRule> rules,
+                      Map<Long, ? extends Set<LocalDate>> seriesDates, long seq) throws IOException {
+        // a month's encoded block, or null where it is copied from the previous file
+        SortedMap<YearMonth, byte[]> blocks = new TreeMap<>();
+        if (previous != null) {
+            for (YearMonth month : previous.months()) {
+                if (!decodedMonths.containsKey(month)) {
+                    blocks.put(month, null);
+                }
+            }
+        }
+        for (Map.Entry<YearMonth, Map<LocalDate, List<Event>>> entry : decodedMonths.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                blocks.put(entry.getKey(), encodeMonth(entry.getValue()));
+            }
+        }
+
+        ByteArrayOutputStream metaBytes = new ByteArrayOutputStream();
+        DataOutputStream meta = new DataOutputStream(metaBytes);
+        meta.writeInt(daysOff.size());
+        for (LocalDate date : daysOff) {
+            EventJournal.writeDate(meta, date);
+        }
+        meta.writeInt(rules.size());
+        for (RecurrenceRule rule : rules) {
+            EventJournal.writeRule(meta, rule);
+        }
+        meta.writeInt(seriesDates.size());
+        for (Map.Entry<Long, ? extends Set<LocalDate>> entry : seriesDates.entrySet()) {
+            meta.writeLong(entry.getKey());
+            meta.writeInt(entry.getValue().size());
+            for (LocalDate date : entry.getValue()) {
+                EventJournal.writeDate(meta, date);
+            }
+        }
+        meta.flush();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + blocks.size() * INDEX_ENTRY_SIZE);
+        header.putInt(MAGIC).putShort(VERSION).putLong(seq).putInt(blocks.size()).putInt(metaBytes.size());
+        long offset = header.capacity() + metaBytes.size();
+        for (Map.Entry<YearMonth, byte[]> entry : blocks.entrySet()) {
+            YearMonth month = entry.getKey();
+            int length = entry.getValue() == null ? previous.monthLength(month) : entry.getValue().length;
+            header.putInt(month.getYear() * 12 + month.getMonthValue() - 1).putLong(offset).putInt(length);
+            offset += length;
+        }
+        header.flip();
+
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header);
+            writeFully(channel, ByteBuffer.wrap(metaBytes.toByteArray()));
+            for (Map.Entry<YearMonth, byte[]> entry : blocks.entrySet()) {
+                if (entry.getValue() == null) {
+                    previous.copyMonth(entry.getKey(), channel);
+                } else {
+                    writeFully(channel, ByteBuffer.wrap(entry.getValue()));
+                }
+            }
+            channel.force(true);
+        }
+        return tmp;
+    }
+
+    // Puts a file made by write in place of the target. An open EventStoreFile of the target
+    // should be closed first.
+    static void replace(Path tmp, Path target) throws IOException {
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] encodeMonth(Map<LocalDate, List<Event>> days) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        int dayCount = 0;
+        for (List<Event> dailyEvents : days.values()) {
+            if (!dailyEvents.isEmpty()) {
+                dayCount++;
+            }
+        }
+        out.writeInt(dayCount);
+        for (Map.Entry<LocalDate, List<Event>> entry : new TreeMap<>(days).entrySet()) {
+            if (entry.getValue().isEmpty()) {
+                continue;
+            }
+            out.writeByte(entry.getKey().getDayOfMonth());
+            out.writeInt(entry.getValue().size());
+            for (Event event : entry.getValue()) {
+                EventJournal.writeEvent(out, event);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
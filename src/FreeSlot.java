@@ -0,0 +1,19 @@
+import java.time.*;
+
+// A gap in the calendar long enough for the event being placed, as found by CalendarStore.
+class FreeSlot {
+    final LocalDate date;
+    final LocalTime startTime;
+    final LocalTime endTime;
+
+    FreeSlot(LocalDate date, LocalTime startTime, LocalTime endTime) {
+        this.date = date;
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+
+    @Override
+    public String toString() {
+        return date + " " + startTime + " - " + endTime;
+    }
+}
@@ -0,0 +1,313 @@
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Timers and counters for the store, persistence and views, turned on with
+// -Dcalendar.metrics=true. They are read through the ProCalendar:type=Metrics MBean in
+// jconsole or any JMX client, and printed to standard error every
+// -Dcalendar.metrics.log.seconds if that is set.
+//
+// The switch is a constant, so when it is off every start() and stop() compiles down to
+// nothing and the timers are never touched. A timer keeps its count, total and maximum plus
+// a histogram with one bucket per power of two nanoseconds, which is enough for percentiles
+// within a factor of two at a fixed 64 longs per timer. Reading the clock twice costs about
+// as much as a conflict check, so timers on paths that quick only time a sample of the calls
+// and count the rest.
+final class Metrics implements DynamicMBean {
+    static final boolean ENABLED = Boolean.getBoolean("calendar.metrics");
+    static final String OBJECT_NAME = "ProCalendar:type=Metrics";
+
+    private static final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+    private static final Map<String, Counter> counters = new ConcurrentSkipListMap<>();
+    private static volatile EdtWatchdog watchdog;
+
+    private Metrics() {
+    }
+
+    static Timer timer(String name) {
+        return timer(name, 1);
+    }
+
+    // A timer that times one call in sampleEvery, a power of two, at random.
+    static Timer timer(String name, int sampleEvery) {
+        if (Integer.bitCount(sampleEvery) != 1) {
+            throw new IllegalArgumentException("Not a power of two: " + sampleEvery);
+        }
+        return timers.computeIfAbsent(name, n -> new Timer(n, sampleEvery - 1));
+    }
+
+    static Counter counter(String name) {
+        return counters.computeIfAbsent(name, Counter::new);
+    }
+
+    static final class Timer {
+        final String name;
+        private final int sampleMask;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder samples = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+
+        private Timer(String name, int sampleMask) {
+            this.name = name;
+            this.sampleMask = sampleMask;
+        }
+
+        // The time to pass to stop(), or 0 when metrics are off or this call is not sampled.
+        long start() {
+            if (!ENABLED) {
+                return 0;
+            }
+            if (sampleMask != 0 && (ThreadLocalRandom.current().nextInt() & sampleMask) != 0) {
+                count.increment();
+                return 0;
+            }
+            return System.nanoTime();
+        }
+
+        void stop(long started) {
+            if (ENABLED && started != 0) {
+                record(System.nanoTime() - started);
+            }
+        }
+
+        void record(long nanos) {
+            if (ENABLED) {
+                count.increment();
+                samples.increment();
+                totalNanos.add(nanos);
+                maxNanos.accumulate(nanos);
+                buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(1, nanos)));
+            }
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double meanMicros() {
+            long n = samples.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1000.0 / n;
+        }
+
+        double maxMicros() {
+            return maxNanos.get() / 1000.0;
+        }
+
+        // The upper end of the bucket holding the given fraction of the samples.
+        double percentileMicros(double fraction) {
+            long n = samples.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min((double) (2L << i), maxNanos.get()) / 1000.0;
+                }
+            }
+            return maxMicros();
+        }
+
+        void reset() {
+            count.reset();
+            samples.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+            for (int i = 0; i < 64; i++) {
+                buckets.set(i, 0);
+            }
+        }
+    }
+
+    static final class Counter {
+        final String name;
+        private final LongAdder value = new LongAdder();
+
+        private Counter(String name) {
+            this.name = name;
+        }
+
+        void increment() {
+            if (ENABLED) {
+                value.increment();
+            }
+        }
+
+        void add(long amount) {
+            if (ENABLED) {
+                value.add(amount);
+            }
+        }
+
+        long value() {
+            return value.sum();
+        }
+    }
+
+    // Registers the MBean, starts the EDT watchdog and the periodic dump. Does nothing when
+    // metrics are off.
+    static void install(boolean watchEdt) {
+        if (!ENABLED) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new Metrics(), name);
+            }
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        if (watchEdt && watchdog == null) {
+            watchdog = new EdtWatchdog(Long.getLong("calendar.edt.stall.ms", 200));
+            watchdog.start();
+        }
+        long logSeconds = Long.getLong("calendar.metrics.log.seconds", 0);
+        if (logSeconds > 0) {
+            ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "calendar-metrics");
+                t.setDaemon(true);
+                return t;
+            });
+            logger.scheduleAtFixedRate(() -> System.err.print(report()), logSeconds, logSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    static String report() {
+        StringBuilder report = new StringBuilder("--- metrics ---\n");
+        report.append(String.format("%-28s %10s %10s %10s %10s %10s%n", "timer (us)", "count", "mean", "p50", "p99", "max"));
+        for (Timer timer : timers.values()) {
+            if (timer.count() > 0) {
+                report.append(String.format("%-28s %10d %10.1f %10.1f %10.1f %10.1f%n", timer.name, timer.count(),
+                        timer.meanMicros(), timer.percentileMicros(0.5), timer.percentileMicros(0.99), timer.maxMicros()));
+            }
+        }
+        for (Counter counter : counters.values()) {
+            report.append(String.format("%-28s %10d%n", counter.name, counter.value()));
+        }
+        EdtWatchdog current = watchdog;
+        if (current != null) {
+            report.append(current.report());
+        }
+        return report.toString();
+    }
+
+    static void reset() {
+        timers.values().forEach(Timer::reset);
+        counters.values().forEach(counter -> counter.value.reset());
+    }
+
+    // Attributes are named after the timers and counters: "store.eventsBetween.p99Micros",
+    // "persist.journalRecords", "edt.stalls" and so on, so new ones show up without a fixed
+    // interface to keep in step.
+    private static final String[] TIMER_ATTRIBUTES = {"count", "meanMicros", "p50Micros", "p99Micros", "maxMicros"};
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Counter counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.value();
+        }
+        EdtWatchdog current = watchdog;
+        if (current != null) {
+            switch (attribute) {
+                case "edt.stalls":
+                    return current.stalls();
+                case "edt.longestStallMs":
+                    return current.longestStallMs();
+                case "edt.lastStall":
+                    return current.lastStall();
+                default:
+                    break;
+            }
+        }
+        int dot = attribute.lastIndexOf('.');
+        Timer timer = dot < 0 ? null : timers.get(attribute.substring(0, dot));
+        if (timer != null) {
+            switch (attribute.substring(dot + 1)) {
+                case "count":
+                    return timer.count();
+                case "meanMicros":
+                    return timer.meanMicros();
+                case "p50Micros":
+                    return timer.percentileMicros(0.5);
+                case "p99Micros":
+                    return timer.percentileMicros(0.99);
+                case "maxMicros":
+                    return timer.maxMicros();
+                default:
+                    break;
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                // left out, as the interface expects
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        switch (actionName) {
+            case "report":
+                return report();
+            case "reset":
+                reset();
+                return null;
+            default:
+                throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        for (String timer : timers.keySet()) {
+            for (String suffix : TIMER_ATTRIBUTES) {
+                String type = suffix.equals("count") ? "long" : "double";
+                attributes.add(new MBeanAttributeInfo(timer + "." + suffix, type, timer + " " + suffix, true, false, false));
+            }
+        }
+        for (String counter : counters.keySet()) {
+            attributes.add(new MBeanAttributeInfo(counter, "long", counter, true, false, false));
+        }
+        if (watchdog != null) {
+            attributes.add(new MBeanAttributeInfo("edt.stalls", "long", "Times the EDT was blocked past the threshold", true, false, false));
+            attributes.add(new MBeanAttributeInfo("edt.longestStallMs", "long", "Longest EDT stall seen", true, false, false));
+            attributes.add(new MBeanAttributeInfo("edt.lastStall", "java.lang.String", "Stack of the EDT during the last stall", true, false, false));
+        }
+        MBeanOperationInfo[] operations = {
+                new MBeanOperationInfo("report", "All metrics as text", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO),
+                new MBeanOperationInfo("reset", "Clears timers and counters", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION)};
+        return new MBeanInfo(Metrics.class.getName(), "Pro-Calendar timers, counters and EDT stalls",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, operations, null);
+    }
+}
@@ -0,0 +1,23 @@
+import java.time.*;
+import java.util.*;
+
+// What the grid and the monthly view show for one month, with recurrences already expanded.
+// CalendarStore keeps the last few in an LRU cache and drops a month as soon as anything in it
+// changes, so paging back and forth does not rebuild them.
+class MonthModel {
+    final YearMonth month;
+    final NavigableMap<LocalDate, List<Event>> days;
+
+    MonthModel(YearMonth month, NavigableMap<LocalDate, List<Event>> days) {
+        this.month = month;
+        this.days = Collections.unmodifiableNavigableMap(days);
+    }
+
+    boolean hasEvents(LocalDate date) {
+        return days.containsKey(date);
+    }
+
+    List<Event> eventsOn(LocalDate date) {
+        return days.getOrDefault(date, Collections.emptyList());
+    }
+}
@@ -0,0 +1,153 @@
+import java.time.LocalTime;
+import java.util.*;
+
+// How the store keeps a day's events: their times and flags packed into one long each, the
+// series ids in a second array only when the day has any, and the titles and data as pooled
+// strings. That is 16 bytes an event, against 40 for the Event object alone before its slot
+// in an ArrayList and its own times, and a text that recurs on many days is held once.
+//
+// It reads as an unmodifiable List<Event>, making each Event when it is asked for, so a day
+// costs nothing beyond its arrays until something looks at it. The events made are new on
+// every call; they are equal to the events stored, not the same objects.
+final class PackedDay extends AbstractList<Event> implements RandomAccess {
+    private static final int SECOND_BITS = 17;
+    private static final long SECOND_MASK = (1L << SECOND_BITS) - 1;
+    private static final long DAILY = 1L << (2 * SECOND_BITS);
+    private static final long WEEKLY = DAILY << 1;
+    // Events start and end on whole minutes nearly always, so their times are shared.
+    private static final LocalTime[] MINUTES = new LocalTime[24 * 60];
+
+    static {
+        for (int minute = 0; minute < MINUTES.length; minute++) {
+            MINUTES[minute] = LocalTime.of(minute / 60, minute % 60);
+        }
+    }
+
+    private final long[] times;
+    private final String[] texts;
+    private final long[] seriesIds;
+
+    private PackedDay(long[] times, String[] texts, long[] seriesIds) {
+        this.times = times;
+        this.texts = texts;
+        this.seriesIds = seriesIds;
+    }
+
+    // A day decoded from the store file is already packed and only has its texts pooled.
+    static PackedDay of(List<Event> dailyEvents, Pool pool) {
+        if (dailyEvents instanceof PackedDay) {
+            PackedDay day = (PackedDay) dailyEvents;
+            String[] texts = new String[day.texts.length];
+            for (int i = 0; i < texts.length; i++) {
+                texts[i] = pool.intern(day.texts[i]);
+            }
+            return new PackedDay(day.times, texts, day.seriesIds);
+        }
+        Builder day = new Builder(dailyEvents.size());
+        for (Event event : dailyEvents) {
+            day.add(pool.intern(event.title), pool.intern(event.data), event.startTime.toSecondOfDay(),
+                    event.endTime.toSecondOfDay(), event.isRecurringDaily, event.isRecurringWeekly, event.seriesId);
+        }
+        return day.build();
+    }
+
+    @Override
+    public Event get(int index) {
+        long packed = times[Objects.checkIndex(index, times.length)];
+        Event event = new Event(texts[2 * index], texts[2 * index + 1],
+                timeOf((int) (packed & SECOND_MASK)),
+                timeOf((int) (packed >>> SECOND_BITS & SECOND_MASK)),
+                (packed & DAILY) != 0, (packed & WEEKLY) != 0);
+        if (seriesIds != null) {
+            event.seriesId = seriesIds[index];
+        }
+        return event;
+    }
+
+    @Override
+    public int size() {
+        return times.length;
+    }
+
+    private static LocalTime timeOf(int secondOfDay) {
+        return secondOfDay % 60 == 0 ? MINUTES[secondOfDay / 60] : LocalTime.ofSecondOfDay(secondOfDay);
+    }
+
+    static final class Builder {
+        private final long[] times;
+        private final String[] texts;
+        private long[] seriesIds;
+        private int size;
+
+        Builder(int count) {
+            times = new long[count];
+            texts = new String[2 * count];
+        }
+
+        void add(String title, String data, int startSecond, int endSecond, boolean daily, boolean weekly, long seriesId) {
+            times[size] = startSecond | (long) endSecond << SECOND_BITS | (daily ? DAILY : 0) | (weekly ? WEEKLY : 0);
+            texts[2 * size] = title;
+            texts[2 * size + 1] = data;
+            if (seriesId != 0) {
+                if (seriesIds == null) {
+                    seriesIds = new long[times.length];
+                }
+                seriesIds[size] = seriesId;
+            }
+            size++;
+        }
+
+        PackedDay build() {
+            if (size != times.length) {
+                throw new IllegalStateException(size + " of " + times.length + " events added");
+            }
+            return new PackedDay(times, texts, seriesIds);
+        }
+    }
+
+    // One copy of each title and data text: an open-addressed table of the strings themselves,
+    // so a text costs a table slot on top of the string, not a map entry. Texts stay pooled
+    // after the last event using them is gone, for as long as the store is open. Only used
+    // under the store's write lock.
+    static final class Pool {
+        private String[] table = new String[1024];
+        private int size;
+
+        String intern(String text) {
+            int mask = table.length - 1;
+            for (int i = slot(text, mask); ; i = (i + 1) & mask) {
+                String pooled = table[i];
+                if (pooled == null) {
+                    table[i] = text;
+                    if (++size * 2 > table.length) {
+                        grow();
+                    }
+                    return text;
+                }
+                if (pooled.equals(text)) {
+                    return pooled;
+                }
+            }
+        }
+
+        private void grow() {
+            String[] old = table;
+            table = new String[old.length * 2];
+            int mask = table.length - 1;
+            for (String text : old) {
+                if (text != null) {
+                    int i = slot(text, mask);
+                    while (table[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    table[i] = text;
+                }
+            }
+        }
+
+        private static int slot(String text, int mask) {
+            int h = text.hashCode();
+            return (h ^ h >>> 16) & mask;
+        }
+    }
+}
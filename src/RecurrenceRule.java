@@ -0,0 +1,150 @@
+import java.io.Serializable;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+class RecurrenceRule implements Serializable {
+    enum Frequency { DAILY, WEEKLY }
+
+    private static final AtomicLong nextId = new AtomicLong(1);
+
+    final long id;
+    final Event event;
+    final LocalDate start;
+    final Frequency frequency;
+    final boolean weekdaysOnly;
+    final boolean skipDaysOff;
+    LocalDate end;
+    final Set<LocalDate> exceptions = new HashSet<>();
+
+    // A rule stores the series once; occurrences are produced on demand for the
+    // range being looked at, so an open-ended series costs the same as a single event.
+    // "Weekdays" and "days off" are those of the working calendar the series is read
+    // against; a count limit is turned into an end date with the weekend of this one.
+    RecurrenceRule(Event event, LocalDate start, Frequency frequency, boolean weekdaysOnly,
+                   boolean skipDaysOff, LocalDate until, int count, WorkingCalendar calendar) {
+        this(nextId.getAndIncrement(), event, start, frequency, weekdaysOnly, skipDaysOff, until);
+        if (count > 0) {
+            LocalDate last = nthOccurrence(count - 1, calendar);
+            if (end == null || last.isBefore(end)) {
+                end = last;
+            }
+        }
+    }
+
+    RecurrenceRule(long id, Event event, LocalDate start, Frequency frequency, boolean weekdaysOnly,
+                   boolean skipDaysOff, LocalDate until) {
+        reserveId(id);
+        this.id = id;
+        this.event = event;
+        event.seriesId = id;
+        this.start = start;
+        this.frequency = frequency;
+        this.weekdaysOnly = weekdaysOnly;
+        this.skipDaysOff = skipDaysOff;
+        this.end = until;
+    }
+
+    RecurrenceRule copy() {
+        RecurrenceRule copy = new RecurrenceRule(id, event, start, frequency, weekdaysOnly, skipDaysOff, end);
+        copy.exceptions.addAll(exceptions);
+        return copy;
+    }
+
+    static void reserveIds(Collection<RecurrenceRule> rules) {
+        for (RecurrenceRule rule : rules) {
+            reserveId(rule.id);
+        }
+    }
+
+    static void reserveId(long id) {
+        nextId.accumulateAndGet(id + 1, Math::max);
+    }
+
+    // Series ids and rule ids share one space, so series stored occurrence by occurrence
+    // (as older versions did) can be told apart from rules.
+    static long newSeriesId() {
+        return nextId.getAndIncrement();
+    }
+
+    boolean isOpenEnded() {
+        return end == null;
+    }
+
+    boolean matchesPattern(LocalDate date, WorkingCalendar calendar) {
+        if (date.isBefore(start) || (end != null && date.isAfter(end))) {
+            return false;
+        }
+        if (date.equals(start)) {
+            return true;
+        }
+        if (weekdaysOnly && calendar.isWeekend(date)) {
+            return false;
+        }
+        return frequency == Frequency.DAILY || date.getDayOfWeek() == start.getDayOfWeek();
+    }
+
+    boolean occursOn(LocalDate date, WorkingCalendar calendar) {
+        return matchesPattern(date, calendar)
+                && !exceptions.contains(date)
+                && !(skipDaysOff && calendar.isDayOff(date));
+    }
+
+    void expand(LocalDate from, LocalDate to, WorkingCalendar calendar, BiConsumer<LocalDate, Event> sink) {
+        LocalDate first = from.isBefore(start) ? start : from;
+        LocalDate last = (end != null && end.isBefore(to)) ? end : to;
+        if (first.isAfter(last)) {
+            return;
+        }
+        LocalDate date = first;
+        int step = 1;
+        if (frequency == Frequency.WEEKLY) {
+            if (!date.equals(start)) {
+                int shift = (start.getDayOfWeek().getValue() - date.getDayOfWeek().getValue() + 7) % 7;
+                date = date.plusDays(shift);
+            }
+            step = 7;
+        }
+        for (; !date.isAfter(last); date = date.plusDays(step)) {
+            if (occursOn(date, calendar)) {
+                sink.accept(date, event);
+            }
+        }
+    }
+
+    // Index n of the raw pattern (before exceptions and days off), computed without walking
+    // the series so that a count limit can be turned into an end date up front.
+    LocalDate nthOccurrence(long n, WorkingCalendar calendar) {
+        if (n <= 0) {
+            return start;
+        }
+        int workdays = 7 - calendar.weekend().size();
+        if (frequency == Frequency.WEEKLY) {
+            return weekdaysOnly && calendar.isWeekend(start) ? start : start.plusWeeks(n);
+        }
+        if (!weekdaysOnly) {
+            return start.plusDays(n);
+        }
+        if (workdays == 0) {
+            return start;
+        }
+        LocalDate date = start;
+        if (calendar.isWeekend(date)) {
+            date = nextWeekday(date, calendar);
+            n--;
+        }
+        date = date.plusWeeks(n / workdays);
+        for (long i = n % workdays; i > 0; i--) {
+            date = nextWeekday(date, calendar);
+        }
+        return date;
+    }
+
+    private static LocalDate nextWeekday(LocalDate date, WorkingCalendar calendar) {
+        do {
+            date = date.plusDays(1);
+        } while (calendar.isWeekend(date));
+        return date;
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.Closeable;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Reminders a fixed lead time before every upcoming event, recurring occurrences included.
+// Only the next few days are held: a priority queue of their reminders by due time, refilled
+// a day at a time from the store as the clock moves on, so the cost does not depend on how
+// many occurrences lie further ahead. The store reports each day it changes, and a changed day
+// that is held has its reminders read again on the next tick; nothing else is touched.
+//
+// All the work is done by tick() against the clock it was given, so a simulated clock can
+// drive it step by step. start() runs it on its own thread, waking for the next reminder,
+// at least once a minute for the days rolling over, and as soon as the store changes.
+class ReminderScheduler implements CalendarStore.ChangeListener, Closeable {
+    interface Listener {
+        void remind(Reminder reminder);
+    }
+
+    static class Reminder {
+        private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm");
+
+        final LocalDate date;
+        final Event event;
+        final LocalDateTime due;
+
+        Reminder(LocalDate date, Event event, LocalDateTime due) {
+            this.date = date;
+            this.event = event;
+            this.due = due;
+        }
+
+        // The same event on the same day. The store makes its events anew on every read, so
+        // they are compared by value; an edited event differs and is reminded again.
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Reminder)) {
+                return false;
+            }
+            Reminder other = (Reminder) o;
+            return date.equals(other.date) && event.equals(other.event);
+        }
+
+        @Override
+        public int hashCode() {
+            return date.hashCode() * 31 + event.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return event.title + " at " + event.startTime.format(TIME) + " on " + date;
+        }
+    }
+
+    private static final int WINDOW_DAYS = 2;
+    private static final long MAX_SLEEP_MS = 60_000;
+
+    private final CalendarStore store;
+    private final Clock clock;
+    private final Duration lead;
+    private final Listener listener;
+    private final PriorityQueue<Reminder> queue = new PriorityQueue<>(Comparator.comparing(r -> r.due));
+    // Reminders already given for the days held, so that reading a day again does not repeat them.
+    private final Set<Reminder> fired = new HashSet<>();
+    // The days held, windowStart inclusive and windowEnd exclusive.
+    private LocalDate windowStart;
+    private LocalDate windowEnd;
+    private final Set<LocalDate> changedDays = ConcurrentHashMap.newKeySet();
+    private volatile boolean allChanged;
+    // Read by change listeners on any thread; shut down for good by close.
+    private volatile ScheduledExecutorService timer;
+    private ScheduledFuture<?> nextTick;
+    private final AtomicBoolean wakeQueued = new AtomicBoolean();
+
+    ReminderScheduler(CalendarStore store, Clock clock, Duration lead, Listener listener) {
+        if (lead.isNegative()) {
+            throw new IllegalArgumentException("Negative reminder lead: " + lead);
+        }
+        this.store = store;
+        this.clock = clock;
+        this.lead = lead;
+        this.listener = listener;
+        store.addChangeListener(this);
+    }
+
+    void start() {
+        timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "calendar-reminders");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.execute(this::run);
+    }
+
+    @Override
+    public void close() {
+        store.removeChangeListener(this);
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    @Override
+    public void changed(LocalDate date) {
+        if (date == null) {
+            allChanged = true;
+        } else {
+            changedDays.add(date);
+        }
+        // Told under the store's write lock, so a wake-up after close is dropped rather than
+        // thrown into the change.
+        ScheduledExecutorService current = timer;
+        if (current != null && !current.isShutdown() && wakeQueued.compareAndSet(false, true)) {
+            try {
+                current.execute(() -> {
+                    wakeQueued.set(false);
+                    run();
+                });
+            } catch (RejectedExecutionException e) {
+                // closed since the check
+            }
+        }
+    }
+
+    // Runs on the timer thread only.
+    private void run() {
+        LocalDateTime next = tick();
+        long delay = MAX_SLEEP_MS;
+        if (next != null) {
+            delay = Math.min(delay, Math.max(0, Duration.between(LocalDateTime.now(clock), next).toMillis()));
+        }
+        if (nextTick != null) {
+            nextTick.cancel(false);
+        }
+        try {
+            nextTick = timer.schedule(this::run, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // closed while this tick ran
+        }
+    }
+
+    // Gives every reminder due by now and returns when the next one held is due, or null if
+    // none is. Reminders whose time passed while the event has not started yet, as for an event
+    // added at short notice, are given straight away.
+    synchronized LocalDateTime tick() {
+        LocalDateTime now = LocalDateTime.now(clock);
+        LocalDate today = now.toLocalDate();
+        // the days whose events can be due before the window moves on again
+        LocalDate lastDay = today.plusDays(WINDOW_DAYS + lead.toDays());
+        if (windowStart == null || allChanged || today.isBefore(windowStart) || windowEnd.isBefore(today)) {
+            // the days are read again, but what was given stays given: a series added or an
+            // undo must not repeat the reminders of events still to start
+            allChanged = false;
+            changedDays.clear();
+            queue.clear();
+            fired.removeIf(r -> r.date.isBefore(today));
+            windowStart = today;
+            windowEnd = today;
+        } else if (windowStart.isBefore(today)) {
+            queue.removeIf(r -> r.date.isBefore(today));
+            fired.removeIf(r -> r.date.isBefore(today));
+            windowStart = today;
+        }
+        for (Iterator<LocalDate> it = changedDays.iterator(); it.hasNext(); ) {
+            LocalDate date = it.next();
+            it.remove();
+            if (!date.isBefore(windowStart) && date.isBefore(windowEnd)) {
+                queue.removeIf(r -> r.date.equals(date));
+                hold(date, store.eventsOn(date), now);
+            }
+        }
+        if (!lastDay.isBefore(windowEnd)) {
+            for (Map.Entry<LocalDate, List<Event>> day : store.eventsBetween(windowEnd, lastDay).entrySet()) {
+                hold(day.getKey(), day.getValue(), now);
+            }
+            windowEnd = lastDay.plusDays(1);
+        }
+        while (!queue.isEmpty() && !queue.peek().due.isAfter(now)) {
+            Reminder reminder = queue.poll();
+            if (fired.add(reminder)) {
+                listener.remind(reminder);
+            }
+        }
+        return queue.isEmpty() ? null : queue.peek().due;
+    }
+
+    // How many reminders are waiting in the window.
+    synchronized int pending() {
+        return queue.size();
+    }
+
+    private void hold(LocalDate date, List<Event> dailyEvents, LocalDateTime now) {
+        for (Event event : dailyEvents) {
+            LocalDateTime start = date.atTime(event.startTime);
+            if (start.isAfter(now)) {
+                Reminder reminder = new Reminder(date, event, start.minus(lead));
+                if (!fired.contains(reminder)) {
+                    queue.add(reminder);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,17 @@
+import java.time.LocalDate;
+
+// One event found by a search, on one of the days it takes place.
+class SearchHit {
+    final LocalDate date;
+    final Event event;
+
+    SearchHit(LocalDate date, Event event) {
+        this.date = date;
+        this.event = event;
+    }
+
+    @Override
+    public String toString() {
+        return date + ": " + event;
+    }
+}
@@ -0,0 +1,220 @@
+import java.time.LocalDate;
+import java.util.*;
+
+// Inverted index over the words of event titles and data. A word points at the dates that
+// hold a stored event containing it (with a count, so removing one of two events on a day
+// keeps the date) and at the recurrence rules whose event contains it.
+//
+// Queries only narrow things down to candidate dates and rules; CalendarStore then reads the
+// events of those days and keeps the ones that really match, so the index never has to
+// track individual events. Dates are kept as sorted epoch days, which the index is mostly
+// built from in order, so adding one is nearly always an append.
+class SearchIndex {
+    private final NavigableMap<String, Postings> terms = new TreeMap<>();
+
+    private static class Postings {
+        int[] days = new int[2];
+        int[] counts = new int[2];
+        int size;
+        Set<Long> rules;
+
+        void add(int day) {
+            int i = size > 0 && days[size - 1] < day ? -size - 1 : Arrays.binarySearch(days, 0, size, day);
+            if (i >= 0) {
+                counts[i]++;
+                return;
+            }
+            i = -i - 1;
+            if (size == days.length) {
+                days = Arrays.copyOf(days, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            System.arraycopy(days, i, days, i + 1, size - i);
+            System.arraycopy(counts, i, counts, i + 1, size - i);
+            days[i] = day;
+            counts[i] = 1;
+            size++;
+        }
+
+        void remove(int day) {
+            int i = Arrays.binarySearch(days, 0, size, day);
+            if (i >= 0 && --counts[i] == 0) {
+                System.arraycopy(days, i + 1, days, i, size - i - 1);
+                System.arraycopy(counts, i + 1, counts, i, size - i - 1);
+                size--;
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0 && (rules == null || rules.isEmpty());
+        }
+    }
+
+    // What a query narrows the calendar down to: candidate epoch days in order, and rule ids.
+    static class Candidates {
+        final int[] days;
+        final Set<Long> rules;
+
+        Candidates(int[] days, Set<Long> rules) {
+            this.days = days;
+            this.rules = rules;
+        }
+    }
+
+    void add(LocalDate date, Event event) {
+        int day = (int) date.toEpochDay();
+        for (String term : terms(event)) {
+            terms.computeIfAbsent(term, k -> new Postings()).add(day);
+        }
+    }
+
+    void remove(LocalDate date, Event event) {
+        int day = (int) date.toEpochDay();
+        for (String term : terms(event)) {
+            Postings postings = terms.get(term);
+            if (postings != null) {
+                postings.remove(day);
+                if (postings.isEmpty()) {
+                    terms.remove(term);
+                }
+            }
+        }
+    }
+
+    void addRule(RecurrenceRule rule) {
+        for (String term : terms(rule.event)) {
+            Postings postings = terms.computeIfAbsent(term, k -> new Postings());
+            if (postings.rules == null) {
+                postings.rules = new HashSet<>();
+            }
+            postings.rules.add(rule.id);
+        }
+    }
+
+    void removeRule(RecurrenceRule rule) {
+        for (String term : terms(rule.event)) {
+            Postings postings = terms.get(term);
+            if (postings != null && postings.rules != null) {
+                postings.rules.remove(rule.id);
+                if (postings.isEmpty()) {
+                    terms.remove(term);
+                }
+            }
+        }
+    }
+
+    // Every query word is taken as a prefix, and a candidate has to match all of them.
+    Candidates candidates(List<String> words) {
+        int[] days = null;
+        Set<Long> rules = null;
+        for (String word : words) {
+            Collection<Postings> matching = terms.subMap(word, true, word + Character.MAX_VALUE, false).values();
+            int total = 0;
+            for (Postings postings : matching) {
+                total += postings.size;
+            }
+            int[] wordDays = new int[total];
+            int n = 0;
+            Set<Long> wordRules = new HashSet<>();
+            for (Postings postings : matching) {
+                System.arraycopy(postings.days, 0, wordDays, n, postings.size);
+                n += postings.size;
+                if (postings.rules != null) {
+                    wordRules.addAll(postings.rules);
+                }
+            }
+            if (matching.size() > 1) {
+                Arrays.sort(wordDays);
+            }
+            wordDays = days == null ? distinct(wordDays) : intersect(days, wordDays);
+            if (rules != null) {
+                wordRules.retainAll(rules);
+            }
+            days = wordDays;
+            rules = wordRules;
+            if (days.length == 0 && rules.isEmpty()) {
+                break;
+            }
+        }
+        return new Candidates(days == null ? new int[0] : days, rules == null ? new HashSet<>() : rules);
+    }
+
+    private static int[] distinct(int[] sorted) {
+        int n = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (n == 0 || sorted[n - 1] != sorted[i]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] both = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                if (n == 0 || both[n - 1] != a[i]) {
+                    both[n++] = a[i];
+                }
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(both, n);
+    }
+
+    static boolean matches(Event event, List<String> words) {
+        List<String> eventTerms = terms(event);
+        for (String word : words) {
+            boolean found = false;
+            for (String term : eventTerms) {
+                if (term.startsWith(word)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The distinct words of an event; there are only a few, so a list is cheaper than a set.
+    static List<String> terms(Event event) {
+        List<String> found = new ArrayList<>(4);
+        tokenize(event.title, found);
+        tokenize(event.data, found);
+        return found;
+    }
+
+    static List<String> words(String query) {
+        List<String> found = new ArrayList<>();
+        tokenize(query, found);
+        return found;
+    }
+
+    private static void tokenize(String text, List<String> into) {
+        if (text == null) {
+            return;
+        }
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                String word = text.substring(start, i).toLowerCase(Locale.ROOT);
+                if (!into.contains(word)) {
+                    into.add(word);
+                }
+                start = -1;
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+import java.io.*;
+import java.time.*;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.IsoFields;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+// Booked time over a range of months: by day, week and month, how much of it fell on weekends
+// and days off, the busiest half hours of the week and how often each series came up. Every
+// month is scanned on its own, recurrences expanded the way the views show them, and the
+// months of a range are scanned in parallel on the common fork/join pool.
+//
+// A scanned month is kept with the store's version of it and only scanned again once that
+// changes, so after an edit a report over years reads the one month edited. A change to the
+// rules or the working calendar changes every month, and the next report scans them all.
+class Utilization {
+    static final int SLOT_MINUTES = 30;
+    static final int SLOTS_PER_DAY = 24 * 60 / SLOT_MINUTES;
+    private static final byte WORKDAY = 0;
+    private static final byte WEEKEND = 1;
+    private static final byte DAY_OFF = 2;
+
+    private static final Metrics.Timer REPORTS = Metrics.timer("analytics.report");
+    private static final Metrics.Timer SCANS = Metrics.timer("analytics.monthScan");
+
+    private final CalendarStore store;
+    private final Map<YearMonth, MonthUsage> months = new ConcurrentHashMap<>();
+
+    Utilization(CalendarStore store) {
+        this.store = store;
+    }
+
+    // Any thread may ask; each month is read as it was between two changes.
+    Report report(YearMonth from, YearMonth to) throws IOException {
+        long started = REPORTS.start();
+        List<YearMonth> range = new ArrayList<>();
+        for (YearMonth month = from; !month.isAfter(to); month = month.plusMonths(1)) {
+            range.add(month);
+        }
+        AtomicInteger scanned = new AtomicInteger();
+        List<MonthUsage> usage;
+        try {
+            usage = range.parallelStream().map(month -> usage(month, scanned)).collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Report report = new Report(from, to, usage, scanned.get());
+        REPORTS.stop(started);
+        return report;
+    }
+
+    // The version is taken before the month is read, so a change racing the scan leaves a
+    // usage stamped older than it, and the next report scans the month again.
+    private MonthUsage usage(YearMonth month, AtomicInteger scanned) {
+        long seen = store.monthVersion(month);
+        MonthUsage cached = months.get(month);
+        if (cached != null && cached.version == seen) {
+            return cached;
+        }
+        long started = SCANS.start();
+        MonthUsage usage = new MonthUsage(month, seen);
+        WorkingCalendar calendar = store.workingCalendar();
+        for (int day = 1; day <= month.lengthOfMonth(); day++) {
+            LocalDate date = month.atDay(day);
+            usage.kinds[day - 1] = calendar.isDayOff(date) ? DAY_OFF : calendar.isWeekend(date) ? WEEKEND : WORKDAY;
+        }
+        try {
+            store.forEachDay(month.atDay(1), month.atEndOfMonth(), usage::add);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        months.put(month, usage);
+        scanned.incrementAndGet();
+        SCANS.stop(started);
+        return usage;
+    }
+
+    // One month as scanned. Never changed once the scan is done.
+    private static final class MonthUsage {
+        final YearMonth month;
+        final long version;
+        final byte[] kinds;
+        final int[] events;
+        final int[] minutes;
+        // Booked minutes in each half hour of each day of the week, Monday first.
+        final int[] slots = new int[7 * SLOTS_PER_DAY];
+        final Map<Long, SeriesUsage> series = new HashMap<>();
+
+        MonthUsage(YearMonth month, long version) {
+            this.month = month;
+            this.version = version;
+            kinds = new byte[month.lengthOfMonth()];
+            events = new int[kinds.length];
+            minutes = new int[kinds.length];
+        }
+
+        // Events of a day come in start order. Time covered twice is booked once.
+        void add(LocalDate date, List<Event> dailyEvents) {
+            int day = date.getDayOfMonth() - 1;
+            int weekday = date.getDayOfWeek().ordinal();
+            int covered = 0;
+            for (Event event : dailyEvents) {
+                int start = event.startTime.toSecondOfDay() / 60;
+                int end = event.endTime.toSecondOfDay() / 60;
+                events[day]++;
+                for (int minute = Math.max(start, covered); minute < end; ) {
+                    int slotEnd = Math.min(end, (minute / SLOT_MINUTES + 1) * SLOT_MINUTES);
+                    slots[weekday * SLOTS_PER_DAY + minute / SLOT_MINUTES] += slotEnd - minute;
+                    minutes[day] += slotEnd - minute;
+                    minute = slotEnd;
+                }
+                covered = Math.max(covered, end);
+                if (event.seriesId != 0) {
+                    series.computeIfAbsent(event.seriesId, id -> new SeriesUsage(event.title)).add(Math.max(0, end - start));
+                }
+            }
+        }
+    }
+
+    private static final class SeriesUsage {
+        final String title;
+        int occurrences;
+        long minutes;
+
+        SeriesUsage(String title) {
+            this.title = title;
+        }
+
+        void add(int eventMinutes) {
+            occurrences++;
+            minutes += eventMinutes;
+        }
+    }
+
+    // Booked time over one day, week or month, or over the whole range.
+    static final class Row {
+        final String period;
+        final LocalDate start;
+        final int days;
+        long events;
+        long minutes;
+        long weekendMinutes;
+        long dayOffMinutes;
+
+        private Row(String period, LocalDate start, int days) {
+            this.period = period;
+            this.start = start;
+            this.days = days;
+        }
+
+        private void add(MonthUsage usage, int day) {
+            events += usage.events[day];
+            minutes += usage.minutes[day];
+            if (usage.kinds[day] == WEEKEND) {
+                weekendMinutes += usage.minutes[day];
+            } else if (usage.kinds[day] == DAY_OFF) {
+                dayOffMinutes += usage.minutes[day];
+            }
+        }
+
+        // Booked share of the hours of its days.
+        double load() {
+            return minutes / (days * 24.0 * 60);
+        }
+    }
+
+    // Booked minutes in one half hour of the week, summed over the range.
+    static final class Slot {
+        final DayOfWeek day;
+        final LocalTime start;
+        final long minutes;
+
+        private Slot(DayOfWeek day, LocalTime start, long minutes) {
+            this.day = day;
+            this.start = start;
+            this.minutes = minutes;
+        }
+    }
+
+    static final class SeriesCount {
+        final long seriesId;
+        final String title;
+        final long occurrences;
+        final long minutes;
+
+        private SeriesCount(long seriesId, String title, long occurrences, long minutes) {
+            this.seriesId = seriesId;
+            this.title = title;
+            this.occurrences = occurrences;
+            this.minutes = minutes;
+        }
+    }
+
+    // The months of a range put together. The rows are built on request from the months
+    // scanned, which are shared with later reports.
+    static final class Report {
+        final YearMonth from;
+        final YearMonth to;
+        // How many of the months had to be scanned; the rest were kept from before.
+        final int scanned;
+        private final List<MonthUsage> months;
+
+        private Report(YearMonth from, YearMonth to, List<MonthUsage> months, int scanned) {
+            this.from = from;
+            this.to = to;
+            this.months = months;
+            this.scanned = scanned;
+        }
+
+        int monthCount() {
+            return months.size();
+        }
+
+        Row total() {
+            int days = 0;
+            for (MonthUsage usage : months) {
+                days += usage.kinds.length;
+            }
+            Row total = new Row(from + " to " + to, from.atDay(1), days);
+            for (MonthUsage usage : months) {
+                for (int day = 0; day < usage.kinds.length; day++) {
+                    total.add(usage, day);
+                }
+            }
+            return total;
+        }
+
+        List<Row> byDay() {
+            List<Row> rows = new ArrayList<>();
+            for (MonthUsage usage : months) {
+                for (int day = 0; day < usage.kinds.length; day++) {
+                    LocalDate date = usage.month.atDay(day + 1);
+                    Row row = new Row(date.toString(), date, 1);
+                    row.add(usage, day);
+                    rows.add(row);
+                }
+            }
+            return rows;
+        }
+
+        // ISO weeks, Monday to Sunday; the first and last may be cut short by the range.
+        List<Row> byWeek() {
+            List<Row> rows = new ArrayList<>();
+            Row week = null;
+            for (MonthUsage usage : months) {
+                for (int day = 0; day < usage.kinds.length; day++) {
+                    LocalDate date = usage.month.atDay(day + 1);
+                    if (week == null || date.getDayOfWeek() == DayOfWeek.MONDAY) {
+                        LocalDate sunday = date.plusDays(7 - date.getDayOfWeek().getValue());
+                        LocalDate last = sunday.isAfter(to.atEndOfMonth()) ? to.atEndOfMonth() : sunday;
+                        week = new Row(date.get(IsoFields.WEEK_BASED_YEAR) + "-W"
+                                + String.format(Locale.ROOT, "%02d", date.get(IsoFields.WEEK_OF_WEEK_BASED_YEAR)),
+                                date, (int) ChronoUnit.DAYS.between(date, last) + 1);
+                        rows.add(week);
+                    }
+                    week.add(usage, day);
+                }
+            }
+            return rows;
+        }
+
+        List<Row> byMonth() {
+            List<Row> rows = new ArrayList<>();
+            for (MonthUsage usage : months) {
+                Row row = new Row(usage.month.toString(), usage.month.atDay(1), usage.kinds.length);
+                for (int day = 0; day < usage.kinds.length; day++) {
+                    row.add(usage, day);
+                }
+                rows.add(row);
+            }
+            return rows;
+        }
+
+        // The half hours of the week with the most booked, busiest first.
+        List<Slot> busiestSlots(int limit) {
+            long[] slots = new long[7 * SLOTS_PER_DAY];
+            for (MonthUsage usage : months) {
+                for (int i = 0; i < slots.length; i++) {
+                    slots[i] += usage.slots[i];
+                }
+            }
+            List<Slot> busiest = new ArrayList<>();
+            for (int i = 0; i < slots.length; i++) {
+                if (slots[i] > 0) {
+                    busiest.add(new Slot(DayOfWeek.of(i / SLOTS_PER_DAY + 1),
+                            LocalTime.ofSecondOfDay(i % SLOTS_PER_DAY * SLOT_MINUTES * 60L), slots[i]));
+                }
+            }
+            busiest.sort(Comparator.comparingLong((Slot slot) -> slot.minutes).reversed());
+            return busiest.subList(0, Math.min(limit, busiest.size()));
+        }
+
+        // Every series with an occurrence in the range, the most frequent first.
+        List<SeriesCount> series() {
+            Map<Long, SeriesCount> counts = new HashMap<>();
+            for (MonthUsage usage : months) {
+                for (Map.Entry<Long, SeriesUsage> entry : usage.series.entrySet()) {
+                    SeriesUsage month = entry.getValue();
+                    counts.merge(entry.getKey(), new SeriesCount(entry.getKey(), month.title, month.occurrences, month.minutes),
+                            (a, b) -> new SeriesCount(a.seriesId, a.title, a.occurrences + b.occurrences, a.minutes + b.minutes));
+                }
+            }
+            List<SeriesCount> series = new ArrayList<>(counts.values());
+            series.sort(Comparator.comparingLong((SeriesCount count) -> count.occurrences).reversed()
+                    .thenComparing(count -> count.title));
+            return series;
+        }
+
+        // One CSV of everything, told apart by the first column: a row for every day, week and
+        // month and for the whole range, then the busy half hours and the series.
+        void writeCsv(Writer out) throws IOException {
+            out.write("kind,period,start,events,booked_hours,weekend_hours,day_off_hours,load\n");
+            for (Row row : byDay()) {
+                writeRow(out, "day", row);
+            }
+            for (Row row : byWeek()) {
+                writeRow(out, "week", row);
+            }
+            for (Row row : byMonth()) {
+                writeRow(out, "month", row);
+            }
+            writeRow(out, "total", total());
+            for (Slot slot : busiestSlots(7 * SLOTS_PER_DAY)) {
+                out.write("slot," + slot.day + " " + slot.start + ",,," + hours(slot.minutes) + ",,,\n");
+            }
+            for (SeriesCount count : series()) {
+                out.write("series," + csvField(count.title) + ",," + count.occurrences + "," + hours(count.minutes) + ",,,\n");
+            }
+            out.flush();
+        }
+
+        private static void writeRow(Writer out, String kind, Row row) throws IOException {
+            out.write(kind + "," + row.period + "," + row.start + "," + row.events + "," + hours(row.minutes) + ","
+                    + hours(row.weekendMinutes) + "," + hours(row.dayOffMinutes) + ","
+                    + String.format(Locale.ROOT, "%.4f", row.load()) + "\n");
+        }
+
+        static String hours(long minutes) {
+            return String.format(Locale.ROOT, "%.2f", minutes / 60.0);
+        }
+
+        private static String csvField(String text) {
+            if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0) {
+                return text;
+            }
+            return "\"" + text.replace("\"", "\"\"") + "\"";
+        }
+    }
+}
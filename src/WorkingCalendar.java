@@ -0,0 +1,333 @@
+import java.time.*;
+import java.time.temporal.TemporalAdjusters;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Which days are worked: the days of the week that make the weekend, holidays that come back
+// every year or fall on one date, and the single days off set by hand. Holidays count as days
+// off, so nothing can be added on them and series that skip days off skip them too.
+//
+// A calendar never changes; changing it makes a new one. Each year it is asked about is
+// worked out once into two bitsets, a bit per day of the year, one for the days off and one
+// for every day not worked, so that every question about a day is a single bit test and
+// finding the next working days scans 64 days at a time.
+//
+// The weekend and the holidays are kept as text, one per line, which is also the format of
+// a holiday list to import:
+//
+//     weekend SATURDAY SUNDAY
+//     --12-25 Christmas Day             every year on that date
+//     4 THURSDAY NOVEMBER Thanksgiving  every year on the fourth Thursday of November
+//     last MONDAY MAY Memorial Day      ...or the last Monday of May
+//     2027-04-02 Company offsite        on that date only
+//
+// Blank lines and lines starting with # are skipped.
+final class WorkingCalendar {
+    static final WorkingCalendar STANDARD = new WorkingCalendar(EnumSet.of(DayOfWeek.SATURDAY, DayOfWeek.SUNDAY),
+            Collections.emptyList(), Collections.emptyNavigableSet());
+
+    private static final int WORDS = 6;
+    // Years looked up by index rather than through the map, so a test does not box the year.
+    private static final int FIRST_YEAR = 1900;
+    private static final int YEARS = 400;
+
+    private final Set<DayOfWeek> weekend;
+    private final int weekendMask;
+    private final List<Holiday> holidays;
+    private final NavigableSet<LocalDate> daysOff;
+    // Per year: WORDS longs of days off, then WORDS longs of days not worked.
+    private final AtomicReferenceArray<long[]> years = new AtomicReferenceArray<>(YEARS);
+    private final Map<Integer, long[]> otherYears = new ConcurrentHashMap<>();
+
+    private WorkingCalendar(Set<DayOfWeek> weekend, List<Holiday> holidays, NavigableSet<LocalDate> daysOff) {
+        Set<DayOfWeek> days = EnumSet.noneOf(DayOfWeek.class);
+        days.addAll(weekend);
+        this.weekend = Collections.unmodifiableSet(days);
+        int mask = 0;
+        for (DayOfWeek day : weekend) {
+            mask |= 1 << day.ordinal();
+        }
+        this.weekendMask = mask;
+        this.holidays = Collections.unmodifiableList(new ArrayList<>(holidays));
+        this.daysOff = Collections.unmodifiableNavigableSet(daysOff);
+    }
+
+    static final class Holiday {
+        final String name;
+        // Exactly one of these says when it falls.
+        final LocalDate date;
+        final MonthDay monthDay;
+        final Month month;
+        final DayOfWeek dayOfWeek;
+        // 1 to 5 counts from the start of the month, -1 is the last one.
+        final int ordinal;
+
+        private Holiday(String name, LocalDate date, MonthDay monthDay, Month month, DayOfWeek dayOfWeek, int ordinal) {
+            this.name = name;
+            this.date = date;
+            this.monthDay = monthDay;
+            this.month = month;
+            this.dayOfWeek = dayOfWeek;
+            this.ordinal = ordinal;
+        }
+
+        static Holiday on(LocalDate date, String name) {
+            return new Holiday(name, date, null, null, null, 0);
+        }
+
+        static Holiday everyYear(MonthDay monthDay, String name) {
+            return new Holiday(name, null, monthDay, null, null, 0);
+        }
+
+        static Holiday nthWeekday(int ordinal, DayOfWeek dayOfWeek, Month month, String name) {
+            if (ordinal == 0 || ordinal < -1 || ordinal > 5) {
+                throw new IllegalArgumentException("Not a week of the month: " + ordinal);
+            }
+            return new Holiday(name, null, null, month, dayOfWeek, ordinal);
+        }
+
+        // The date in the given year, or null if there is none: a one-off holiday in another
+        // year, the 29th of February outside leap years, a fifth weekday the month lacks.
+        LocalDate in(int year) {
+            if (date != null) {
+                return date.getYear() == year ? date : null;
+            }
+            if (monthDay != null) {
+                return monthDay.isValidYear(year) ? monthDay.atYear(year) : null;
+            }
+            LocalDate first = LocalDate.of(year, month, 1);
+            if (ordinal < 0) {
+                return first.with(TemporalAdjusters.lastInMonth(dayOfWeek));
+            }
+            LocalDate day = first.with(TemporalAdjusters.dayOfWeekInMonth(ordinal, dayOfWeek));
+            return day.getMonth() == month ? day : null;
+        }
+
+        @Override
+        public String toString() {
+            String when;
+            if (date != null) {
+                when = date.toString();
+            } else if (monthDay != null) {
+                when = monthDay.toString();
+            } else {
+                when = (ordinal < 0 ? "last" : String.valueOf(ordinal)) + " " + dayOfWeek + " " + month;
+            }
+            return when + " " + name;
+        }
+    }
+
+    Set<DayOfWeek> weekend() {
+        return weekend;
+    }
+
+    List<Holiday> holidays() {
+        return holidays;
+    }
+
+    // The days off set by hand, without the holidays.
+    NavigableSet<LocalDate> daysOff() {
+        return daysOff;
+    }
+
+    boolean isWeekend(LocalDate date) {
+        return (weekendMask & 1 << date.getDayOfWeek().ordinal()) != 0;
+    }
+
+    // A holiday or a day off set by hand.
+    boolean isDayOff(LocalDate date) {
+        return test(date, 0);
+    }
+
+    boolean isWorkingDay(LocalDate date) {
+        return !test(date, WORDS);
+    }
+
+    // The name of the holiday on the date, or null if it is not one.
+    String holidayOn(LocalDate date) {
+        for (Holiday holiday : holidays) {
+            if (date.equals(holiday.in(date.getYear()))) {
+                return holiday.name;
+            }
+        }
+        return null;
+    }
+
+    // The first working day on or after the date, or null if no day of the following year is
+    // one (a week that is all weekend).
+    LocalDate nextWorkingDay(LocalDate from) {
+        List<LocalDate> next = nextWorkingDays(from, 1);
+        return next.isEmpty() ? null : next.get(0);
+    }
+
+    // The next n working days, from the date on.
+    List<LocalDate> nextWorkingDays(LocalDate from, int n) {
+        List<LocalDate> found = new ArrayList<>(n);
+        LocalDate date = from;
+        int idleYears = 0;
+        while (found.size() < n && idleYears < 2) {
+            int year = date.getYear();
+            long[] bits = yearBits(year);
+            int before = found.size();
+            LocalDate first = LocalDate.ofYearDay(year, 1);
+            for (int day = date.getDayOfYear() - 1, length = first.lengthOfYear(); day < length && found.size() < n; ) {
+                long open = ~bits[WORDS + (day >> 6)] & (-1L << day);
+                if (open == 0) {
+                    day = (day | 63) + 1;
+                    continue;
+                }
+                day = (day & ~63) + Long.numberOfTrailingZeros(open);
+                if (day < length) {
+                    found.add(first.plusDays(day));
+                }
+                day++;
+            }
+            idleYears = found.size() == before ? idleYears + 1 : 0;
+            date = LocalDate.of(year + 1, 1, 1);
+        }
+        return found;
+    }
+
+    WorkingCalendar withDayOff(LocalDate date, boolean off) {
+        if (daysOff.contains(date) == off) {
+            return this;
+        }
+        NavigableSet<LocalDate> changed = new TreeSet<>(daysOff);
+        if (off) {
+            changed.add(date);
+        } else {
+            changed.remove(date);
+        }
+        return new WorkingCalendar(weekend, holidays, changed);
+    }
+
+    WorkingCalendar withDaysOff(Collection<LocalDate> days) {
+        return new WorkingCalendar(weekend, holidays, new TreeSet<>(days));
+    }
+
+    // The weekend and holidays of the other calendar with the days off of this one.
+    WorkingCalendar withRulesOf(WorkingCalendar other) {
+        return new WorkingCalendar(other.weekend, other.holidays, daysOff);
+    }
+
+    private boolean test(LocalDate date, int offset) {
+        int day = date.getDayOfYear() - 1;
+        return (yearBits(date.getYear())[offset + (day >> 6)] >>> day & 1) != 0;
+    }
+
+    private long[] yearBits(int year) {
+        int index = year - FIRST_YEAR;
+        if (index < 0 || index >= YEARS) {
+            return otherYears.computeIfAbsent(year, this::compile);
+        }
+        long[] bits = years.get(index);
+        if (bits == null) {
+            bits = compile(year);
+            years.set(index, bits);
+        }
+        return bits;
+    }
+
+    private long[] compile(int year) {
+        long[] bits = new long[2 * WORDS];
+        for (Holiday holiday : holidays) {
+            LocalDate date = holiday.in(year);
+            if (date != null) {
+                set(bits, date.getDayOfYear() - 1);
+            }
+        }
+        for (LocalDate date : daysOff.subSet(LocalDate.of(year, 1, 1), true, LocalDate.of(year, 12, 31), true)) {
+            set(bits, date.getDayOfYear() - 1);
+        }
+        System.arraycopy(bits, 0, bits, WORDS, WORDS);
+        if (weekendMask != 0) {
+            LocalDate first = LocalDate.of(year, 1, 1);
+            int firstDay = first.getDayOfWeek().ordinal();
+            for (int day = 0, length = first.lengthOfYear(); day < length; day++) {
+                if ((weekendMask & 1 << (firstDay + day) % 7) != 0) {
+                    bits[WORDS + (day >> 6)] |= 1L << day;
+                }
+            }
+        }
+        return bits;
+    }
+
+    private static void set(long[] bits, int day) {
+        bits[day >> 6] |= 1L << day;
+    }
+
+    // The weekend and holidays as text, in the format above.
+    String format() {
+        StringBuilder text = new StringBuilder("weekend");
+        for (DayOfWeek day : weekend) {
+            text.append(' ').append(day);
+        }
+        text.append('\n');
+        for (Holiday holiday : holidays) {
+            text.append(holiday).append('\n');
+        }
+        return text.toString();
+    }
+
+    // Reads a weekend and holidays in the format above, with no days off. A list without a
+    // weekend line keeps Saturday and Sunday.
+    static WorkingCalendar parse(List<String> lines) {
+        Set<DayOfWeek> weekend = EnumSet.of(DayOfWeek.SATURDAY, DayOfWeek.SUNDAY);
+        List<Holiday> holidays = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split("\\s+");
+            try {
+                if (parts[0].equalsIgnoreCase("weekend")) {
+                    weekend = EnumSet.noneOf(DayOfWeek.class);
+                    for (int p = 1; p < parts.length; p++) {
+                        weekend.add(dayOfWeek(parts[p]));
+                    }
+                } else if (parts[0].startsWith("--")) {
+                    holidays.add(Holiday.everyYear(MonthDay.parse(parts[0]), rest(line, 1)));
+                } else if (Character.isDigit(parts[0].charAt(0)) && parts[0].length() > 1) {
+                    holidays.add(Holiday.on(LocalDate.parse(parts[0]), rest(line, 1)));
+                } else {
+                    if (parts.length < 3) {
+                        throw new IllegalArgumentException("expected a week, a weekday and a month");
+                    }
+                    int ordinal = parts[0].equalsIgnoreCase("last") ? -1 : Integer.parseInt(parts[0]);
+                    holidays.add(Holiday.nthWeekday(ordinal, dayOfWeek(parts[1]), month(parts[2]), rest(line, 3)));
+                }
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": " + line + " (" + e.getMessage() + ")", e);
+            }
+        }
+        return new WorkingCalendar(weekend, holidays, new TreeSet<>());
+    }
+
+    // Full names or their first three letters, in any case.
+    private static DayOfWeek dayOfWeek(String text) {
+        for (DayOfWeek day : DayOfWeek.values()) {
+            if (day.name().equalsIgnoreCase(text) || (text.length() == 3 && day.name().startsWith(text.toUpperCase(Locale.ROOT)))) {
+                return day;
+            }
+        }
+        throw new IllegalArgumentException("not a day of the week: " + text);
+    }
+
+    private static Month month(String text) {
+        for (Month month : Month.values()) {
+            if (month.name().equalsIgnoreCase(text) || (text.length() == 3 && month.name().startsWith(text.toUpperCase(Locale.ROOT)))) {
+                return month;
+            }
+        }
+        throw new IllegalArgumentException("not a month: " + text);
+    }
+
+    // The line after its first n words, split the way the line itself is: the holiday's name.
+    private static String rest(String line, int words) {
+        String[] parts = line.trim().split("\\s+", words + 1);
+        String rest = parts.length > words ? parts[words].trim() : "";
+        return rest.isEmpty() ? "Holiday" : rest;
+    }
+}